@@ -2,20 +2,19 @@ package co.potatoproject.androidflutterupdater;
 
 import android.annotation.SuppressLint;
 import android.app.Activity;
-import android.content.BroadcastReceiver;
 import android.content.ComponentName;
 import android.content.Context;
 import android.content.Intent;
-import android.content.IntentFilter;
 import android.content.ServiceConnection;
 import android.content.SharedPreferences;
 import android.content.pm.PackageManager;
 import android.content.res.Resources;
 import android.icu.text.DateFormat;
+import android.os.Handler;
 import android.os.IBinder;
+import android.os.Looper;
 import android.preference.PreferenceManager;
 import androidx.annotation.NonNull;
-import androidx.localbroadcastmanager.content.LocalBroadcastManager;
 import android.text.format.Formatter;
 import android.util.Log;
 
@@ -25,17 +24,27 @@ import java.io.File;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
 import java.util.UUID;
 
+import co.potatoproject.androidflutterupdater.controller.DownloadScheduler;
+import co.potatoproject.androidflutterupdater.controller.UpdateEventBus;
 import co.potatoproject.androidflutterupdater.controller.UpdaterController;
 import co.potatoproject.androidflutterupdater.controller.UpdaterService;
+import co.potatoproject.androidflutterupdater.download.BandwidthLimiter;
 import co.potatoproject.androidflutterupdater.download.DownloadClient;
 import co.potatoproject.androidflutterupdater.misc.Constants;
 import co.potatoproject.androidflutterupdater.misc.StringGenerator;
+import co.potatoproject.androidflutterupdater.misc.UpdatesDiff;
 import co.potatoproject.androidflutterupdater.misc.Utils;
 import co.potatoproject.androidflutterupdater.model.UpdateInfo;
+import co.potatoproject.androidflutterupdater.model.UpdateSnapshot;
 import co.potatoproject.androidflutterupdater.model.UpdateStatus;
 import io.flutter.plugin.common.EventChannel;
 import io.flutter.plugin.common.EventChannel.StreamHandler;
@@ -54,27 +63,172 @@ public class AndroidFlutterUpdaterPlugin {
     private UpdaterService mUpdaterService;
     private UpdaterController mUpdaterController;
     private List<String> mUpdateIds;
-    private BroadcastReceiver mBroadcastReceiver;
+    private final UpdateEventBus.Listener mUpdateListener = new UpdateEventBus.Listener() {
+        @Override
+        public void onStatusChanged(UpdateSnapshot update) {
+            mNativeStreamHandler.emitUpdate(update.getDownloadId(), update);
+        }
+
+        @Override
+        public void onDownloadProgress(UpdateSnapshot update) {
+            mNativeStreamHandler.emitUpdate(update.getDownloadId(), update);
+        }
+
+        @Override
+        public void onInstallProgress(UpdateSnapshot update) {
+            mNativeStreamHandler.emitUpdate(update.getDownloadId(), update);
+        }
+
+        @Override
+        public void onRemoved(final String downloadId) {
+            mActivity.runOnUiThread(new Runnable() {
+                @Override
+                public void run() {
+                    if (mUpdateIds != null) {
+                        mUpdateIds.remove(downloadId);
+                    }
+                }
+            });
+            mNativeStreamHandler.emitUpdate(downloadId, null);
+        }
+    };
+    private final LegacyStreamHandler mLegacyStreamHandler = new LegacyStreamHandler();
     private final NativeStreamHandler mNativeStreamHandler = new NativeStreamHandler();
 
+    /**
+     * The "<id>~<progress>" and "update_available~<available>" strings of the
+     * events channel, kept for the apps that parse them. NativeStreamHandler
+     * sends them along with its batches.
+     */
+    static class LegacyStreamHandler implements StreamHandler {
+
+        EventChannel.EventSink eventSink;
+
+        @Override
+        public void onListen(Object o, EventChannel.EventSink eventSink) {
+            this.eventSink = eventSink;
+        }
+
+        @Override
+        public void onCancel(Object o) {
+
+        }
+
+        static String format(Map<String, Object> event) {
+            switch ((String) event.get("type")) {
+                case "updates_available":
+                    return "update_available~" + event.get("available");
+                case "removed":
+                    return event.get("id") + "~-1";
+                default:
+                    return event.get("id") + "~" + event.get("progress");
+            }
+        }
+    }
+
+    /**
+     * Sends the events to Dart at most once per frame, as a list of maps on the
+     * update events channel. Until then only the latest event of each download
+     * is kept, so a fast download costs one main thread post per frame.
+     */
     class NativeStreamHandler implements StreamHandler {
 
+        private static final long BATCH_WINDOW_MS = 16;
+        private static final String KEY_UPDATES_AVAILABLE = "~updates_available";
+
+        private final Handler mHandler = new Handler(Looper.getMainLooper());
+        // Guarded by this
+        private final Map<String, Map<String, Object>> mPending = new LinkedHashMap<>();
+        // Latest snapshot version emitted for each download, guarded by this
+        private final Map<String, Long> mVersions = new HashMap<>();
+        private boolean mScheduled;
+
         EventChannel.EventSink eventSink;
 
+        private final Runnable mFlush = new Runnable() {
+            @Override
+            public void run() {
+                List<Map<String, Object>> events;
+                synchronized (NativeStreamHandler.this) {
+                    events = new ArrayList<>(mPending.values());
+                    mPending.clear();
+                    mScheduled = false;
+                }
+                if (mActivity == null) {
+                    return;
+                }
+                if (eventSink != null) {
+                    eventSink.success(events);
+                }
+                EventChannel.EventSink legacySink = mLegacyStreamHandler.eventSink;
+                if (legacySink != null) {
+                    for (Map<String, Object> event : events) {
+                        legacySink.success(LegacyStreamHandler.format(event));
+                    }
+                }
+            }
+        };
+
         @Override
         public void onListen(Object o, EventChannel.EventSink eventSink) {
             this.eventSink = eventSink;
         }
 
-        void emitData(Object data) {
-            if (eventSink != null && mActivity != null) {
-                mActivity.runOnUiThread(new Runnable() {
-                    @Override
-                    public void run() {
-                        eventSink.success(data);
+        /**
+         * @param update the update, or null if it was removed
+         */
+        void emitUpdate(String downloadId, UpdateInfo update) {
+            Map<String, Object> event = new HashMap<>();
+            event.put("id", downloadId);
+            long version = -1;
+            if (update instanceof UpdateSnapshot) {
+                version = ((UpdateSnapshot) update).getSnapshotVersion();
+            }
+            if (update == null) {
+                event.put("type", "removed");
+            } else {
+                event.put("type", "update");
+                event.put("status", update.getStatus().name());
+                event.put("progress", update.getProgress());
+                event.put("downloadedBytes", update.getDownloadedBytes());
+                event.put("totalBytes", update.getFileSize());
+                event.put("speed", update.getSpeed());
+                event.put("eta", update.getEta());
+                event.put("installProgress", update.getInstallProgress());
+            }
+            emit(downloadId, event, version);
+        }
+
+        void emitUpdatesAvailable(boolean available) {
+            Map<String, Object> event = new HashMap<>();
+            event.put("type", "updates_available");
+            event.put("available", available);
+            emit(KEY_UPDATES_AVAILABLE, event, -1);
+        }
+
+        /**
+         * @param version the snapshot version of the event, or -1 if it has none
+         */
+        private void emit(String key, Map<String, Object> event, long version) {
+            synchronized (this) {
+                if (version < 0) {
+                    mVersions.remove(key);
+                } else {
+                    Long latest = mVersions.get(key);
+                    if (latest != null && latest > version) {
+                        // The listener is called on the thread that made the change,
+                        // a slower one can deliver an older snapshot after a newer one
+                        return;
                     }
-                });
+                    mVersions.put(key, version);
+                }
+                mPending.put(key, event);
+                if (mScheduled) {
+                    return;
+                }
+                mScheduled = true;
             }
+            mHandler.postDelayed(mFlush, BATCH_WINDOW_MS);
         }
 
         @Override
@@ -83,36 +237,11 @@ public class AndroidFlutterUpdaterPlugin {
         }
     }
 
-    private AndroidFlutterUpdaterPlugin(MethodChannel methodProvider, EventChannel eventProvider, Activity activity) {
+    private AndroidFlutterUpdaterPlugin(MethodChannel methodProvider, EventChannel eventProvider,
+                                        EventChannel updateEventProvider, Activity activity) {
         this.mActivity = activity;
-        mBroadcastReceiver = new BroadcastReceiver() {
-            @Override
-            public void onReceive(Context context, Intent intent) {
-                String downloadId = intent.getStringExtra(UpdaterController.EXTRA_DOWNLOAD_ID);
-                UpdateInfo update = mUpdaterController.getUpdate(downloadId);
-
-                if (UpdaterController.ACTION_UPDATE_REMOVED.equals(intent.getAction()) || update == null) {
-                    mUpdateIds.remove(downloadId);
-                    mNativeStreamHandler.emitData(downloadId + '~' +
-                            (update == null ? Integer.toString(-1) : update.getProgress()));
-                } else if (UpdaterController.ACTION_UPDATE_STATUS.equals(intent.getAction())) {
-                    mNativeStreamHandler.emitData(downloadId + '~' + update.getProgress());
-                } else if (UpdaterController.ACTION_DOWNLOAD_PROGRESS.equals(intent.getAction()) ||
-                        UpdaterController.ACTION_INSTALL_PROGRESS.equals(intent.getAction())) {
-                    mNativeStreamHandler.emitData(downloadId + '~' + update.getProgress());
-                }
-            }
-        };
-
         serviceBind();
 
-        IntentFilter intentFilter = new IntentFilter();
-        intentFilter.addAction(UpdaterController.ACTION_UPDATE_STATUS);
-        intentFilter.addAction(UpdaterController.ACTION_DOWNLOAD_PROGRESS);
-        intentFilter.addAction(UpdaterController.ACTION_INSTALL_PROGRESS);
-        intentFilter.addAction(UpdaterController.ACTION_UPDATE_REMOVED);
-        LocalBroadcastManager.getInstance(activity).registerReceiver(mBroadcastReceiver, intentFilter);
-
         methodProvider.setMethodCallHandler(new MethodChannel.MethodCallHandler() {
             @Override
             public void onMethodCall(@NonNull MethodCall methodCall, @NonNull MethodChannel.Result result) {
@@ -285,6 +414,59 @@ public class AndroidFlutterUpdaterPlugin {
                     case "getPerformanceMode":
                         resultSuccess(result, Utils.getPerformanceMode(mActivity));
                         break;
+                    case "setBandwidthLimit": {
+                        final Number limit = methodCall.argument("limit");
+                        Utils.setBandwidthLimit(mActivity, mUpdaterController,
+                                limit == null ? BandwidthLimiter.UNLIMITED : limit.longValue());
+                        resultSuccess(result, null);
+                        break;
+                    }
+                    case "getBandwidthLimit":
+                        resultSuccess(result, Utils.getBandwidthLimit(mActivity));
+                        break;
+                    case "enqueueDownload": {
+                        final String id = methodCall.argument("id");
+                        final Number priority = methodCall.argument("priority");
+                        resultSuccess(result, mUpdaterController.enqueueDownload(id,
+                                priority == null ? DownloadScheduler.PRIORITY_NORMAL :
+                                        priority.intValue()));
+                        break;
+                    }
+                    case "reprioritizeDownload": {
+                        final String id = methodCall.argument("id");
+                        final Number priority = methodCall.argument("priority");
+                        resultSuccess(result, priority != null &&
+                                mUpdaterController.reprioritizeDownload(id, priority.intValue()));
+                        break;
+                    }
+                    case "getDownloadQueue":
+                        resultSuccess(result, mUpdaterController.getDownloadQueue());
+                        break;
+                    case "setMaxConcurrentDownloads": {
+                        final Number max = methodCall.argument("max");
+                        if (max != null) {
+                            Utils.setMaxConcurrentDownloads(mActivity, mUpdaterController,
+                                    max.intValue());
+                        }
+                        resultSuccess(result, null);
+                        break;
+                    }
+                    case "getMaxConcurrentDownloads":
+                        resultSuccess(result, mUpdaterController.getMaxConcurrentDownloads());
+                        break;
+                    case "setDownloadPolicy": {
+                        final String policy = methodCall.argument("policy");
+                        for (DownloadScheduler.Policy value : DownloadScheduler.Policy.values()) {
+                            if (value.name().equalsIgnoreCase(policy)) {
+                                Utils.setDownloadPolicy(mActivity, mUpdaterController, value);
+                            }
+                        }
+                        resultSuccess(result, null);
+                        break;
+                    }
+                    case "getDownloadPolicy":
+                        resultSuccess(result, mUpdaterController.getDownloadPolicy().name());
+                        break;
                     case "getDownloadProgress": {
                         final String id = methodCall.argument("id");
                         resultSuccess(result, mUpdaterController.getUpdate(id).getProgress());
@@ -322,6 +504,11 @@ public class AndroidFlutterUpdaterPlugin {
                         resultSuccess(result, Long.toString(mUpdaterController.getUpdate(id).getFileSize()));
                         break;
                     }
+                    case "getRepairedBytes": {
+                        final String id = methodCall.argument("id");
+                        resultSuccess(result, Long.toString(mUpdaterController.getUpdate(id).getRepairedBytes()));
+                        break;
+                    }
                     case "startActivity": {
                         final String pkg = methodCall.argument("pkg");
                         final String cls = methodCall.argument("cls");
@@ -343,7 +530,8 @@ public class AndroidFlutterUpdaterPlugin {
             }
         });
 
-        eventProvider.setStreamHandler(mNativeStreamHandler);
+        eventProvider.setStreamHandler(mLegacyStreamHandler);
+        updateEventProvider.setStreamHandler(mNativeStreamHandler);
     }
 
     private void resultSuccess(MethodChannel.Result result, Object object) {
@@ -359,11 +547,13 @@ public class AndroidFlutterUpdaterPlugin {
     public static void registerWith(Registrar registrar) {
         final MethodChannel methodProvider = new MethodChannel(registrar.messenger(), "android_flutter_updater/methods");
         final EventChannel eventProvider = new EventChannel(registrar.view(), "android_flutter_updater/events");
-        new AndroidFlutterUpdaterPlugin(methodProvider, eventProvider, registrar.activity());
+        final EventChannel updateEventProvider = new EventChannel(registrar.view(), "android_flutter_updater/update_events");
+        new AndroidFlutterUpdaterPlugin(methodProvider, eventProvider, updateEventProvider, registrar.activity());
     }
 
     private void serviceUnbind() {
-        LocalBroadcastManager.getInstance(mActivity).unregisterReceiver(mBroadcastReceiver);
+        if (mUpdaterController != null)
+            mUpdaterController.getEventBus().unregister(mUpdateListener);
         if (mUpdaterService != null)
             mActivity.unbindService(mConnection);
     }
@@ -407,6 +597,8 @@ public class AndroidFlutterUpdaterPlugin {
             UpdaterService.LocalBinder binder = (UpdaterService.LocalBinder) service;
             mUpdaterService = binder.getService();
             mUpdaterController = mUpdaterService.getUpdaterController();
+            // The stream handler batches the events for the main thread itself
+            mUpdaterController.getEventBus().register(mUpdateListener, UpdateEventBus.DIRECT);
             getUpdatesList(false);
         }
 
@@ -423,6 +615,9 @@ public class AndroidFlutterUpdaterPlugin {
         Log.d(TAG, "Checking " + url);
 
         DownloadClient.DownloadCallback callback = new DownloadClient.DownloadCallback() {
+            private String mEtag;
+            private String mLastModified;
+
             @Override
             public void onFailure(final boolean cancelled) {
                 Log.e(TAG, "Could not download updates list");
@@ -432,20 +627,31 @@ public class AndroidFlutterUpdaterPlugin {
             public void onResponse(int statusCode, String url,
                                    DownloadClient.Headers headers) {
                 Log.d(TAG, "Updates list response obtained");
+                mEtag = headers.get("ETag");
+                mLastModified = headers.get("Last-Modified");
             }
 
             @Override
             public void onSuccess(File destination) {
-                processNewJson(jsonFile, jsonFileTmp);
+                if (processNewJson(jsonFile, jsonFileTmp)) {
+                    Utils.saveCachedUpdateListValidators(mActivity, mEtag, mLastModified);
+                }
+            }
+
+            @Override
+            public void onNotModified() {
+                processUnchangedJson(jsonFile);
             }
         };
 
         final DownloadClient downloadClient;
         try {
-            downloadClient = new DownloadClient.Builder()
+            downloadClient = Utils.setCachedUpdateListValidators(mActivity,
+                    new DownloadClient.Builder())
                     .setUrl(url)
                     .setDestination(jsonFileTmp)
                     .setDownloadCallback(callback)
+                    .setAcceptGzip(true)
                     .build();
         } catch (IOException exception) {
             Log.e(TAG, "Could not build download client");
@@ -455,22 +661,47 @@ public class AndroidFlutterUpdaterPlugin {
         downloadClient.start();
     }
 
-    @SuppressWarnings("ResultOfMethodCallIgnored")
-    private void processNewJson(File json, File jsonNew) {
+    /**
+     * @return whether the new list replaced the cached one
+     */
+    private boolean processNewJson(File json, File jsonNew) {
         try {
-            loadUpdatesList(jsonNew);
+            Log.d(TAG, "Adding remote updates");
+            UpdatesDiff diff = Utils.diffUpdates(json, jsonNew, mActivity);
+            mUpdaterService.getUpdaterController().applyUpdatesDiff(diff);
+            onUpdatesListLoaded();
             SharedPreferences preferences = PreferenceManager.getDefaultSharedPreferences(mActivity);
             long millis = System.currentTimeMillis();
             preferences.edit().putLong(Constants.PREF_LAST_UPDATE_CHECK, millis).apply();
-            if (json.exists() && Utils.isUpdateCheckEnabled(mActivity) &&
-                    Utils.checkForNewUpdates(json, jsonNew, mActivity)) {
+            if (diff.hasNewUpdates() && Utils.isUpdateCheckEnabled(mActivity)) {
                 UpdatesCheckReceiver.updateRepeatingUpdatesCheck(mActivity);
             }
             // In case we set a one-shot check because of a previous failure
             UpdatesCheckReceiver.cancelUpdatesCheck(mActivity);
-            jsonNew.renameTo(json);
+            return Utils.replaceUpdatesList(json, jsonNew, diff, mActivity);
         } catch (IOException | JSONException e) {
             Log.e(TAG, "Could not read json", e);
+            return false;
+        }
+    }
+
+    /**
+     * The server confirmed that the cached list is still current, reuse what
+     * we already parsed
+     */
+    private void processUnchangedJson(File json) {
+        SharedPreferences preferences = PreferenceManager.getDefaultSharedPreferences(mActivity);
+        preferences.edit().putLong(Constants.PREF_LAST_UPDATE_CHECK,
+                System.currentTimeMillis()).apply();
+        UpdatesCheckReceiver.cancelUpdatesCheck(mActivity);
+        if (mUpdateIds != null) {
+            onUpdatesListLoaded();
+            return;
+        }
+        try {
+            loadUpdatesList(json);
+        } catch (IOException | JSONException e) {
+            Log.e(TAG, "Could not read cached json", e);
         }
     }
 
@@ -479,14 +710,18 @@ public class AndroidFlutterUpdaterPlugin {
         Log.d(TAG, "Adding remote updates");
         UpdaterController controller = mUpdaterService.getUpdaterController();
 
-        List<UpdateInfo> updates = Utils.parseJson(jsonFile, true, mActivity);
-        List<String> updatesOnline = new ArrayList<>();
+        List<UpdateInfo> updates = Utils.loadCompatibleUpdates(jsonFile, mActivity);
+        Set<String> updatesOnline = new HashSet<>();
         for (UpdateInfo update : updates) {
-            /*newUpdates |= */
             controller.addUpdate(update);
             updatesOnline.add(update.getDownloadId());
         }
         controller.setUpdatesAvailableOnline(updatesOnline, true);
+        onUpdatesListLoaded();
+    }
+
+    private void onUpdatesListLoaded() {
+        UpdaterController controller = mUpdaterService.getUpdaterController();
 
         List<String> updateIds = new ArrayList<>();
         List<UpdateInfo> sortedUpdates = controller.getUpdates();
@@ -503,9 +738,9 @@ public class AndroidFlutterUpdaterPlugin {
                     updatesAvailable = true;
                 updateIds.add(update.getDownloadId());
             }
-            mNativeStreamHandler.emitData("update_available~" + updatesAvailable);
+            mNativeStreamHandler.emitUpdatesAvailable(updatesAvailable);
         } else {
-            mNativeStreamHandler.emitData("update_available~false");
+            mNativeStreamHandler.emitUpdatesAvailable(false);
         }
         mUpdateIds = updateIds;
     }
@@ -513,19 +748,21 @@ public class AndroidFlutterUpdaterPlugin {
     private void cancelAndDeleteDownload(String downloadId) {
         pauseDownload(downloadId);
         mUpdaterController.deleteUpdate(downloadId);
-        mNativeStreamHandler.emitData(downloadId + '~' + 0);
+        mNativeStreamHandler.emitUpdate(downloadId, mUpdaterController.getUpdate(downloadId));
     }
 
     private void pauseDownload(String downloadId) {
-        UpdateInfo update = mUpdaterController.getUpdate(downloadId);
         mUpdaterController.pauseDownload(downloadId);
-        mNativeStreamHandler.emitData(downloadId + '~' + update.getProgress());
+        // The snapshot taken after the change
+        UpdateInfo update = mUpdaterController.getUpdate(downloadId);
+        mNativeStreamHandler.emitUpdate(downloadId, update);
     }
 
     private void resumeDownload(String downloadId) {
-        UpdateInfo update = mUpdaterController.getUpdate(downloadId);
         mUpdaterController.resumeDownload(downloadId);
-        mNativeStreamHandler.emitData(downloadId + '~' + update.getProgress());
+        // The snapshot taken after the change
+        UpdateInfo update = mUpdaterController.getUpdate(downloadId);
+        mNativeStreamHandler.emitUpdate(downloadId, update);
     }
 
     private void verifyDownload(String downloadId) {
@@ -533,7 +770,7 @@ public class AndroidFlutterUpdaterPlugin {
         if (update.getStatus() == UpdateStatus.DOWNLOADED ||
                 update.getStatus() == UpdateStatus.VERIFICATION_FAILED)
             resumeDownload(downloadId);
-        mNativeStreamHandler.emitData(downloadId + '~' + update.getProgress());
+        mNativeStreamHandler.emitUpdate(downloadId, update);
     }
 
     private String getName(String downloadId) {
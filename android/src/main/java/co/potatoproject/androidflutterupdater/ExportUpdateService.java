@@ -28,11 +28,25 @@ import android.util.Log;
 import android.widget.Toast;
 
 import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.Serializable;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.text.NumberFormat;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
 
 import co.potatoproject.androidflutterupdater.misc.FileUtils;
+import co.potatoproject.androidflutterupdater.misc.TaskExecutor;
 
+/**
+ * Exports packages, one source at a time. The destinations of a source are
+ * written while reading it once, each one can be cancelled on its own.
+ */
 @SuppressWarnings("Convert2Lambda")
 public class ExportUpdateService extends Service {
 
@@ -45,14 +59,33 @@ public class ExportUpdateService extends Service {
 
     public static final String EXTRA_SOURCE_FILE = "source_file";
     public static final String EXTRA_DEST_FILE = "dest_file";
+    /**
+     * File[] of destinations, used instead of EXTRA_DEST_FILE to export the
+     * same source to several places at once
+     */
+    public static final String EXTRA_DEST_FILES = "dest_files";
 
     private static final String EXPORT_NOTIFICATION_CHANNEL =
             "export_notification_channel";
 
-    private volatile boolean mIsExporting = false;
+    private static final int BUFFER_SIZE = 1024 * 1024;
+
+    private final ArrayDeque<ExportJob> mQueue = new ArrayDeque<>();
+    private ExportJob mCurrentJob;
+    private int mNextNotificationId = NOTIFICATION_ID + 1;
 
-    private Thread mExportThread;
-    private ExportRunnable mExportRunnable;
+    private NotificationManager mNotificationManager;
+
+    @Override
+    public void onCreate() {
+        super.onCreate();
+        mNotificationManager = (NotificationManager) getSystemService(NOTIFICATION_SERVICE);
+        NotificationChannel notificationChannel = new NotificationChannel(
+                EXPORT_NOTIFICATION_CHANNEL,
+                getString(R.string.export_channel_title),
+                NotificationManager.IMPORTANCE_LOW);
+        mNotificationManager.createNotificationChannel(notificationChannel);
+    }
 
     @Override
     public IBinder onBind(Intent intent) {
@@ -62,165 +95,390 @@ public class ExportUpdateService extends Service {
     @Override
     public int onStartCommand(Intent intent, int flags, int startId) {
         if (ACTION_START_EXPORTING.equals(intent.getAction())) {
-            if (mIsExporting) {
-                Log.e(TAG, "Already exporting an update");
-                Toast.makeText(this, R.string.toast_already_exporting, Toast.LENGTH_SHORT).show();
-                return START_NOT_STICKY;
-            }
-            mIsExporting = true;
             File source = (File) intent.getSerializableExtra(EXTRA_SOURCE_FILE);
+            List<File> destinations = new ArrayList<>();
+            Serializable files = intent.getSerializableExtra(EXTRA_DEST_FILES);
+            if (files instanceof File[]) {
+                destinations.addAll(Arrays.asList((File[]) files));
+            }
             File destination = (File) intent.getSerializableExtra(EXTRA_DEST_FILE);
-            startExporting(source, destination);
-        } else if (ACTION_STOP_EXPORTING.equals(intent.getAction())) {
-            if (mIsExporting) {
-                mExportThread.interrupt();
-                stopForeground(true);
-                try {
-                    mExportThread.join();
-                } catch (InterruptedException e) {
-                    Log.e(TAG, "Error while waiting for thread");
+            if (destination != null) {
+                destinations.add(destination);
+            }
+            for (File file : destinations) {
+                if (!enqueue(source, file)) {
+                    Log.e(TAG, "Already exporting to " + file);
+                    Toast.makeText(this, R.string.toast_already_exporting,
+                            Toast.LENGTH_SHORT).show();
                 }
-                mExportRunnable.cleanUp();
-                mIsExporting = false;
             }
+            startNextJob();
+        } else if (ACTION_STOP_EXPORTING.equals(intent.getAction())) {
+            File destination = (File) intent.getSerializableExtra(EXTRA_DEST_FILE);
+            cancel(destination);
         } else {
             Log.e(TAG, "No action specified");
         }
 
-        if (!mIsExporting) {
-            stopSelf();
+        synchronized (this) {
+            if (mCurrentJob == null && mQueue.isEmpty()) {
+                stopSelf();
+            }
         }
 
         return START_NOT_STICKY;
     }
 
-    private class ExportRunnable implements Runnable {
-        private File mSource;
-        private File mDestination;
-        private FileUtils.ProgressCallBack mProgressCallBack;
-        private Runnable mRunnableComplete;
-        private Runnable mRunnableFailed;
-
-        private ExportRunnable(File source, File destination,
-                               FileUtils.ProgressCallBack progressCallBack,
-                               Runnable runnableComplete, Runnable runnableFailed) {
-            mSource = source;
-            mDestination = destination;
-            mProgressCallBack = progressCallBack;
-            mRunnableComplete = runnableComplete;
-            mRunnableFailed = runnableFailed;
+    /**
+     * @return false if the destination is already being exported to
+     */
+    private synchronized boolean enqueue(File source, File destination) {
+        ExportJob sourceJob = null;
+        List<ExportJob> jobs = new ArrayList<>(mQueue);
+        if (mCurrentJob != null) {
+            jobs.add(mCurrentJob);
         }
+        for (ExportJob job : jobs) {
+            if (job.find(destination) != null) {
+                return false;
+            }
+            if (!job.mStarted && job.mSource.equals(source)) {
+                sourceJob = job;
+            }
+        }
+        if (sourceJob == null) {
+            sourceJob = new ExportJob(source);
+            mQueue.add(sourceJob);
+        }
+        sourceJob.mDestinations.add(new Destination(destination, mNextNotificationId++));
+        updateForegroundNotification();
+        return true;
+    }
 
-        @Override
-        public void run() {
-            try {
-                FileUtils.copyFile(mSource, mDestination, mProgressCallBack);
-                mIsExporting = false;
-                if (!mExportThread.isInterrupted()) {
-                    Log.d(TAG, "Completed");
-                    mRunnableComplete.run();
-                } else {
-                    Log.d(TAG, "Aborted");
+    /**
+     * Cancel the export to the given destination, or all of them if null
+     */
+    private synchronized void cancel(File destination) {
+        List<ExportJob> jobs = new ArrayList<>(mQueue);
+        if (mCurrentJob != null) {
+            jobs.add(mCurrentJob);
+        }
+        for (ExportJob job : jobs) {
+            for (Destination target : new ArrayList<>(job.mDestinations)) {
+                if (!target.mDone &&
+                        (destination == null || target.mFile.equals(destination))) {
+                    job.cancel(target);
                 }
-            } catch (IOException e) {
-                mIsExporting = false;
-                Log.e(TAG, "Could not copy file", e);
-                mRunnableFailed.run();
-            } finally {
-                stopSelf();
+            }
+            if (job.mDestinations.isEmpty()) {
+                mQueue.remove(job);
             }
         }
+        updateForegroundNotification();
+    }
 
-        private void cleanUp() {
-            mDestination.delete();
+    private synchronized void startNextJob() {
+        if (mCurrentJob != null) {
+            return;
+        }
+        mCurrentJob = mQueue.poll();
+        if (mCurrentJob == null) {
+            stopForeground(true);
+            stopSelf();
+            return;
         }
+        updateForegroundNotification();
+        TaskExecutor.submit(TaskExecutor.Pool.DISK, "Export " + mCurrentJob.mSource.getName(),
+                mCurrentJob);
     }
 
-    @SuppressLint("NewApi")
-    private void startExporting(File source, File destination) {
-        NotificationManager notificationManager =
-                (NotificationManager) getSystemService(NOTIFICATION_SERVICE);
-        NotificationChannel notificationChannel = new NotificationChannel(
-                EXPORT_NOTIFICATION_CHANNEL,
-                getString(R.string.export_channel_title),
-                NotificationManager.IMPORTANCE_LOW);
-        notificationManager.createNotificationChannel(notificationChannel);
+    private synchronized void onJobDone(ExportJob job) {
+        if (mCurrentJob == job) {
+            mCurrentJob = null;
+        }
+        startNextJob();
+    }
 
-        NotificationCompat.BigTextStyle notificationStyle = new NotificationCompat.BigTextStyle()
-                .setBigContentTitle(getString(R.string.dialog_export_title))
-                .bigText(destination.getName());
+    /**
+     * The service stays in the foreground with a summary of the ongoing
+     * exports, each destination has its own notification
+     */
+    private synchronized void updateForegroundNotification() {
+        int count = 0;
+        for (ExportJob job : mQueue) {
+            count += job.mDestinations.size();
+        }
+        if (mCurrentJob != null) {
+            count += mCurrentJob.getActiveCount();
+        }
+        if (count == 0) {
+            return;
+        }
         NotificationCompat.Builder notificationBuilder = new NotificationCompat.Builder(this,
                 EXPORT_NOTIFICATION_CHANNEL)
                 .setContentTitle(getString(R.string.dialog_export_title))
-                .setStyle(notificationStyle)
-                .setAutoCancel(true)
+                .setContentText(getResources().getQuantityString(
+                        R.plurals.notification_exporting_destinations, count, count))
                 .setSmallIcon(R.drawable.ic_system_update)
+                .setOnlyAlertOnce(true)
                 .addAction(android.R.drawable.ic_media_pause,
                         getString(android.R.string.cancel),
-                        getStopPendingIntent());
-
-        FileUtils.ProgressCallBack progressCallBack = new FileUtils.ProgressCallBack() {
-            private long mLastUpdate = -1;
-
-            @Override
-            public void update(int progress) {
-                long now = SystemClock.elapsedRealtime();
-                if (mLastUpdate < 0 || now - mLastUpdate > 500) {
-                    String percent = NumberFormat.getPercentInstance().format(progress / 100.f);
-                    notificationStyle.setSummaryText(percent);
-                    notificationBuilder.setProgress(100, progress, false);
-                    notificationManager.notify(NOTIFICATION_ID,
-                            notificationBuilder.build());
-                    mLastUpdate = now;
+                        getStopPendingIntent(null, NOTIFICATION_ID));
+        startForeground(NOTIFICATION_ID, notificationBuilder.build());
+    }
+
+    private class Destination {
+        private final File mFile;
+        private final int mNotificationId;
+        private final NotificationCompat.Builder mNotificationBuilder;
+        private final NotificationCompat.BigTextStyle mNotificationStyle;
+        private volatile boolean mCancelled;
+        private boolean mDone;
+        private FileChannel mChannel;
+        private long mLastUpdate = -1;
+
+        private Destination(File file, int notificationId) {
+            mFile = file;
+            mNotificationId = notificationId;
+            mNotificationStyle = new NotificationCompat.BigTextStyle()
+                    .setBigContentTitle(getString(R.string.dialog_export_title))
+                    .bigText(file.getName());
+            mNotificationBuilder = new NotificationCompat.Builder(ExportUpdateService.this,
+                    EXPORT_NOTIFICATION_CHANNEL)
+                    .setContentTitle(getString(R.string.dialog_export_title))
+                    .setStyle(mNotificationStyle)
+                    .setAutoCancel(true)
+                    .setSmallIcon(R.drawable.ic_system_update)
+                    .addAction(android.R.drawable.ic_media_pause,
+                            getString(android.R.string.cancel),
+                            getStopPendingIntent(file, notificationId));
+        }
+
+        private final FileUtils.ProgressCallBack mProgressCallBack =
+                new FileUtils.ProgressCallBack() {
+                    @Override
+                    public void update(int progress) {
+                        long now = SystemClock.elapsedRealtime();
+                        if (mLastUpdate < 0 || now - mLastUpdate > 500) {
+                            String percent = NumberFormat.getPercentInstance().format(
+                                    progress / 100.f);
+                            mNotificationStyle.setSummaryText(percent);
+                            mNotificationBuilder.setProgress(100, progress, false);
+                            mNotificationManager.notify(mNotificationId,
+                                    mNotificationBuilder.build());
+                            mLastUpdate = now;
+                        }
+                    }
+                };
+
+        @SuppressLint("RestrictedApi")
+        private void onComplete() {
+            Log.d(TAG, "Exported to " + mFile);
+            mDone = true;
+            mNotificationStyle.setSummaryText(null);
+            mNotificationStyle.setBigContentTitle(
+                    getString(R.string.notification_export_success));
+            mNotificationBuilder.setContentTitle(
+                    getString(R.string.notification_export_success));
+            mNotificationBuilder.setProgress(0, 0, false);
+            mNotificationBuilder.setContentText(mFile.getName());
+            mNotificationBuilder.mActions.clear();
+            mNotificationManager.notify(mNotificationId, mNotificationBuilder.build());
+        }
+
+        @SuppressLint("RestrictedApi")
+        private void onFailed(IOException e) {
+            Log.e(TAG, "Could not export to " + mFile, e);
+            mDone = true;
+            close();
+            mFile.delete();
+            mNotificationStyle.setSummaryText(null);
+            mNotificationStyle.setBigContentTitle(
+                    getString(R.string.notification_export_fail));
+            mNotificationBuilder.setContentTitle(
+                    getString(R.string.notification_export_fail));
+            mNotificationBuilder.setProgress(0, 0, false);
+            mNotificationBuilder.setContentText(null);
+            mNotificationBuilder.mActions.clear();
+            mNotificationManager.notify(mNotificationId, mNotificationBuilder.build());
+        }
+
+        private void onCancelled() {
+            Log.d(TAG, "Export to " + mFile + " cancelled");
+            mDone = true;
+            close();
+            mFile.delete();
+            mNotificationManager.cancel(mNotificationId);
+        }
+
+        private void close() {
+            if (mChannel != null) {
+                try {
+                    mChannel.close();
+                } catch (IOException e) {
+                    Log.e(TAG, "Could not close " + mFile, e);
                 }
+                mChannel = null;
             }
-        };
+        }
+    }
 
-        startForeground(NOTIFICATION_ID, notificationBuilder.build());
-        notificationManager.notify(NOTIFICATION_ID, notificationBuilder.build());
-
-        Runnable runnableComplete = new Runnable() {
-            @Override
-            public void run() {
-                notificationStyle.setSummaryText(null);
-                notificationStyle.setBigContentTitle(
-                        getString(R.string.notification_export_success));
-                notificationBuilder.setContentTitle(
-                        getString(R.string.notification_export_success));
-                notificationBuilder.setProgress(0, 0, false);
-                notificationBuilder.setContentText(destination.getName());
-                notificationBuilder.mActions.clear();
-                notificationManager.notify(NOTIFICATION_ID, notificationBuilder.build());
-                stopForeground(STOP_FOREGROUND_DETACH);
-            }
-        };
-
-        Runnable runnableFailed = new Runnable() {
-            @SuppressLint("RestrictedApi")
-            @Override
-            public void run() {
-                notificationStyle.setSummaryText(null);
-                notificationStyle.setBigContentTitle(
-                        getString(R.string.notification_export_fail));
-                notificationBuilder.setContentTitle(
-                        getString(R.string.notification_export_fail));
-                notificationBuilder.setProgress(0, 0, false);
-                notificationBuilder.setContentText(null);
-                notificationBuilder.mActions.clear();
-                notificationManager.notify(NOTIFICATION_ID, notificationBuilder.build());
-                stopForeground(STOP_FOREGROUND_DETACH);
-            }
-        };
-
-        mExportRunnable = new ExportRunnable(source, destination, progressCallBack,
-                runnableComplete, runnableFailed);
-        mExportThread = new Thread(mExportRunnable);
-        mExportThread.start();
+    private class ExportJob implements Runnable {
+        private final File mSource;
+        private final List<Destination> mDestinations = new ArrayList<>();
+        private boolean mStarted;
+        private Thread mThread;
+
+        private ExportJob(File source) {
+            mSource = source;
+        }
+
+        private Destination find(File file) {
+            for (Destination destination : mDestinations) {
+                if (destination.mFile.equals(file) && !destination.mDone) {
+                    return destination;
+                }
+            }
+            return null;
+        }
+
+        private int getActiveCount() {
+            int count = 0;
+            for (Destination destination : mDestinations) {
+                count += destination.mDone || destination.mCancelled ? 0 : 1;
+            }
+            return count;
+        }
+
+        /**
+         * Called with the service locked
+         */
+        private void cancel(Destination destination) {
+            if (!mStarted) {
+                mDestinations.remove(destination);
+                mNotificationManager.cancel(destination.mNotificationId);
+                return;
+            }
+            destination.mCancelled = true;
+            // A single destination is copied by the kernel, only an interruption
+            // stops it. Otherwise the flag is checked between two buffers.
+            if (mThread != null && mDestinations.size() == 1) {
+                mThread.interrupt();
+            }
+        }
+
+        @Override
+        public void run() {
+            List<Destination> destinations;
+            synchronized (ExportUpdateService.this) {
+                mStarted = true;
+                mThread = Thread.currentThread();
+                destinations = new ArrayList<>(mDestinations);
+            }
+            try {
+                if (destinations.size() == 1) {
+                    copy(destinations.get(0));
+                } else {
+                    copy(destinations);
+                }
+            } finally {
+                synchronized (ExportUpdateService.this) {
+                    mThread = null;
+                    // Don't leave a cancellation to whatever runs next on this thread
+                    Thread.interrupted();
+                }
+                onJobDone(this);
+            }
+        }
+
+        private void copy(Destination destination) {
+            try {
+                FileUtils.copyFile(mSource, destination.mFile,
+                        destination.mProgressCallBack, true);
+                if (Thread.currentThread().isInterrupted()) {
+                    destination.onCancelled();
+                } else {
+                    destination.onComplete();
+                }
+            } catch (IOException e) {
+                destination.onFailed(e);
+            }
+        }
+
+        /**
+         * Read the source once, writing each buffer to all the destinations
+         */
+        private void copy(List<Destination> destinations) {
+            List<Destination> active = new ArrayList<>();
+            for (Destination destination : destinations) {
+                try {
+                    destination.mChannel = new FileOutputStream(destination.mFile).getChannel();
+                    active.add(destination);
+                } catch (IOException e) {
+                    destination.onFailed(e);
+                }
+            }
+            try (FileChannel source = new FileInputStream(mSource).getChannel()) {
+                long size = source.size();
+                long position = 0;
+                ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+                while (position < size && !active.isEmpty()) {
+                    buffer.clear();
+                    int count = source.read(buffer);
+                    if (count < 0) {
+                        throw new IOException("Unexpected end of file at " + position);
+                    }
+                    buffer.flip();
+                    position += count;
+                    int progress = Math.round(position * 100.f / size);
+                    for (Destination destination : new ArrayList<>(active)) {
+                        if (destination.mCancelled) {
+                            active.remove(destination);
+                            destination.onCancelled();
+                            continue;
+                        }
+                        try {
+                            ByteBuffer view = buffer.duplicate();
+                            while (view.hasRemaining()) {
+                                destination.mChannel.write(view);
+                            }
+                            destination.mProgressCallBack.update(progress);
+                        } catch (IOException e) {
+                            active.remove(destination);
+                            destination.onFailed(e);
+                        }
+                    }
+                }
+                for (Destination destination : active) {
+                    if (destination.mCancelled) {
+                        destination.onCancelled();
+                        continue;
+                    }
+                    try {
+                        destination.mChannel.force(true);
+                        destination.close();
+                        destination.onComplete();
+                    } catch (IOException e) {
+                        destination.onFailed(e);
+                    }
+                }
+            } catch (IOException e) {
+                for (Destination destination : active) {
+                    if (!destination.mDone) {
+                        destination.onFailed(e);
+                    }
+                }
+            }
+        }
     }
 
-    private PendingIntent getStopPendingIntent() {
+    private PendingIntent getStopPendingIntent(File destination, int requestCode) {
         final Intent intent = new Intent(this, ExportUpdateService.class);
         intent.setAction(ACTION_STOP_EXPORTING);
-        return PendingIntent.getService(this, 0, intent, PendingIntent.FLAG_UPDATE_CURRENT);
+        if (destination != null) {
+            intent.putExtra(EXTRA_DEST_FILE, destination);
+        }
+        return PendingIntent.getService(this, requestCode, intent,
+                PendingIntent.FLAG_UPDATE_CURRENT);
     }
 }
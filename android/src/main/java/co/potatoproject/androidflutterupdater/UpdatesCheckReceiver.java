@@ -33,6 +33,7 @@ import org.json.JSONException;
 
 import co.potatoproject.androidflutterupdater.download.DownloadClient;
 import co.potatoproject.androidflutterupdater.misc.Constants;
+import co.potatoproject.androidflutterupdater.misc.UpdatesDiff;
 import co.potatoproject.androidflutterupdater.misc.Utils;
 import co.potatoproject.androidflutterupdater.model.UpdateInfo;
 
@@ -81,6 +82,9 @@ public class UpdatesCheckReceiver extends BroadcastReceiver {
         final File jsonNew = new File(json.getAbsolutePath() + UUID.randomUUID());
         String url = Utils.getServerURL(context);
         DownloadClient.DownloadCallback callback = new DownloadClient.DownloadCallback() {
+            private String mEtag;
+            private String mLastModified;
+
             @Override
             public void onFailure(boolean cancelled) {
                 Log.e(TAG, "Could not download updates list, scheduling new check");
@@ -90,16 +94,30 @@ public class UpdatesCheckReceiver extends BroadcastReceiver {
             @Override
             public void onResponse(int statusCode, String url,
                                    DownloadClient.Headers headers) {
+                mEtag = headers.get("ETag");
+                mLastModified = headers.get("Last-Modified");
+            }
+
+            @Override
+            public void onNotModified() {
+                Log.d(TAG, "Updates list didn't change");
+                preferences.edit()
+                        .putLong(Constants.PREF_LAST_UPDATE_CHECK, System.currentTimeMillis())
+                        .apply();
+                cancelUpdatesCheck(context);
             }
 
             @Override
             public void onSuccess(File destination) {
                 try {
-                    if (json.exists() && Utils.checkForNewUpdates(json, jsonNew, context)) {
+                    UpdatesDiff diff = Utils.diffUpdates(json, jsonNew, context);
+                    if (diff.hasNewUpdates()) {
                         showNotification(context);
                         updateRepeatingUpdatesCheck(context);
                     }
-                    jsonNew.renameTo(json);
+                    if (Utils.replaceUpdatesList(json, jsonNew, diff, context)) {
+                        Utils.saveCachedUpdateListValidators(context, mEtag, mLastModified);
+                    }
                     long currentMillis = System.currentTimeMillis();
                     preferences.edit()
                             .putLong(Constants.PREF_LAST_UPDATE_CHECK, currentMillis)
@@ -114,10 +132,12 @@ public class UpdatesCheckReceiver extends BroadcastReceiver {
         };
 
         try {
-            DownloadClient downloadClient = new DownloadClient.Builder()
+            DownloadClient downloadClient = Utils.setCachedUpdateListValidators(context,
+                    new DownloadClient.Builder())
                     .setUrl(url)
                     .setDestination(jsonNew)
                     .setDownloadCallback(callback)
+                    .setAcceptGzip(true)
                     .build();
             Log.i(TAG, "Starting download!");
             downloadClient.start();
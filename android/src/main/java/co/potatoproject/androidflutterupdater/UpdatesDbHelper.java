@@ -22,6 +22,7 @@ import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteOpenHelper;
 import android.provider.BaseColumns;
 
+import co.potatoproject.androidflutterupdater.download.ResumeJournal;
 import co.potatoproject.androidflutterupdater.model.Update;
 
 import java.io.File;
@@ -30,7 +31,7 @@ import java.util.List;
 
 public class UpdatesDbHelper extends SQLiteOpenHelper {
 
-    public static final int DATABASE_VERSION = 1;
+    public static final int DATABASE_VERSION = 2;
     public static final String DATABASE_NAME = "updates.db";
 
     public static class UpdateEntry implements BaseColumns {
@@ -44,6 +45,15 @@ public class UpdatesDbHelper extends SQLiteOpenHelper {
         public static final String COLUMN_NAME_SIZE = "size";
     }
 
+    public static class JournalEntry implements BaseColumns {
+        public static final String TABLE_NAME = "journals";
+        public static final String COLUMN_NAME_DOWNLOAD_ID = "download_id";
+        public static final String COLUMN_NAME_ETAG = "etag";
+        public static final String COLUMN_NAME_LAST_MODIFIED = "last_modified";
+        public static final String COLUMN_NAME_TOTAL_SIZE = "total_size";
+        public static final String COLUMN_NAME_RANGES = "ranges";
+    }
+
     private static final String SQL_CREATE_ENTRIES =
             "CREATE TABLE " + UpdateEntry.TABLE_NAME + " (" +
                     UpdateEntry._ID + " INTEGER PRIMARY KEY," +
@@ -55,24 +65,40 @@ public class UpdatesDbHelper extends SQLiteOpenHelper {
                     UpdateEntry.COLUMN_NAME_VERSION + " TEXT," +
                     UpdateEntry.COLUMN_NAME_SIZE + " INTEGER)";
 
+    private static final String SQL_CREATE_JOURNALS =
+            "CREATE TABLE " + JournalEntry.TABLE_NAME + " (" +
+                    JournalEntry._ID + " INTEGER PRIMARY KEY," +
+                    JournalEntry.COLUMN_NAME_DOWNLOAD_ID + " TEXT NOT NULL UNIQUE," +
+                    JournalEntry.COLUMN_NAME_ETAG + " TEXT," +
+                    JournalEntry.COLUMN_NAME_LAST_MODIFIED + " TEXT," +
+                    JournalEntry.COLUMN_NAME_TOTAL_SIZE + " INTEGER," +
+                    JournalEntry.COLUMN_NAME_RANGES + " TEXT)";
+
     private static final String SQL_DELETE_ENTRIES =
             "DROP TABLE IF EXISTS " + UpdateEntry.TABLE_NAME;
 
+    private static final String SQL_DELETE_JOURNALS =
+            "DROP TABLE IF EXISTS " + JournalEntry.TABLE_NAME;
+
     public UpdatesDbHelper(Context context) {
         super(context, DATABASE_NAME, null, DATABASE_VERSION);
     }
 
     public void onCreate(SQLiteDatabase db) {
         db.execSQL(SQL_CREATE_ENTRIES);
+        db.execSQL(SQL_CREATE_JOURNALS);
     }
 
     public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
-        db.execSQL(SQL_DELETE_ENTRIES);
-        onCreate(db);
+        if (oldVersion < 2) {
+            db.execSQL(SQL_CREATE_JOURNALS);
+        }
     }
 
     public void onDowngrade(SQLiteDatabase db, int oldVersion, int newVersion) {
-        onUpgrade(db, oldVersion, newVersion);
+        db.execSQL(SQL_DELETE_ENTRIES);
+        db.execSQL(SQL_DELETE_JOURNALS);
+        onCreate(db);
     }
 
     public long addUpdate(Update update) {
@@ -105,6 +131,7 @@ public class UpdatesDbHelper extends SQLiteOpenHelper {
         SQLiteDatabase db = getWritableDatabase();
         String selection = UpdateEntry.COLUMN_NAME_DOWNLOAD_ID + " = ?";
         String[] selectionArgs = {downloadId};
+        removeJournal(downloadId);
         return db.delete(UpdateEntry.TABLE_NAME, selection, selectionArgs) != 0;
     }
 
@@ -192,4 +219,50 @@ public class UpdatesDbHelper extends SQLiteOpenHelper {
         }
         return updates;
     }
+
+    public long saveJournal(String downloadId, ResumeJournal journal) {
+        SQLiteDatabase db = getWritableDatabase();
+        ContentValues values = new ContentValues();
+        values.put(JournalEntry.COLUMN_NAME_DOWNLOAD_ID, downloadId);
+        values.put(JournalEntry.COLUMN_NAME_ETAG, journal.getEtag());
+        values.put(JournalEntry.COLUMN_NAME_LAST_MODIFIED, journal.getLastModified());
+        values.put(JournalEntry.COLUMN_NAME_TOTAL_SIZE, journal.getTotalLength());
+        values.put(JournalEntry.COLUMN_NAME_RANGES, journal.getRanges());
+        return db.insertWithOnConflict(JournalEntry.TABLE_NAME, null, values,
+                SQLiteDatabase.CONFLICT_REPLACE);
+    }
+
+    public ResumeJournal getJournal(String downloadId) {
+        SQLiteDatabase db = getReadableDatabase();
+        String[] projection = {
+                JournalEntry.COLUMN_NAME_ETAG,
+                JournalEntry.COLUMN_NAME_LAST_MODIFIED,
+                JournalEntry.COLUMN_NAME_TOTAL_SIZE,
+                JournalEntry.COLUMN_NAME_RANGES,
+        };
+        String selection = JournalEntry.COLUMN_NAME_DOWNLOAD_ID + " = ?";
+        String[] selectionArgs = {downloadId};
+        Cursor cursor = db.query(JournalEntry.TABLE_NAME, projection, selection, selectionArgs,
+                null, null, null);
+        ResumeJournal journal = null;
+        if (cursor != null) {
+            if (cursor.moveToFirst()) {
+                journal = new ResumeJournal(
+                        cursor.getString(cursor.getColumnIndex(JournalEntry.COLUMN_NAME_ETAG)),
+                        cursor.getString(cursor.getColumnIndex(
+                                JournalEntry.COLUMN_NAME_LAST_MODIFIED)),
+                        cursor.getLong(cursor.getColumnIndex(JournalEntry.COLUMN_NAME_TOTAL_SIZE)),
+                        cursor.getString(cursor.getColumnIndex(JournalEntry.COLUMN_NAME_RANGES)));
+            }
+            cursor.close();
+        }
+        return journal;
+    }
+
+    public boolean removeJournal(String downloadId) {
+        SQLiteDatabase db = getWritableDatabase();
+        String selection = JournalEntry.COLUMN_NAME_DOWNLOAD_ID + " = ?";
+        String[] selectionArgs = {downloadId};
+        return db.delete(JournalEntry.TABLE_NAME, selection, selectionArgs) != 0;
+    }
 }
@@ -24,7 +24,7 @@ import android.text.TextUtils;
 import android.util.Log;
 
 import co.potatoproject.androidflutterupdater.misc.Constants;
-import co.potatoproject.androidflutterupdater.misc.Utils;
+import co.potatoproject.androidflutterupdater.misc.ZipIndex;
 import co.potatoproject.androidflutterupdater.model.Update;
 import co.potatoproject.androidflutterupdater.model.UpdateStatus;
 
@@ -35,8 +35,6 @@ import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.util.ArrayList;
 import java.util.List;
-import java.util.zip.ZipEntry;
-import java.util.zip.ZipFile;
 
 class ABUpdateInstaller {
 
@@ -68,13 +66,13 @@ class ABUpdateInstaller {
                 case UpdateEngine.UpdateStatusConstants.DOWNLOADING:
                 case UpdateEngine.UpdateStatusConstants.FINALIZING: {
                     if (update.getStatus() != UpdateStatus.INSTALLING) {
-                        update.setStatus(UpdateStatus.INSTALLING);
+                        mUpdaterController.setStatus(mDownloadId, UpdateStatus.INSTALLING);
                         mUpdaterController.notifyUpdateChange(mDownloadId);
                     }
                     int progress = Math.round(percent * 100);
-                    mUpdaterController.getActualUpdate(mDownloadId).setInstallProgress(progress);
+                    update.setInstallProgress(progress);
                     boolean finalizing = status == UpdateEngine.UpdateStatusConstants.FINALIZING;
-                    mUpdaterController.getActualUpdate(mDownloadId).setFinalizing(finalizing);
+                    update.setFinalizing(finalizing);
                     mUpdaterController.notifyInstallProgress(mDownloadId);
                 }
                 break;
@@ -82,7 +80,7 @@ class ABUpdateInstaller {
                 case UpdateEngine.UpdateStatusConstants.UPDATED_NEED_REBOOT: {
                     installationDone(true);
                     update.setInstallProgress(0);
-                    update.setStatus(UpdateStatus.INSTALLED);
+                    mUpdaterController.setStatus(mDownloadId, UpdateStatus.INSTALLED);
                     mUpdaterController.notifyUpdateChange(mDownloadId);
                     SharedPreferences pref = PreferenceManager.getDefaultSharedPreferences(
                             mContext);
@@ -108,8 +106,11 @@ class ABUpdateInstaller {
             if (errorCode != UpdateEngine.ErrorCodeConstants.SUCCESS) {
                 installationDone(false);
                 Update update = mUpdaterController.getActualUpdate(mDownloadId);
+                if (update == null) {
+                    return;
+                }
                 update.setInstallProgress(0);
-                update.setStatus(UpdateStatus.INSTALLATION_FAILED);
+                mUpdaterController.setStatus(mDownloadId, UpdateStatus.INSTALLATION_FAILED);
                 mUpdaterController.notifyUpdateChange(mDownloadId);
             }
         }
@@ -158,8 +159,7 @@ class ABUpdateInstaller {
         File file = mUpdaterController.getActualUpdate(mDownloadId).getFile();
         if (!file.exists()) {
             Log.e(TAG, "The given update doesn't exist");
-            mUpdaterController.getActualUpdate(downloadId)
-                    .setStatus(UpdateStatus.INSTALLATION_FAILED);
+            mUpdaterController.setStatus(downloadId, UpdateStatus.INSTALLATION_FAILED);
             mUpdaterController.notifyUpdateChange(downloadId);
             return false;
         }
@@ -167,10 +167,9 @@ class ABUpdateInstaller {
         long offset;
         String[] headerKeyValuePairs;
         try {
-            ZipFile zipFile = new ZipFile(file);
-            offset = Utils.getZipEntryOffset(zipFile, Constants.AB_PAYLOAD_BIN_PATH);
-            ZipEntry payloadPropEntry = zipFile.getEntry(Constants.AB_PAYLOAD_PROPERTIES_PATH);
-            try (InputStream is = zipFile.getInputStream(payloadPropEntry);
+            ZipIndex zipIndex = ZipIndex.get(file);
+            offset = zipIndex.getDataOffset(Constants.AB_PAYLOAD_BIN_PATH);
+            try (InputStream is = zipIndex.getInputStream(Constants.AB_PAYLOAD_PROPERTIES_PATH);
                  InputStreamReader isr = new InputStreamReader(is);
                  BufferedReader br = new BufferedReader(isr)) {
                 List<String> lines = new ArrayList<>();
@@ -180,11 +179,9 @@ class ABUpdateInstaller {
                 headerKeyValuePairs = new String[lines.size()];
                 headerKeyValuePairs = lines.toArray(headerKeyValuePairs);
             }
-            zipFile.close();
         } catch (IOException | IllegalArgumentException e) {
             Log.e(TAG, "Could not prepare " + file, e);
-            mUpdaterController.getActualUpdate(mDownloadId)
-                    .setStatus(UpdateStatus.INSTALLATION_FAILED);
+            mUpdaterController.setStatus(mDownloadId, UpdateStatus.INSTALLATION_FAILED);
             mUpdaterController.notifyUpdateChange(mDownloadId);
             return false;
         }
@@ -193,8 +190,7 @@ class ABUpdateInstaller {
             mBound = mUpdateEngine.bind(mUpdateEngineCallback);
             if (!mBound) {
                 Log.e(TAG, "Could not bind");
-                mUpdaterController.getActualUpdate(downloadId)
-                        .setStatus(UpdateStatus.INSTALLATION_FAILED);
+                mUpdaterController.setStatus(downloadId, UpdateStatus.INSTALLATION_FAILED);
                 mUpdaterController.notifyUpdateChange(downloadId);
                 return false;
             }
@@ -204,10 +200,11 @@ class ABUpdateInstaller {
                 .getBoolean(Constants.PREF_AB_PERF_MODE, false);
         mUpdateEngine.setPerformanceMode(enableABPerfMode);
 
+        // The callbacks can report the outcome before applyPayload() returns
+        mUpdaterController.setStatus(mDownloadId, UpdateStatus.INSTALLING);
         String zipFileUri = "file://" + file.getAbsolutePath();
         mUpdateEngine.applyPayload(zipFileUri, offset, 0, headerKeyValuePairs);
 
-        mUpdaterController.getActualUpdate(mDownloadId).setStatus(UpdateStatus.INSTALLING);
         mUpdaterController.notifyUpdateChange(mDownloadId);
 
         PreferenceManager.getDefaultSharedPreferences(mContext).edit()
@@ -263,8 +260,7 @@ class ABUpdateInstaller {
         mUpdateEngine.cancel();
         installationDone(false);
 
-        mUpdaterController.getActualUpdate(mDownloadId)
-                .setStatus(UpdateStatus.INSTALLATION_CANCELLED);
+        mUpdaterController.setStatus(mDownloadId, UpdateStatus.INSTALLATION_CANCELLED);
         mUpdaterController.notifyUpdateChange(mDownloadId);
 
         return true;
@@ -0,0 +1,146 @@
+/*
+ * Copyright (C) 2019 The Potato Open Sauce Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package co.potatoproject.androidflutterupdater.controller;
+
+import android.util.Log;
+
+import co.potatoproject.androidflutterupdater.model.UpdateInfo;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.UncheckedIOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.SignatureException;
+import java.util.BitSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Compares each chunk of the package with the SHA-256 listed in the updates
+ * list. Chunks are mapped and hashed in parallel on all the cores.
+ * Packages without chunk hashes are left to the other verifiers.
+ */
+class ChunkHashVerifier implements PackageVerifier {
+
+    private static final String TAG = "ChunkHashVerifier";
+
+    private static ForkJoinPool sPool;
+
+    private static synchronized ForkJoinPool getPool() {
+        if (sPool == null) {
+            sPool = new ForkJoinPool(Runtime.getRuntime().availableProcessors());
+        }
+        return sPool;
+    }
+
+    @Override
+    public void verify(UpdateInfo update, File file)
+            throws GeneralSecurityException, IOException {
+        List<String> hashes = update.getChunkHashes();
+        long chunkSize = update.getChunkSize();
+        if (hashes == null || chunkSize <= 0) {
+            return;
+        }
+        long length = file.length();
+        if ((length + chunkSize - 1) / chunkSize != hashes.size()) {
+            throw new SignatureException("Expected " + hashes.size() + " chunks of " +
+                    chunkSize + " bytes, the file is " + length + " bytes long");
+        }
+        long start = System.nanoTime();
+        try (RandomAccessFile raf = new RandomAccessFile(file, "r")) {
+            BitSet corrupted = new BitSet(hashes.size());
+            getPool().invoke(new ChunkTask(raf.getChannel(), chunkSize, hashes, 0,
+                    hashes.size(), corrupted));
+            if (!corrupted.isEmpty()) {
+                throw new CorruptChunksException(chunkSize, length, corrupted, hashes.size());
+            }
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+        Log.d(TAG, "Verified " + hashes.size() + " chunks in " +
+                (System.nanoTime() - start) / 1000000 + "ms");
+    }
+
+    /**
+     * Marks the corrupted chunks in the given range, splitting it until a
+     * task covers a single chunk
+     */
+    private static class ChunkTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final FileChannel mChannel;
+        private final long mChunkSize;
+        private final List<String> mHashes;
+        private final int mFrom;
+        private final int mTo;
+        private final BitSet mCorrupted;
+
+        ChunkTask(FileChannel channel, long chunkSize, List<String> hashes, int from, int to,
+                  BitSet corrupted) {
+            mChannel = channel;
+            mChunkSize = chunkSize;
+            mHashes = hashes;
+            mFrom = from;
+            mTo = to;
+            mCorrupted = corrupted;
+        }
+
+        @Override
+        protected void compute() {
+            if (mTo - mFrom > 1) {
+                int middle = (mFrom + mTo) >>> 1;
+                invokeAll(new ChunkTask(mChannel, mChunkSize, mHashes, mFrom, middle, mCorrupted),
+                        new ChunkTask(mChannel, mChunkSize, mHashes, middle, mTo, mCorrupted));
+                return;
+            }
+            try {
+                if (!hashChunk(mFrom).equalsIgnoreCase(mHashes.get(mFrom))) {
+                    Log.e(TAG, "Chunk " + mFrom + " is corrupted");
+                    synchronized (mCorrupted) {
+                        mCorrupted.set(mFrom);
+                    }
+                }
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+
+        private String hashChunk(int index) throws IOException {
+            MessageDigest digest;
+            try {
+                digest = MessageDigest.getInstance("SHA-256");
+            } catch (NoSuchAlgorithmException e) {
+                throw new IOException(e);
+            }
+            long offset = index * mChunkSize;
+            long size = Math.min(mChunkSize, mChannel.size() - offset);
+            MappedByteBuffer buffer = mChannel.map(FileChannel.MapMode.READ_ONLY, offset, size);
+            digest.update(buffer);
+            StringBuilder sb = new StringBuilder(64);
+            for (byte b : digest.digest()) {
+                sb.append(String.format(Locale.ROOT, "%02x", b));
+            }
+            return sb.toString();
+        }
+    }
+}
@@ -0,0 +1,70 @@
+/*
+ * Copyright (C) 2019 The Potato Open Sauce Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package co.potatoproject.androidflutterupdater.controller;
+
+import java.security.SignatureException;
+import java.util.BitSet;
+
+/**
+ * Thrown when some chunks of a package don't match their hash, the rest of
+ * the package can be kept
+ */
+class CorruptChunksException extends SignatureException {
+
+    private static final long serialVersionUID = 1L;
+
+    private final long mChunkSize;
+    private final long mLength;
+    private final BitSet mChunks;
+
+    CorruptChunksException(long chunkSize, long length, BitSet chunks, int chunkCount) {
+        super(chunks.cardinality() + " of " + chunkCount + " chunks are corrupted");
+        mChunkSize = chunkSize;
+        mLength = length;
+        mChunks = chunks;
+    }
+
+    /**
+     * @return the number of bytes in the corrupted chunks
+     */
+    long getCorruptedBytes() {
+        long bytes = 0;
+        for (int i = mChunks.nextSetBit(0); i >= 0; i = mChunks.nextSetBit(i + 1)) {
+            bytes += Math.min(mChunkSize, mLength - i * mChunkSize);
+        }
+        return bytes;
+    }
+
+    /**
+     * @return the ranges of the intact chunks, in the format used by ResumeJournal
+     */
+    String getIntactRanges() {
+        StringBuilder sb = new StringBuilder();
+        int chunks = (int) ((mLength + mChunkSize - 1) / mChunkSize);
+        for (int start = mChunks.nextClearBit(0); start < chunks; ) {
+            int end = mChunks.nextSetBit(start);
+            if (end < 0 || end > chunks) {
+                end = chunks;
+            }
+            if (sb.length() > 0) {
+                sb.append(',');
+            }
+            sb.append(start * mChunkSize).append('-').append(Math.min(mLength, end * mChunkSize));
+            start = mChunks.nextClearBit(end);
+        }
+        return sb.toString();
+    }
+}
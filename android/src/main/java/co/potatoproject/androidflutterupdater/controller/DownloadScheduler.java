@@ -0,0 +1,164 @@
+/*
+ * Copyright (C) 2019 The Potato Open Sauce Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package co.potatoproject.androidflutterupdater.controller;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Queue of the downloads waiting for one of the limited download slots.
+ * Only keeps the order, UpdaterController starts the downloads it hands out.
+ */
+public final class DownloadScheduler {
+
+    public static final int PRIORITY_LOW = -1;
+    public static final int PRIORITY_NORMAL = 0;
+    public static final int PRIORITY_HIGH = 1;
+
+    public enum Policy {
+        /** In the order they were queued */
+        FIFO,
+        /** Highest priority first, in the order they were queued if equal */
+        PRIORITY
+    }
+
+    static final class Item {
+        final String mDownloadId;
+        final boolean mResume;
+        final long mSequence;
+        int mPriority;
+
+        private Item(String downloadId, int priority, boolean resume, long sequence) {
+            mDownloadId = downloadId;
+            mPriority = priority;
+            mResume = resume;
+            mSequence = sequence;
+        }
+    }
+
+    private static final Comparator<Item> FIFO_ORDER = new Comparator<Item>() {
+        @Override
+        public int compare(Item a, Item b) {
+            return Long.compare(a.mSequence, b.mSequence);
+        }
+    };
+
+    private static final Comparator<Item> PRIORITY_ORDER = new Comparator<Item>() {
+        @Override
+        public int compare(Item a, Item b) {
+            int result = Integer.compare(b.mPriority, a.mPriority);
+            return result != 0 ? result : FIFO_ORDER.compare(a, b);
+        }
+    };
+
+    private final List<Item> mQueue = new ArrayList<>();
+    private long mSequence;
+    private int mMaxRunning;
+    private Policy mPolicy;
+
+    DownloadScheduler(int maxRunning, Policy policy) {
+        mMaxRunning = Math.max(1, maxRunning);
+        mPolicy = policy;
+    }
+
+    synchronized void setMaxRunning(int maxRunning) {
+        mMaxRunning = Math.max(1, maxRunning);
+    }
+
+    synchronized int getMaxRunning() {
+        return mMaxRunning;
+    }
+
+    synchronized void setPolicy(Policy policy) {
+        mPolicy = policy;
+    }
+
+    synchronized Policy getPolicy() {
+        return mPolicy;
+    }
+
+    /**
+     * Queue the download, or change its priority if it's already queued
+     */
+    synchronized void add(String downloadId, int priority, boolean resume) {
+        if (reprioritize(downloadId, priority)) {
+            return;
+        }
+        mQueue.add(new Item(downloadId, priority, resume, mSequence++));
+    }
+
+    /**
+     * @return false if the download isn't queued
+     */
+    synchronized boolean reprioritize(String downloadId, int priority) {
+        Item item = find(downloadId);
+        if (item == null) {
+            return false;
+        }
+        item.mPriority = priority;
+        return true;
+    }
+
+    synchronized boolean remove(String downloadId) {
+        Item item = find(downloadId);
+        return item != null && mQueue.remove(item);
+    }
+
+    synchronized boolean contains(String downloadId) {
+        return find(downloadId) != null;
+    }
+
+    /**
+     * @param running the number of downloads in progress
+     * @return the next download to start, or null if none can start now
+     */
+    synchronized Item poll(int running) {
+        if (running >= mMaxRunning || mQueue.isEmpty()) {
+            return null;
+        }
+        Item item = Collections.min(mQueue, getOrder());
+        mQueue.remove(item);
+        return item;
+    }
+
+    /**
+     * @return the ids of the queued downloads, in the order they'll start
+     */
+    synchronized List<String> getQueue() {
+        List<Item> items = new ArrayList<>(mQueue);
+        Collections.sort(items, getOrder());
+        List<String> ids = new ArrayList<>(items.size());
+        for (Item item : items) {
+            ids.add(item.mDownloadId);
+        }
+        return ids;
+    }
+
+    private Comparator<Item> getOrder() {
+        return mPolicy == Policy.FIFO ? FIFO_ORDER : PRIORITY_ORDER;
+    }
+
+    private Item find(String downloadId) {
+        for (Item item : mQueue) {
+            if (item.mDownloadId.equals(downloadId)) {
+                return item;
+            }
+        }
+        return null;
+    }
+}
@@ -0,0 +1,38 @@
+/*
+ * Copyright (C) 2019 The Potato Open Sauce Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package co.potatoproject.androidflutterupdater.controller;
+
+import co.potatoproject.androidflutterupdater.model.UpdateInfo;
+
+import java.io.File;
+import java.io.IOException;
+import java.security.GeneralSecurityException;
+
+/**
+ * A check that a downloaded package must pass before it can be installed.
+ * Verifiers run in order on a background thread, see
+ * {@link UpdaterController#addPackageVerifier(PackageVerifier)}.
+ */
+public interface PackageVerifier {
+
+    /**
+     * @param update the update the package belongs to
+     * @param file   the downloaded package
+     * @throws GeneralSecurityException if the package isn't the expected one
+     * @throws IOException              if the package can't be read
+     */
+    void verify(UpdateInfo update, File file) throws GeneralSecurityException, IOException;
+}
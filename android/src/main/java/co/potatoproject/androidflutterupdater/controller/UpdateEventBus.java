@@ -0,0 +1,219 @@
+/*
+ * Copyright (C) 2019 The Potato Open Sauce Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package co.potatoproject.androidflutterupdater.controller;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+
+import co.potatoproject.androidflutterupdater.model.UpdateSnapshot;
+
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
+
+/**
+ * Delivers the changes of the updates to the listeners, each one on the
+ * executor it registered with. The events carry the snapshot of the update
+ * they're about, so listeners don't need to look it up.
+ * <p>
+ * Progress events are coalesced: while a progress event of a download is
+ * waiting to be delivered, newer ones replace its snapshot instead of being
+ * queued after it. Slow listeners only get the latest progress.
+ */
+@SuppressWarnings("Convert2Lambda")
+public final class UpdateEventBus {
+
+    private static final String TAG = "UpdateEventBus";
+
+    public interface Listener {
+        void onStatusChanged(UpdateSnapshot update);
+
+        void onDownloadProgress(UpdateSnapshot update);
+
+        void onInstallProgress(UpdateSnapshot update);
+
+        void onRemoved(String downloadId);
+    }
+
+    public static final Executor MAIN_THREAD = new Executor() {
+        private final Handler mHandler = new Handler(Looper.getMainLooper());
+
+        @Override
+        public void execute(Runnable command) {
+            mHandler.post(command);
+        }
+    };
+
+    /**
+     * Calls the listener on the thread posting the event, for listeners that
+     * are cheap and thread safe
+     */
+    public static final Executor DIRECT = new Executor() {
+        @Override
+        public void execute(Runnable command) {
+            command.run();
+        }
+    };
+
+    private static final int STATUS = 0;
+    private static final int DOWNLOAD_PROGRESS = 1;
+    private static final int INSTALL_PROGRESS = 2;
+    private static final int REMOVED = 3;
+
+    private static final class Event {
+        final int mType;
+        final String mDownloadId;
+        UpdateSnapshot mUpdate;
+
+        private Event(int type, String downloadId, UpdateSnapshot update) {
+            mType = type;
+            mDownloadId = downloadId;
+            mUpdate = update;
+        }
+    }
+
+    private static final class Registration implements Runnable {
+        private final Listener mListener;
+        private final Executor mExecutor;
+        private final ArrayDeque<Event> mEvents = new ArrayDeque<>();
+        // The progress events still in mEvents, by download id
+        private final Map<String, Event> mDownloadProgress = new HashMap<>();
+        private final Map<String, Event> mInstallProgress = new HashMap<>();
+        private boolean mScheduled;
+        private volatile boolean mRegistered = true;
+
+        private Registration(Listener listener, Executor executor) {
+            mListener = listener;
+            mExecutor = executor;
+        }
+
+        void post(int type, String downloadId, UpdateSnapshot update) {
+            synchronized (this) {
+                Map<String, Event> pending = type == DOWNLOAD_PROGRESS ? mDownloadProgress :
+                        type == INSTALL_PROGRESS ? mInstallProgress : null;
+                Event event = pending != null ? pending.get(downloadId) : null;
+                if (pending == null) {
+                    // Later progress goes after this event
+                    mDownloadProgress.remove(downloadId);
+                    mInstallProgress.remove(downloadId);
+                }
+                if (event != null) {
+                    event.mUpdate = update;
+                } else {
+                    event = new Event(type, downloadId, update);
+                    mEvents.add(event);
+                    if (pending != null) {
+                        pending.put(downloadId, event);
+                    }
+                }
+                if (mScheduled) {
+                    return;
+                }
+                mScheduled = true;
+            }
+            mExecutor.execute(this);
+        }
+
+        @Override
+        public void run() {
+            Event[] events;
+            synchronized (this) {
+                events = mEvents.toArray(new Event[0]);
+                mEvents.clear();
+                mDownloadProgress.clear();
+                mInstallProgress.clear();
+                mScheduled = false;
+            }
+            for (Event event : events) {
+                if (!mRegistered) {
+                    return;
+                }
+                try {
+                    dispatch(event);
+                } catch (RuntimeException e) {
+                    Log.e(TAG, "Listener failed on " + event.mDownloadId, e);
+                }
+            }
+        }
+
+        private void dispatch(Event event) {
+            switch (event.mType) {
+                case STATUS:
+                    mListener.onStatusChanged(event.mUpdate);
+                    break;
+                case DOWNLOAD_PROGRESS:
+                    mListener.onDownloadProgress(event.mUpdate);
+                    break;
+                case INSTALL_PROGRESS:
+                    mListener.onInstallProgress(event.mUpdate);
+                    break;
+                case REMOVED:
+                    mListener.onRemoved(event.mDownloadId);
+                    break;
+            }
+        }
+    }
+
+    private final List<Registration> mRegistrations = new CopyOnWriteArrayList<>();
+
+    /**
+     * @param executor where the listener is called, one event at a time and in
+     *                 the order they were posted
+     */
+    public void register(Listener listener, Executor executor) {
+        unregister(listener);
+        mRegistrations.add(new Registration(listener, executor));
+    }
+
+    /**
+     * The listener isn't called anymore once this returns, unless it's being
+     * called right now on another thread
+     */
+    public void unregister(Listener listener) {
+        for (Registration registration : mRegistrations) {
+            if (registration.mListener == listener) {
+                registration.mRegistered = false;
+                mRegistrations.remove(registration);
+            }
+        }
+    }
+
+    void postStatusChanged(UpdateSnapshot update) {
+        post(STATUS, update.getDownloadId(), update);
+    }
+
+    void postDownloadProgress(UpdateSnapshot update) {
+        post(DOWNLOAD_PROGRESS, update.getDownloadId(), update);
+    }
+
+    void postInstallProgress(UpdateSnapshot update) {
+        post(INSTALL_PROGRESS, update.getDownloadId(), update);
+    }
+
+    void postRemoved(String downloadId) {
+        post(REMOVED, downloadId, null);
+    }
+
+    private void post(int type, String downloadId, UpdateSnapshot update) {
+        for (Registration registration : mRegistrations) {
+            registration.post(type, downloadId, update);
+        }
+    }
+}
@@ -25,12 +25,14 @@ import android.util.Log;
 import co.potatoproject.androidflutterupdater.R;
 import co.potatoproject.androidflutterupdater.misc.Constants;
 import co.potatoproject.androidflutterupdater.misc.FileUtils;
+import co.potatoproject.androidflutterupdater.misc.TaskExecutor;
 import co.potatoproject.androidflutterupdater.misc.Utils;
 import co.potatoproject.androidflutterupdater.model.UpdateInfo;
 import co.potatoproject.androidflutterupdater.model.UpdateStatus;
 
 import java.io.File;
 import java.io.IOException;
+import java.util.concurrent.Future;
 
 class UpdateInstaller {
 
@@ -39,7 +41,7 @@ class UpdateInstaller {
     private static UpdateInstaller sInstance = null;
     private static String sInstallingUpdate = null;
 
-    private Thread mPrepareUpdateThread;
+    private Future<?> mPrepareUpdateTask;
     private volatile boolean mCanCancel;
 
     private final Context mContext;
@@ -88,21 +90,35 @@ class UpdateInstaller {
 
         if (Utils.isEncrypted(mContext, update.getFile())) {
             // uncrypt rewrites the file so that it can be read without mounting
-            // the filesystem, so create a copy of it.
+            // the filesystem, so move it out of the way or create a copy of it.
             prepareForUncryptAndInstall(update);
         } else {
             installPackage(update.getFile(), downloadId);
         }
     }
 
-    private void installPackage(File update, String downloadId) {
+    private boolean installPackage(File update, String downloadId) {
         try {
             android.os.RecoverySystem.installPackage(mContext, update);
+            return true;
         } catch (IOException e) {
             Log.e(TAG, "Could not install update", e);
-            mUpdaterController.getActualUpdate(downloadId)
-                    .setStatus(UpdateStatus.INSTALLATION_FAILED);
+            mUpdaterController.setStatus(downloadId, UpdateStatus.INSTALLATION_FAILED);
             mUpdaterController.notifyUpdateChange(downloadId);
+            return false;
+        }
+    }
+
+    /**
+     * Undo the staging of a package that won't be installed
+     */
+    private static void unstage(File uncryptFile, File packageFile, boolean renamed) {
+        if (renamed) {
+            if (!uncryptFile.renameTo(packageFile)) {
+                Log.e(TAG, "Could not restore " + packageFile);
+            }
+        } else {
+            uncryptFile.delete();
         }
     }
 
@@ -128,28 +144,43 @@ class UpdateInstaller {
 
             @Override
             public void run() {
+                boolean renamed = false;
                 try {
-                    mCanCancel = true;
-                    FileUtils.copyFile(update.getFile(), uncryptFile, mProgressCallBack);
-                    mCanCancel = false;
-                    if (mPrepareUpdateThread.isInterrupted()) {
-                        mUpdaterController.getActualUpdate(update.getDownloadId())
-                                .setStatus(UpdateStatus.INSTALLATION_CANCELLED);
+                    long start = SystemClock.elapsedRealtime();
+                    // Both names are in the same directory, so this normally
+                    // is an instant rename instead of a multi-GB copy
+                    renamed = update.getFile().renameTo(uncryptFile);
+                    if (!renamed) {
+                        Log.d(TAG, "Could not rename the update, copying it");
+                        mCanCancel = true;
+                        FileUtils.copyFile(update.getFile(), uncryptFile, mProgressCallBack, true);
+                        mCanCancel = false;
+                    }
+                    Log.d(TAG, "Staged the update for uncrypt in " +
+                            (SystemClock.elapsedRealtime() - start) + "ms");
+                    if (Thread.currentThread().isInterrupted()) {
+                        mUpdaterController.setStatus(update.getDownloadId(),
+                                UpdateStatus.INSTALLATION_CANCELLED);
                         mUpdaterController.getActualUpdate(update.getDownloadId())
                                 .setInstallProgress(0);
-                        uncryptFile.delete();
+                        unstage(uncryptFile, update.getFile(), renamed);
                     } else {
-                        installPackage(uncryptFile, update.getDownloadId());
+                        mUpdaterController.getActualUpdate(update.getDownloadId())
+                                .setInstallProgress(100);
+                        mUpdaterController.notifyInstallProgress(update.getDownloadId());
+                        if (!installPackage(uncryptFile, update.getDownloadId())) {
+                            unstage(uncryptFile, update.getFile(), renamed);
+                        }
                     }
                 } catch (IOException e) {
                     Log.e(TAG, "Could not copy update", e);
-                    uncryptFile.delete();
-                    mUpdaterController.getActualUpdate(update.getDownloadId())
-                            .setStatus(UpdateStatus.INSTALLATION_FAILED);
+                    unstage(uncryptFile, update.getFile(), renamed);
+                    mUpdaterController.setStatus(update.getDownloadId(),
+                            UpdateStatus.INSTALLATION_FAILED);
                 } finally {
                     synchronized (UpdateInstaller.this) {
                         mCanCancel = false;
-                        mPrepareUpdateThread = null;
+                        mPrepareUpdateTask = null;
                         sInstallingUpdate = null;
                     }
                     mUpdaterController.notifyUpdateChange(update.getDownloadId());
@@ -157,13 +188,13 @@ class UpdateInstaller {
             }
         };
 
-        mPrepareUpdateThread = new Thread(copyUpdateRunnable);
-        mPrepareUpdateThread.start();
+        // Before staging starts, so that its outcome isn't overwritten
+        mUpdaterController.setStatus(update.getDownloadId(), UpdateStatus.INSTALLING);
+        mPrepareUpdateTask = TaskExecutor.submit(TaskExecutor.Pool.DISK,
+                "Uncrypt staging " + update.getDownloadId(), copyUpdateRunnable);
         sInstallingUpdate = update.getDownloadId();
         mCanCancel = false;
 
-        mUpdaterController.getActualUpdate(update.getDownloadId())
-                .setStatus(UpdateStatus.INSTALLING);
         mUpdaterController.notifyUpdateChange(update.getDownloadId());
     }
 
@@ -172,6 +203,6 @@ class UpdateInstaller {
             Log.d(TAG, "Nothing to cancel");
             return;
         }
-        mPrepareUpdateThread.interrupt();
+        mPrepareUpdateTask.cancel(true);
     }
 }
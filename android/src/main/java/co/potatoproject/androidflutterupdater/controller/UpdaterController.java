@@ -16,54 +16,67 @@
 package co.potatoproject.androidflutterupdater.controller;
 
 import android.content.Context;
-import android.content.Intent;
 import android.database.sqlite.SQLiteDatabase;
 import android.os.PowerManager;
 import android.os.SystemClock;
-import androidx.localbroadcastmanager.content.LocalBroadcastManager;
 import android.util.Log;
 
 import co.potatoproject.androidflutterupdater.UpdatesDbHelper;
+import co.potatoproject.androidflutterupdater.download.BandwidthLimiter;
+import co.potatoproject.androidflutterupdater.download.DeltaPatcher;
 import co.potatoproject.androidflutterupdater.download.DownloadClient;
+import co.potatoproject.androidflutterupdater.download.ResumeJournal;
+import co.potatoproject.androidflutterupdater.download.StreamingDigest;
+import co.potatoproject.androidflutterupdater.misc.Constants;
+import co.potatoproject.androidflutterupdater.misc.TaskExecutor;
+import co.potatoproject.androidflutterupdater.misc.UpdatesDiff;
 import co.potatoproject.androidflutterupdater.misc.Utils;
 import co.potatoproject.androidflutterupdater.model.Update;
 import co.potatoproject.androidflutterupdater.model.UpdateInfo;
+import co.potatoproject.androidflutterupdater.model.UpdateSnapshot;
 import co.potatoproject.androidflutterupdater.model.UpdateStatus;
 
 import java.io.File;
 import java.io.IOException;
+import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
-import java.util.HashMap;
+import java.util.Collection;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
 
 @SuppressWarnings("Convert2Lambda")
 public class UpdaterController {
 
-    public static final String ACTION_DOWNLOAD_PROGRESS = "action_download_progress";
-    public static final String ACTION_INSTALL_PROGRESS = "action_install_progress";
-    public static final String ACTION_UPDATE_REMOVED = "action_update_removed";
-    public static final String ACTION_UPDATE_STATUS = "action_update_status_change";
     public static final String EXTRA_DOWNLOAD_ID = "extra_download_id";
 
-    private final String TAG = "UpdaterController";
+    private static final String TAG = "UpdaterController";
 
     private static UpdaterController sUpdaterController;
 
     private static final int MAX_REPORT_INTERVAL_MS = 1000;
+    private static final int MAX_REPAIR_ATTEMPTS = 2;
 
     private final Context mContext;
-    private final LocalBroadcastManager mBroadcastManager;
+    private final UpdateEventBus mEventBus = new UpdateEventBus();
     private final UpdatesDbHelper mUpdatesDbHelper;
 
     private final PowerManager.WakeLock mWakeLock;
 
     private File mDownloadRoot;
 
-    private int mActiveDownloads = 0;
-    private Set<String> mVerifyingUpdates = new HashSet<>();
+    private final AtomicInteger mActiveDownloads = new AtomicInteger();
+    private final Set<String> mVerifyingUpdates = ConcurrentHashMap.newKeySet();
+    private final List<PackageVerifier> mVerifiers = new CopyOnWriteArrayList<>();
+    private final PackageVerifier mSignatureVerifier = new SignatureVerifier();
+    private final DownloadScheduler mScheduler;
+    // Held while handing out download slots, so that the limit can't be exceeded
+    private final Object mScheduleLock = new Object();
 
     public static synchronized UpdaterController getInstance() {
         return sUpdaterController;
@@ -77,7 +90,6 @@ public class UpdaterController {
     }
 
     private UpdaterController(Context context) {
-        mBroadcastManager = LocalBroadcastManager.getInstance(context);
         mUpdatesDbHelper = new UpdatesDbHelper(context);
         mDownloadRoot = Utils.getDownloadPath(context);
         PowerManager powerManager = (PowerManager) context.getSystemService(Context.POWER_SERVICE);
@@ -86,49 +98,118 @@ public class UpdaterController {
         mContext = context.getApplicationContext();
 
         Utils.cleanupDownloadsDir(context);
+        setBandwidthLimit(Utils.getBandwidthLimit(context));
+        mScheduler = new DownloadScheduler(Utils.getMaxConcurrentDownloads(context),
+                Utils.getDownloadPolicy(context));
+        mVerifiers.add(new ChunkHashVerifier());
 
         for (Update update : mUpdatesDbHelper.getUpdates()) {
             addUpdate(update, false);
         }
     }
 
-    private class DownloadEntry {
+    /**
+     * The download threads, the verification threads, the installers and the
+     * callers of the public methods all change the entries: the fields are
+     * guarded by the entry itself and the status only changes through moveTo().
+     */
+    static final class DownloadEntry {
         final Update mUpdate;
-        DownloadClient mDownloadClient;
+        volatile DownloadClient mDownloadClient;
+        StreamingDigest mDigest;
+        ResumeJournal mJournal;
+        // Changes when a client is cancelled, since its task can outlive it
+        int mGeneration;
+        // Whether the current download is the delta rather than the package
+        boolean mDelta;
+        boolean mDeltaFailed;
+        int mRepairAttempts;
+        // What readers see of mUpdate, replaced after each change
+        final AtomicReference<UpdateSnapshot> mSnapshot = new AtomicReference<>();
+        private long mSnapshotVersion;
 
-        private DownloadEntry(Update update) {
+        DownloadEntry(Update update) {
             mUpdate = update;
+            publish();
         }
+
+        synchronized UpdateSnapshot publish() {
+            UpdateSnapshot snapshot = new UpdateSnapshot(mUpdate, ++mSnapshotVersion);
+            mSnapshot.set(snapshot);
+            return snapshot;
+        }
+
+        /**
+         * Move the update to the given status, if UpdateStatus allows it and,
+         * when any are given, the update is in one of the expected statuses.
+         * Stale callbacks can't undo a more recent change this way.
+         *
+         * @return whether the status changed
+         */
+        synchronized boolean moveTo(UpdateStatus status, UpdateStatus... expected) {
+            UpdateStatus current = mUpdate.getStatus();
+            boolean allowed = expected.length == 0;
+            for (UpdateStatus from : expected) {
+                allowed |= current == from;
+            }
+            if (!allowed || !current.canMoveTo(status)) {
+                Log.w(TAG, mUpdate.getDownloadId() + ": refusing to go from " + current +
+                        " to " + status);
+                return false;
+            }
+            mUpdate.setStatus(status);
+            publish();
+            return true;
+        }
+
+        boolean isDownloadActive() {
+            UpdateStatus status = mUpdate.getStatus();
+            return status == UpdateStatus.STARTING || status == UpdateStatus.DOWNLOADING;
+        }
+    }
+
+    private final Map<String, DownloadEntry> mDownloads = new ConcurrentHashMap<>();
+
+    /**
+     * @return the new snapshot of the update, or null if it no longer exists
+     */
+    private UpdateSnapshot publish(String downloadId) {
+        DownloadEntry entry = mDownloads.get(downloadId);
+        return entry != null ? entry.publish() : null;
     }
 
-    private Map<String, DownloadEntry> mDownloads = new HashMap<>();
+    /**
+     * The changes of the updates are delivered to the listeners of this bus
+     */
+    public UpdateEventBus getEventBus() {
+        return mEventBus;
+    }
 
     void notifyUpdateChange(String downloadId) {
-        Intent intent = new Intent();
-        intent.setAction(ACTION_UPDATE_STATUS);
-        intent.putExtra(EXTRA_DOWNLOAD_ID, downloadId);
-        mBroadcastManager.sendBroadcast(intent);
+        UpdateSnapshot update = publish(downloadId);
+        if (update != null) {
+            mEventBus.postStatusChanged(update);
+        } else {
+            mEventBus.postRemoved(downloadId);
+        }
     }
 
     void notifyUpdateDelete(String downloadId) {
-        Intent intent = new Intent();
-        intent.setAction(ACTION_UPDATE_REMOVED);
-        intent.putExtra(EXTRA_DOWNLOAD_ID, downloadId);
-        mBroadcastManager.sendBroadcast(intent);
+        mEventBus.postRemoved(downloadId);
     }
 
     void notifyDownloadProgress(String downloadId) {
-        Intent intent = new Intent();
-        intent.setAction(ACTION_DOWNLOAD_PROGRESS);
-        intent.putExtra(EXTRA_DOWNLOAD_ID, downloadId);
-        mBroadcastManager.sendBroadcast(intent);
+        UpdateSnapshot update = publish(downloadId);
+        if (update != null) {
+            mEventBus.postDownloadProgress(update);
+        }
     }
 
     void notifyInstallProgress(String downloadId) {
-        Intent intent = new Intent();
-        intent.setAction(ACTION_INSTALL_PROGRESS);
-        intent.putExtra(EXTRA_DOWNLOAD_ID, downloadId);
-        mBroadcastManager.sendBroadcast(intent);
+        UpdateSnapshot update = publish(downloadId);
+        if (update != null) {
+            mEventBus.postInstallProgress(update);
+        }
     }
 
     private void tryReleaseWakelock() {
@@ -138,27 +219,72 @@ public class UpdaterController {
     }
 
     private void addDownloadClient(DownloadEntry entry, DownloadClient downloadClient) {
-        if (entry.mDownloadClient != null) {
-            return;
+        synchronized (entry) {
+            if (entry.mDownloadClient != null) {
+                return;
+            }
+            entry.mDownloadClient = downloadClient;
+            mActiveDownloads.incrementAndGet();
         }
-        entry.mDownloadClient = downloadClient;
-        mActiveDownloads++;
     }
 
     private void removeDownloadClient(DownloadEntry entry) {
-        if (entry.mDownloadClient == null) {
-            return;
+        synchronized (entry) {
+            if (entry.mDownloadClient == null) {
+                return;
+            }
+            entry.mDownloadClient = null;
+            mActiveDownloads.decrementAndGet();
+        }
+        scheduleDownloadsAsync();
+    }
+
+    /**
+     * Start queued downloads while there are free slots. Runs on its own
+     * since it's often needed while an entry is locked, and locking another
+     * one from there could deadlock.
+     */
+    private void scheduleDownloadsAsync() {
+        TaskExecutor.submit(TaskExecutor.Pool.CONTROL, "Schedule downloads", new Runnable() {
+            @Override
+            public void run() {
+                scheduleDownloads();
+            }
+        });
+    }
+
+    private void scheduleDownloads() {
+        synchronized (mScheduleLock) {
+            DownloadScheduler.Item item;
+            while ((item = mScheduler.poll(mActiveDownloads.get())) != null) {
+                DownloadEntry entry = mDownloads.get(item.mDownloadId);
+                if (entry == null) {
+                    continue;
+                }
+                synchronized (entry) {
+                    // Paused or deleted while queued
+                    if (entry.mUpdate.getStatus() != UpdateStatus.QUEUED) {
+                        continue;
+                    }
+                    Log.d(TAG, "Dequeuing " + item.mDownloadId);
+                    boolean started = item.mResume ? resumeDownload(entry) : startDownload(entry);
+                    if (!started && entry.mUpdate.getStatus() == UpdateStatus.QUEUED) {
+                        entry.moveTo(UpdateStatus.PAUSED_ERROR);
+                        notifyUpdateChange(item.mDownloadId);
+                    }
+                }
+            }
         }
-        entry.mDownloadClient = null;
-        mActiveDownloads--;
     }
 
     private DownloadClient.DownloadCallback getDownloadCallback(final String downloadId) {
+        // The entry can be removed while downloading, keep working on this one
+        final DownloadEntry entry = mDownloads.get(downloadId);
         return new DownloadClient.DownloadCallback() {
 
             @Override
             public void onResponse(int statusCode, String url, DownloadClient.Headers headers) {
-                final Update update = mDownloads.get(downloadId).mUpdate;
+                final Update update = entry.mUpdate;
                 String contentLength = headers.get("Content-Length");
                 if (contentLength != null) {
                     try {
@@ -170,39 +296,73 @@ public class UpdaterController {
                         Log.e(TAG, "Could not get content-length");
                     }
                 }
-                update.setStatus(UpdateStatus.DOWNLOADING);
+                if (!entry.moveTo(UpdateStatus.DOWNLOADING,
+                        UpdateStatus.STARTING, UpdateStatus.DOWNLOADING)) {
+                    return;
+                }
                 update.setPersistentStatus(UpdateStatus.Persistent.INCOMPLETE);
-                new Thread(new Runnable() {
+                TaskExecutor.submit(TaskExecutor.Pool.DB, "Save " + downloadId, new Runnable() {
                     @Override
                     public void run() {
                         mUpdatesDbHelper.addUpdateWithOnConflict(update,
                                 SQLiteDatabase.CONFLICT_REPLACE);
                     }
-                }).start();
+                });
                 notifyUpdateChange(downloadId);
             }
 
             @Override
             public void onSuccess(File destination) {
                 Log.d(TAG, "Download complete");
-                Update update = mDownloads.get(downloadId).mUpdate;
-                update.setStatus(UpdateStatus.VERIFYING);
-                removeDownloadClient(mDownloads.get(downloadId));
-                verifyUpdateAsync(downloadId);
+                Update update = entry.mUpdate;
+                StreamingDigest digest;
+                synchronized (entry) {
+                    // Paused or deleted in the meantime
+                    if (!entry.moveTo(UpdateStatus.VERIFYING,
+                            UpdateStatus.STARTING, UpdateStatus.DOWNLOADING)) {
+                        tryReleaseWakelock();
+                        return;
+                    }
+                    removeDownloadClient(entry);
+                    digest = entry.mDigest;
+                    entry.mDigest = null;
+                    entry.mJournal = null;
+                }
+                // With chunk hashes the verification finds the corrupted chunks
+                // and downloads only those again
+                boolean repairable = update.getChunkHashes() != null &&
+                        update.getChunkSize() > 0;
+                if (!repairable && digest != null && digest.getOffset() == destination.length() &&
+                        !digest.digest().equalsIgnoreCase(update.getDownloadId())) {
+                    Log.e(TAG, "Digest mismatch, the download is corrupted");
+                    if (destination.exists()) {
+                        destination.delete();
+                    }
+                    update.setPersistentStatus(UpdateStatus.Persistent.UNKNOWN);
+                    mUpdatesDbHelper.removeUpdate(downloadId);
+                    update.setProgress(0);
+                    update.setDownloadedBytes(0);
+                    entry.moveTo(UpdateStatus.VERIFICATION_FAILED, UpdateStatus.VERIFYING);
+                } else {
+                    verifyUpdateAsync(downloadId);
+                }
                 notifyUpdateChange(downloadId);
                 tryReleaseWakelock();
             }
 
             @Override
             public void onFailure(boolean cancelled) {
-                Update update = mDownloads.get(downloadId).mUpdate;
                 if (cancelled) {
                     Log.d(TAG, "Download cancelled");
                     // Already notified
                 } else {
                     Log.e(TAG, "Download failed");
-                    removeDownloadClient(mDownloads.get(downloadId));
-                    update.setStatus(UpdateStatus.PAUSED_ERROR);
+                    synchronized (entry) {
+                        if (entry.moveTo(UpdateStatus.PAUSED_ERROR,
+                                UpdateStatus.STARTING, UpdateStatus.DOWNLOADING)) {
+                            removeDownloadClient(entry);
+                        }
+                    }
                     notifyUpdateChange(downloadId);
                 }
                 tryReleaseWakelock();
@@ -211,6 +371,8 @@ public class UpdaterController {
     }
 
     private DownloadClient.ProgressListener getProgressListener(final String downloadId) {
+        final DownloadEntry entry = mDownloads.get(downloadId);
+        final Update update = entry.mUpdate;
         return new DownloadClient.ProgressListener() {
             private long mLastUpdate = 0;
             private int mProgress = 0;
@@ -218,7 +380,10 @@ public class UpdaterController {
             @Override
             public void update(long bytesRead, long contentLength, long speed, long eta,
                                boolean done) {
-                Update update = mDownloads.get(downloadId).mUpdate;
+                // Paused, the client is still being cancelled
+                if (!entry.isDownloadActive()) {
+                    return;
+                }
                 if (contentLength <= 0) {
                     if (update.getFileSize() <= 0) {
                         return;
@@ -231,10 +396,12 @@ public class UpdaterController {
                 }
                 final long now = SystemClock.elapsedRealtime();
                 int progress = Math.round(bytesRead * 100 / contentLength);
-                if (progress != mProgress || mLastUpdate - now > MAX_REPORT_INTERVAL_MS) {
+                if (progress != mProgress || done ||
+                        now - mLastUpdate > MAX_REPORT_INTERVAL_MS) {
                     mProgress = progress;
                     mLastUpdate = now;
                     update.setProgress(progress);
+                    update.setDownloadedBytes(bytesRead);
                     update.setEta(eta);
                     update.setSpeed(speed);
                     notifyDownloadProgress(downloadId);
@@ -243,39 +410,329 @@ public class UpdaterController {
         };
     }
 
+    /**
+     * The manifest uses the md5 of the package as id, hash the package while
+     * downloading it so that we can reject corrupted files right away
+     */
+    private StreamingDigest createDigest(UpdateInfo update) {
+        if (!Utils.getVerify(mContext) || !update.getDownloadId().matches("[0-9a-fA-F]{32}")) {
+            return null;
+        }
+        try {
+            return new StreamingDigest(StreamingDigest.MD5);
+        } catch (NoSuchAlgorithmException e) {
+            Log.e(TAG, "Could not create digest", e);
+            return null;
+        }
+    }
+
+    /**
+     * Called with the entry locked
+     */
+    private ResumeJournal.Store getJournalStore(final DownloadEntry entry) {
+        final String downloadId = entry.mUpdate.getDownloadId();
+        final int generation = entry.mGeneration;
+        return new ResumeJournal.Store() {
+            @Override
+            public void save(final ResumeJournal journal) {
+                TaskExecutor.submit(TaskExecutor.Pool.DB, "Save journal " + downloadId,
+                        new Runnable() {
+                            @Override
+                            public void run() {
+                                synchronized (entry) {
+                                    // Saved by a cancelled client, the next one
+                                    // may have changed the file since
+                                    if (entry.mGeneration != generation) {
+                                        return;
+                                    }
+                                }
+                                mUpdatesDbHelper.saveJournal(downloadId, journal);
+                            }
+                        });
+            }
+        };
+    }
+
+    /**
+     * @return the package the delta of the given update applies to, or null if
+     * the update has no delta or its source isn't in the download directory
+     */
+    private File getDeltaSource(UpdateInfo update) {
+        DownloadEntry entry = mDownloads.get(update.getDownloadId());
+        if (update.getDeltaUrl() == null || entry.mDeltaFailed ||
+                !update.getDownloadId().matches("[0-9a-fA-F]{32}")) {
+            return null;
+        }
+        DownloadEntry source = mDownloads.get(update.getDeltaSource());
+        if (source == null || source.mUpdate.getFile() == null ||
+                !source.mUpdate.getFile().exists() ||
+                source.mUpdate.getPersistentStatus() != UpdateStatus.Persistent.VERIFIED) {
+            return null;
+        }
+        return source.mUpdate.getFile();
+    }
+
+    private static File getPatchFile(UpdateInfo update) {
+        return new File(update.getFile().getPath() + Constants.DELTA_FILE_EXT);
+    }
+
+    private DownloadClient buildDeltaClient(String downloadId, File source) throws IOException {
+        Update update = mDownloads.get(downloadId).mUpdate;
+        return new DownloadClient.Builder()
+                .setUrl(update.getDeltaUrl())
+                .setDestination(getPatchFile(update))
+                .setDownloadCallback(getDeltaCallback(downloadId, source))
+                .setProgressListener(getProgressListener(downloadId))
+                .setUseDuplicateLinks(true)
+                .build();
+    }
+
+    private DownloadClient.DownloadCallback getDeltaCallback(final String downloadId,
+                                                             final File source) {
+        final DownloadEntry entry = mDownloads.get(downloadId);
+        final DownloadClient.DownloadCallback callback = getDownloadCallback(downloadId);
+        return new DownloadClient.DownloadCallback() {
+            @Override
+            public void onResponse(int statusCode, String url, DownloadClient.Headers headers) {
+                callback.onResponse(statusCode, url, headers);
+            }
+
+            @Override
+            public void onSuccess(File destination) {
+                Log.d(TAG, "Delta downloaded, rebuilding the package");
+                synchronized (entry) {
+                    if (!entry.moveTo(UpdateStatus.VERIFYING,
+                            UpdateStatus.STARTING, UpdateStatus.DOWNLOADING)) {
+                        tryReleaseWakelock();
+                        return;
+                    }
+                    removeDownloadClient(entry);
+                }
+                notifyUpdateChange(downloadId);
+                applyDeltaAsync(downloadId, source, destination);
+            }
+
+            @Override
+            public void onFailure(boolean cancelled) {
+                if (cancelled) {
+                    callback.onFailure(true);
+                    return;
+                }
+                Log.e(TAG, "Delta download failed, downloading the full package");
+                synchronized (entry) {
+                    if (!entry.isDownloadActive()) {
+                        tryReleaseWakelock();
+                        return;
+                    }
+                    removeDownloadClient(entry);
+                    fallBackToFullDownload(entry);
+                }
+            }
+        };
+    }
+
+    /**
+     * Rebuild the package from the source and the patch. The result is hashed
+     * while it's written, anything but the expected md5 means that the full
+     * package has to be downloaded.
+     */
+    private void applyDeltaAsync(final String downloadId, final File source, final File patch) {
+        final DownloadEntry entry = mDownloads.get(downloadId);
+        mVerifyingUpdates.add(downloadId);
+        TaskExecutor.submit(TaskExecutor.Pool.DISK, "Patch " + downloadId, new Runnable() {
+            @Override
+            public void run() {
+                final Update update = entry.mUpdate;
+                boolean rebuilt = false;
+                try {
+                    StreamingDigest digest = new StreamingDigest(StreamingDigest.MD5);
+                    DeltaPatcher.apply(source, patch, update.getFile(), digest,
+                            new DeltaPatcher.ProgressListener() {
+                                @Override
+                                public void update(long bytesWritten, long targetLength) {
+                                    update.setProgress(
+                                            Math.round(bytesWritten * 100f / targetLength));
+                                    update.setDownloadedBytes(bytesWritten);
+                                    notifyDownloadProgress(downloadId);
+                                }
+                            });
+                    rebuilt = digest.digest().equalsIgnoreCase(downloadId);
+                    if (!rebuilt) {
+                        Log.e(TAG, "Digest mismatch, the rebuilt package is corrupted");
+                    }
+                } catch (IOException | NoSuchAlgorithmException e) {
+                    Log.e(TAG, "Could not apply delta", e);
+                }
+                patch.delete();
+                synchronized (entry) {
+                    mVerifyingUpdates.remove(downloadId);
+                    if (update.getStatus() != UpdateStatus.VERIFYING) {
+                        // Deleted while patching
+                        update.getFile().delete();
+                    } else if (rebuilt) {
+                        entry.mDelta = false;
+                        verifyUpdateAsync(downloadId);
+                    } else {
+                        update.getFile().delete();
+                        fallBackToFullDownload(entry);
+                    }
+                }
+                tryReleaseWakelock();
+            }
+        });
+    }
+
+    /**
+     * Called with the entry locked
+     */
+    private void fallBackToFullDownload(DownloadEntry entry) {
+        File patch = getPatchFile(entry.mUpdate);
+        if (patch.exists()) {
+            patch.delete();
+        }
+        entry.mDelta = false;
+        entry.mDeltaFailed = true;
+        entry.mUpdate.setProgress(0);
+        entry.mUpdate.setDownloadedBytes(0);
+        if (!startDownload(entry)) {
+            entry.moveTo(UpdateStatus.PAUSED_ERROR);
+            notifyUpdateChange(entry.mUpdate.getDownloadId());
+        }
+    }
+
     private void verifyUpdateAsync(final String downloadId) {
+        final DownloadEntry entry = mDownloads.get(downloadId);
         mVerifyingUpdates.add(downloadId);
-        new Thread(new Runnable() {
+        TaskExecutor.submit(TaskExecutor.Pool.DISK, "Verify " + downloadId, new Runnable() {
             @Override
             public void run() {
-                Update update = mDownloads.get(downloadId).mUpdate;
+                Update update = entry.mUpdate;
                 File file = update.getFile();
-                if (file.exists() && verifyPackage(file)) {
+                CorruptChunksException corruption = null;
+                boolean verified;
+                try {
+                    verified = file.exists() && verifyPackage(update, file);
+                } catch (CorruptChunksException e) {
+                    corruption = e;
+                    verified = false;
+                }
+                if (!verified && corruption != null && repairDownload(downloadId, corruption)) {
+                    mVerifyingUpdates.remove(downloadId);
+                    return;
+                }
+                if (corruption != null) {
+                    file.delete();
+                }
+                if (verified && entry.moveTo(UpdateStatus.VERIFIED, UpdateStatus.VERIFYING)) {
                     file.setReadable(true, false);
                     update.setPersistentStatus(UpdateStatus.Persistent.VERIFIED);
                     mUpdatesDbHelper.changeUpdateStatus(update);
-                    update.setStatus(UpdateStatus.VERIFIED);
-                } else {
+                    mUpdatesDbHelper.removeJournal(downloadId);
+                } else if (!verified &&
+                        entry.moveTo(UpdateStatus.VERIFICATION_FAILED, UpdateStatus.VERIFYING)) {
                     update.setPersistentStatus(UpdateStatus.Persistent.UNKNOWN);
                     mUpdatesDbHelper.removeUpdate(downloadId);
                     update.setProgress(0);
-                    update.setStatus(UpdateStatus.VERIFICATION_FAILED);
+                    update.setDownloadedBytes(0);
                 }
                 mVerifyingUpdates.remove(downloadId);
                 notifyUpdateChange(downloadId);
             }
-        }).start();
+        });
+    }
+
+    /**
+     * Download the corrupted chunks of the package again, trusting the others.
+     * The regular resume logic fetches the missing ranges of the journal, the
+     * package is then verified again.
+     *
+     * @return whether the repair started
+     */
+    private boolean repairDownload(String downloadId, CorruptChunksException corruption) {
+        DownloadEntry entry = mDownloads.get(downloadId);
+        if (entry == null) {
+            return false;
+        }
+        synchronized (entry) {
+            return repairDownload(entry, corruption);
+        }
+    }
+
+    private boolean repairDownload(DownloadEntry entry, CorruptChunksException corruption) {
+        Update update = entry.mUpdate;
+        String downloadId = update.getDownloadId();
+        File file = update.getFile();
+        String intactRanges = corruption.getIntactRanges();
+        if (entry.mRepairAttempts >= MAX_REPAIR_ATTEMPTS || intactRanges.isEmpty() ||
+                entry.mDownloadClient != null ||
+                update.getStatus() != UpdateStatus.VERIFYING) {
+            return false;
+        }
+        entry.mRepairAttempts++;
+        long corruptedBytes = corruption.getCorruptedBytes();
+        Log.d(TAG, "Repairing " + corruptedBytes + " corrupted bytes of " + downloadId);
+
+        // Keep the validators of the download, so that the ranges come from the same file
+        ResumeJournal previous = mUpdatesDbHelper.getJournal(downloadId);
+        entry.mJournal = new ResumeJournal(previous != null ? previous.getEtag() : null,
+                previous != null ? previous.getLastModified() : null, file.length(),
+                intactRanges);
+        entry.mDigest = null;
+        DownloadClient downloadClient;
+        try {
+            downloadClient = new DownloadClient.Builder()
+                    .setUrl(update.getDownloadUrl())
+                    .setDestination(file)
+                    .setDownloadCallback(getDownloadCallback(downloadId))
+                    .setProgressListener(getProgressListener(downloadId))
+                    .setUseDuplicateLinks(true)
+                    .setMaxConnections(Utils.getMaxConnections())
+                    .setMirrorProbes(Utils.getMirrorProbes())
+                    .setResumeJournal(entry.mJournal, getJournalStore(entry))
+                    .build();
+        } catch (IOException exception) {
+            Log.e(TAG, "Could not build download client");
+            entry.mJournal = null;
+            return false;
+        }
+        mUpdatesDbHelper.saveJournal(downloadId, entry.mJournal);
+        update.setRepairedBytes(corruptedBytes);
+        addDownloadClient(entry, downloadClient);
+        entry.moveTo(UpdateStatus.STARTING);
+        notifyUpdateChange(downloadId);
+        downloadClient.resume();
+        mWakeLock.acquire();
+        return true;
     }
 
-    private boolean verifyPackage(File file) {
+    /**
+     * Add a check that packages have to pass after being downloaded. Checks run
+     * in the order they were added, the signature of the package is always
+     * verified last.
+     */
+    public void addPackageVerifier(PackageVerifier verifier) {
+        mVerifiers.add(verifier);
+    }
+
+    /**
+     * @throws CorruptChunksException if only some chunks are corrupted, the
+     *                                file is kept so that they can be repaired
+     */
+    private boolean verifyPackage(UpdateInfo update, File file) throws CorruptChunksException {
         if (file != null && file.exists() && !Utils.getVerify(mContext)) {
             Log.i(TAG, "Verification disabled, skipping");
             return true;
         }
         try {
-            android.os.RecoverySystem.verifyPackage(file, null, null);
+            for (PackageVerifier verifier : mVerifiers) {
+                verifier.verify(update, file);
+            }
+            mSignatureVerifier.verify(update, file);
             Log.e(TAG, "Verification successful");
             return true;
+        } catch (CorruptChunksException e) {
+            Log.e(TAG, "Verification failed", e);
+            throw e;
         } catch (Exception e) {
             Log.e(TAG, "Verification failed", e);
             if (file.exists()) {
@@ -300,9 +757,16 @@ public class UpdaterController {
                         update.setStatus(UpdateStatus.INSTALLED);
                     else
                         update.setStatus(UpdateStatus.PAUSED);
+                    // Segmented downloads preallocate the file, the journal knows
+                    // how much of it was actually downloaded
+                    ResumeJournal journal =
+                            mUpdatesDbHelper.getJournal(update.getDownloadId());
+                    long downloaded = journal != null && journal.getTotalLength() > 0 ?
+                            journal.getCompletedBytes() : update.getFile().length();
                     int progress = Math.round(
-                            (float) update.getFile().length() * 100 / update.getFileSize());
+                            (float) downloaded * 100 / update.getFileSize());
                     update.setProgress(progress);
+                    update.setDownloadedBytes(downloaded);
                 }
                 break;
         }
@@ -314,24 +778,36 @@ public class UpdaterController {
             DownloadEntry update = mDownloads.get(downloadId);
             if (update != null) {
                 update.mUpdate.setAvailableOnline(false);
+                update.publish();
             }
         }
     }
 
-    public void setUpdatesAvailableOnline(List<String> downloadIds, boolean purgeList) {
+    @SuppressWarnings("unchecked")
+    public void setUpdatesAvailableOnline(Collection<String> downloadIds, boolean purgeList) {
+        Set<String> onlineIds = downloadIds instanceof Set ?
+                (Set<String>) downloadIds : new HashSet<>(downloadIds);
         List<String> toRemove = new ArrayList<>();
         for (DownloadEntry entry : mDownloads.values()) {
-            boolean online = downloadIds.contains(entry.mUpdate.getDownloadId());
-            entry.mUpdate.setAvailableOnline(online);
+            boolean online = onlineIds.contains(entry.mUpdate.getDownloadId());
+            if (entry.mUpdate.getAvailableOnline() != online) {
+                entry.mUpdate.setAvailableOnline(online);
+                entry.publish();
+            }
             if (!online && purgeList &&
                     entry.mUpdate.getPersistentStatus() == UpdateStatus.Persistent.UNKNOWN) {
                 toRemove.add(entry.mUpdate.getDownloadId());
             }
         }
         for (String downloadId : toRemove) {
+            DownloadEntry entry = mDownloads.get(downloadId);
+            if (entry == null || isDownloading(downloadId) || isVerifyingUpdate(downloadId)) {
+                continue;
+            }
             Log.d(TAG, downloadId + " no longer available online, removing");
-            mDownloads.remove(downloadId);
-            notifyUpdateDelete(downloadId);
+            if (mDownloads.remove(downloadId, entry)) {
+                notifyUpdateDelete(downloadId);
+            }
         }
     }
 
@@ -339,13 +815,35 @@ public class UpdaterController {
         return addUpdate(update, true);
     }
 
+    /**
+     * Reconcile the known updates with a new updates list: add the new ones,
+     * refresh the changed ones and mark everything else as offline
+     */
+    public void applyUpdatesDiff(UpdatesDiff diff) {
+        for (UpdateInfo update : diff.getUpdates()) {
+            if (!mDownloads.containsKey(update.getDownloadId())) {
+                addUpdate(update);
+            }
+        }
+        for (UpdateInfo update : diff.getChanged()) {
+            addUpdate(update);
+        }
+        setUpdatesAvailableOnline(diff.getIds(), true);
+    }
+
     private boolean addUpdate(final UpdateInfo updateInfo, boolean availableOnline) {
         Log.d(TAG, "Adding download: " + updateInfo.getDownloadId());
-        if (mDownloads.containsKey(updateInfo.getDownloadId())) {
+        DownloadEntry entry = mDownloads.get(updateInfo.getDownloadId());
+        if (entry != null) {
             Log.d(TAG, "Download (" + updateInfo.getDownloadId() + ") already added");
-            Update updateAdded = mDownloads.get(updateInfo.getDownloadId()).mUpdate;
+            Update updateAdded = entry.mUpdate;
             updateAdded.setAvailableOnline(availableOnline && updateAdded.getAvailableOnline());
             updateAdded.setDownloadUrl(updateInfo.getDownloadUrl());
+            updateAdded.setDeltaSource(updateInfo.getDeltaSource());
+            updateAdded.setDeltaUrl(updateInfo.getDeltaUrl());
+            updateAdded.setDeltaSize(updateInfo.getDeltaSize());
+            updateAdded.setChunkHashes(updateInfo.getChunkSize(), updateInfo.getChunkHashes());
+            entry.publish();
             return false;
         }
         Update update = new Update(updateInfo);
@@ -356,16 +854,88 @@ public class UpdaterController {
             return false;
         }
         update.setAvailableOnline(availableOnline);
-        mDownloads.put(update.getDownloadId(), new DownloadEntry(update));
-        return true;
+        return mDownloads.putIfAbsent(update.getDownloadId(), new DownloadEntry(update)) == null;
     }
 
+    /**
+     * Queue the download with the default priority, it starts as soon as a
+     * download slot is free
+     */
     public boolean startDownload(String downloadId) {
-        Log.d(TAG, "Starting " + downloadId);
-        if (!mDownloads.containsKey(downloadId) || isDownloading(downloadId)) {
+        return enqueueDownload(downloadId, DownloadScheduler.PRIORITY_NORMAL);
+    }
+
+    /**
+     * Queue the download, or change its priority if it's already queued
+     */
+    public boolean enqueueDownload(String downloadId, int priority) {
+        Log.d(TAG, "Queuing " + downloadId + " with priority " + priority);
+        return enqueue(downloadId, priority, false);
+    }
+
+    private boolean enqueue(String downloadId, int priority, boolean resume) {
+        DownloadEntry entry = mDownloads.get(downloadId);
+        if (entry == null) {
+            return false;
+        }
+        synchronized (entry) {
+            if (entry.mUpdate.getStatus() == UpdateStatus.QUEUED) {
+                // Already waiting for a slot, only the priority changes
+                return mScheduler.reprioritize(downloadId, priority);
+            }
+            if (entry.mDownloadClient != null ||
+                    entry.mUpdate.getStatus() == UpdateStatus.VERIFYING ||
+                    !entry.moveTo(UpdateStatus.QUEUED)) {
+                return false;
+            }
+            mScheduler.add(downloadId, priority, resume);
+        }
+        notifyUpdateChange(downloadId);
+        scheduleDownloadsAsync();
+        return true;
+    }
+
+    /**
+     * @return false if the download isn't queued
+     */
+    public boolean reprioritizeDownload(String downloadId, int priority) {
+        return mScheduler.reprioritize(downloadId, priority);
+    }
+
+    /**
+     * @return the ids of the queued downloads, in the order they'll start
+     */
+    public List<String> getDownloadQueue() {
+        return mScheduler.getQueue();
+    }
+
+    public void setMaxConcurrentDownloads(int maxDownloads) {
+        mScheduler.setMaxRunning(maxDownloads);
+        scheduleDownloadsAsync();
+    }
+
+    public int getMaxConcurrentDownloads() {
+        return mScheduler.getMaxRunning();
+    }
+
+    public void setDownloadPolicy(DownloadScheduler.Policy policy) {
+        mScheduler.setPolicy(policy);
+    }
+
+    public DownloadScheduler.Policy getDownloadPolicy() {
+        return mScheduler.getPolicy();
+    }
+
+    /**
+     * Called with the entry locked
+     */
+    private boolean startDownload(DownloadEntry entry) {
+        Update update = entry.mUpdate;
+        String downloadId = update.getDownloadId();
+        if (!update.getStatus().canMoveTo(UpdateStatus.STARTING)) {
+            Log.e(TAG, "Can't download " + downloadId + " while " + update.getStatus());
             return false;
         }
-        Update update = mDownloads.get(downloadId).mUpdate;
         mDownloadRoot = Utils.getDownloadPath(mContext);
         if (mDownloadRoot == null)
             throw new RuntimeException("Unable to access download root!");
@@ -375,23 +945,38 @@ public class UpdaterController {
             Log.d(TAG, "Changing name with " + destination.getName());
         }
         update.setFile(destination);
+        File deltaSource = getDeltaSource(update);
+        entry.mDelta = deltaSource != null;
+        entry.mRepairAttempts = 0;
+        update.setRepairedBytes(0);
+        entry.mDigest = entry.mDelta ? null : createDigest(update);
+        entry.mJournal = entry.mDelta ? null : new ResumeJournal();
         DownloadClient downloadClient;
         try {
-            downloadClient = new DownloadClient.Builder()
-                    .setUrl(update.getDownloadUrl())
-                    .setDestination(update.getFile())
-                    .setDownloadCallback(getDownloadCallback(downloadId))
-                    .setProgressListener(getProgressListener(downloadId))
-                    .setUseDuplicateLinks(true)
-                    .build();
+            if (entry.mDelta) {
+                Log.d(TAG, "Downloading delta from " + deltaSource.getName());
+                downloadClient = buildDeltaClient(downloadId, deltaSource);
+            } else {
+                downloadClient = new DownloadClient.Builder()
+                        .setUrl(update.getDownloadUrl())
+                        .setDestination(update.getFile())
+                        .setDownloadCallback(getDownloadCallback(downloadId))
+                        .setProgressListener(getProgressListener(downloadId))
+                        .setUseDuplicateLinks(true)
+                        .setMaxConnections(Utils.getMaxConnections())
+                        .setMirrorProbes(Utils.getMirrorProbes())
+                        .setDigest(entry.mDigest)
+                        .setResumeJournal(entry.mJournal, getJournalStore(entry))
+                        .build();
+            }
         } catch (IOException exception) {
             Log.e(TAG, "Could not build download client");
-            update.setStatus(UpdateStatus.PAUSED_ERROR);
+            entry.moveTo(UpdateStatus.PAUSED_ERROR);
             notifyUpdateChange(downloadId);
             return false;
         }
-        addDownloadClient(mDownloads.get(downloadId), downloadClient);
-        update.setStatus(UpdateStatus.STARTING);
+        addDownloadClient(entry, downloadClient);
+        entry.moveTo(UpdateStatus.STARTING);
         notifyUpdateChange(downloadId);
         downloadClient.start();
         mWakeLock.acquire();
@@ -400,23 +985,54 @@ public class UpdaterController {
 
     public boolean resumeDownload(String downloadId) {
         Log.d(TAG, "Resuming " + downloadId);
-        if (!mDownloads.containsKey(downloadId) || isDownloading(downloadId)) {
+        return enqueue(downloadId, DownloadScheduler.PRIORITY_NORMAL, true);
+    }
+
+    /**
+     * Called with the entry locked
+     */
+    private boolean resumeDownload(DownloadEntry entry) {
+        Update update = entry.mUpdate;
+        String downloadId = update.getDownloadId();
+        if (!update.getStatus().canMoveTo(UpdateStatus.STARTING)) {
+            Log.e(TAG, "Can't resume " + downloadId + " while " + update.getStatus());
             return false;
         }
-        Update update = mDownloads.get(downloadId).mUpdate;
+        if (entry.mDelta) {
+            File deltaSource = getDeltaSource(update);
+            if (deltaSource != null && getPatchFile(update).exists()) {
+                return resumeDelta(entry, deltaSource);
+            }
+            entry.mDelta = false;
+        }
         File file = update.getFile();
         if (file == null || !file.exists()) {
             Log.e(TAG, "The destination file of " + downloadId + " doesn't exist, can't resume");
-            update.setStatus(UpdateStatus.PAUSED_ERROR);
+            entry.moveTo(UpdateStatus.PAUSED_ERROR);
             notifyUpdateChange(downloadId);
             return false;
         }
-        if (file.exists() && update.getFileSize() > 0 && file.length() >= update.getFileSize()) {
+        if (entry.mJournal == null) {
+            entry.mJournal = mUpdatesDbHelper.getJournal(downloadId);
+            if (entry.mJournal == null) {
+                entry.mJournal = new ResumeJournal();
+            }
+        }
+        boolean downloaded;
+        if (entry.mJournal.getTotalLength() > 0) {
+            downloaded = entry.mJournal.isComplete();
+        } else {
+            downloaded = update.getFileSize() > 0 && file.length() >= update.getFileSize();
+        }
+        if (downloaded) {
             Log.d(TAG, "File already downloaded, starting verification");
-            update.setStatus(UpdateStatus.VERIFYING);
+            entry.moveTo(UpdateStatus.VERIFYING);
             verifyUpdateAsync(downloadId);
             notifyUpdateChange(downloadId);
         } else {
+            if (entry.mDigest == null) {
+                entry.mDigest = createDigest(update);
+            }
             DownloadClient downloadClient;
             try {
                 downloadClient = new DownloadClient.Builder()
@@ -425,15 +1041,19 @@ public class UpdaterController {
                         .setDownloadCallback(getDownloadCallback(downloadId))
                         .setProgressListener(getProgressListener(downloadId))
                         .setUseDuplicateLinks(true)
+                        .setMaxConnections(Utils.getMaxConnections())
+                        .setMirrorProbes(Utils.getMirrorProbes())
+                        .setDigest(entry.mDigest)
+                        .setResumeJournal(entry.mJournal, getJournalStore(entry))
                         .build();
             } catch (IOException exception) {
                 Log.e(TAG, "Could not build download client");
-                update.setStatus(UpdateStatus.PAUSED_ERROR);
+                entry.moveTo(UpdateStatus.PAUSED_ERROR);
                 notifyUpdateChange(downloadId);
                 return false;
             }
-            addDownloadClient(mDownloads.get(downloadId), downloadClient);
-            update.setStatus(UpdateStatus.STARTING);
+            addDownloadClient(entry, downloadClient);
+            entry.moveTo(UpdateStatus.STARTING);
             notifyUpdateChange(downloadId);
             downloadClient.resume();
             mWakeLock.acquire();
@@ -441,49 +1061,109 @@ public class UpdaterController {
         return true;
     }
 
+    private boolean resumeDelta(DownloadEntry entry, File deltaSource) {
+        String downloadId = entry.mUpdate.getDownloadId();
+        DownloadClient downloadClient;
+        try {
+            downloadClient = buildDeltaClient(downloadId, deltaSource);
+        } catch (IOException exception) {
+            Log.e(TAG, "Could not build download client");
+            entry.moveTo(UpdateStatus.PAUSED_ERROR);
+            notifyUpdateChange(downloadId);
+            return false;
+        }
+        addDownloadClient(entry, downloadClient);
+        entry.moveTo(UpdateStatus.STARTING);
+        notifyUpdateChange(downloadId);
+        downloadClient.resume();
+        mWakeLock.acquire();
+        return true;
+    }
+
+    /**
+     * The task of a cancelled client can still be reading, hashing and
+     * saving its journal for a while. Give the next client copies of the
+     * state, so that the two never share it, and ignore what the old one
+     * still saves. Called with the entry locked.
+     */
+    private static void detachDownloadState(DownloadEntry entry) {
+        entry.mGeneration++;
+        entry.mDigest = entry.mDigest != null ? entry.mDigest.copy() : null;
+        entry.mJournal = entry.mJournal != null ? entry.mJournal.copy() : null;
+    }
+
     public boolean pauseDownload(String downloadId) {
         Log.d(TAG, "Pausing " + downloadId);
-        if (!isDownloading(downloadId)) {
+        DownloadEntry entry = mDownloads.get(downloadId);
+        if (entry == null) {
             return false;
         }
 
-        DownloadEntry entry = mDownloads.get(downloadId);
-        entry.mDownloadClient.cancel();
-        removeDownloadClient(entry);
-        entry.mUpdate.setStatus(UpdateStatus.PAUSED);
-        entry.mUpdate.setEta(0);
-        entry.mUpdate.setSpeed(0);
+        DownloadClient downloadClient = null;
+        synchronized (entry) {
+            if (entry.mUpdate.getStatus() == UpdateStatus.QUEUED) {
+                mScheduler.remove(downloadId);
+            } else if (entry.mDownloadClient == null) {
+                return false;
+            } else {
+                downloadClient = entry.mDownloadClient;
+                removeDownloadClient(entry);
+                detachDownloadState(entry);
+            }
+            entry.moveTo(UpdateStatus.PAUSED);
+            entry.mUpdate.setEta(0);
+            entry.mUpdate.setSpeed(0);
+        }
+        // Not with the entry locked: the client reports the progress with its
+        // own lock held, and the progress listener locks the entry
+        if (downloadClient != null) {
+            downloadClient.cancel();
+        }
         notifyUpdateChange(downloadId);
         return true;
     }
 
     private void deleteUpdateAsync(final Update update) {
-        new Thread(new Runnable() {
-            @Override
-            public void run() {
-                File file = update.getFile();
-                if (file.exists() && !file.delete()) {
-                    Log.e(TAG, "Could not delete " + file.getAbsolutePath());
-                }
-                mUpdatesDbHelper.removeUpdate(update.getDownloadId());
-            }
-        }).start();
+        TaskExecutor.submit(TaskExecutor.Pool.DISK, "Delete " + update.getDownloadId(),
+                new Runnable() {
+                    @Override
+                    public void run() {
+                        File file = update.getFile();
+                        if (file.exists() && !file.delete()) {
+                            Log.e(TAG, "Could not delete " + file.getAbsolutePath());
+                        }
+                        File patch = getPatchFile(update);
+                        if (patch.exists() && !patch.delete()) {
+                            Log.e(TAG, "Could not delete " + patch.getAbsolutePath());
+                        }
+                        mUpdatesDbHelper.removeUpdate(update.getDownloadId());
+                    }
+                });
     }
 
     public boolean deleteUpdate(String downloadId) {
         Log.d(TAG, "Cancelling " + downloadId);
-        if (!mDownloads.containsKey(downloadId) || isDownloading(downloadId)) {
+        DownloadEntry entry = mDownloads.get(downloadId);
+        if (entry == null) {
             return false;
         }
-        Update update = mDownloads.get(downloadId).mUpdate;
-        update.setStatus(UpdateStatus.DELETED);
-        update.setProgress(0);
-        update.setPersistentStatus(UpdateStatus.Persistent.UNKNOWN);
+        Update update = entry.mUpdate;
+        synchronized (entry) {
+            if (entry.mDownloadClient != null || !entry.moveTo(UpdateStatus.DELETED)) {
+                return false;
+            }
+            mScheduler.remove(downloadId);
+            entry.mDigest = null;
+            entry.mJournal = null;
+            update.setProgress(0);
+            update.setDownloadedBytes(0);
+            update.setPersistentStatus(UpdateStatus.Persistent.UNKNOWN);
+        }
         deleteUpdateAsync(update);
 
         if (!update.getAvailableOnline()) {
             Log.d(TAG, "Download no longer available online, removing");
-            mDownloads.remove(downloadId);
+            mDownloads.remove(downloadId, entry);
             notifyUpdateDelete(downloadId);
         } else {
             notifyUpdateChange(downloadId);
@@ -496,17 +1176,24 @@ public class UpdaterController {
         return mDownloads.keySet();
     }
 
+    /**
+     * @return the latest snapshot of each update
+     */
     public List<UpdateInfo> getUpdates() {
         List<UpdateInfo> updates = new ArrayList<>();
         for (DownloadEntry entry : mDownloads.values()) {
-            updates.add(entry.mUpdate);
+            updates.add(entry.mSnapshot.get());
         }
         return updates;
     }
 
-    public UpdateInfo getUpdate(String downloadId) {
+    /**
+     * @return the latest snapshot of the update, a consistent copy that doesn't
+     * change, or null if there's no such update
+     */
+    public UpdateSnapshot getUpdate(String downloadId) {
         DownloadEntry entry = mDownloads.get(downloadId);
-        return entry != null ? entry.mUpdate : null;
+        return entry != null ? entry.mSnapshot.get() : null;
     }
 
     Update getActualUpdate(String downloadId) {
@@ -514,13 +1201,23 @@ public class UpdaterController {
         return entry != null ? entry.mUpdate : null;
     }
 
+    /**
+     * Change the status of an update on behalf of the installers
+     *
+     * @return false if the update is gone or can't go to the given status
+     */
+    boolean setStatus(String downloadId, UpdateStatus status) {
+        DownloadEntry entry = mDownloads.get(downloadId);
+        return entry != null && entry.moveTo(status);
+    }
+
     public boolean isDownloading(String downloadId) {
-        return mDownloads.containsKey(downloadId) &&
-                mDownloads.get(downloadId).mDownloadClient != null;
+        DownloadEntry entry = mDownloads.get(downloadId);
+        return entry != null && entry.mDownloadClient != null;
     }
 
     public boolean hasActiveDownloads() {
-        return mActiveDownloads > 0;
+        return mActiveDownloads.get() > 0;
     }
 
     public boolean isVerifyingUpdate() {
@@ -555,4 +1252,13 @@ public class UpdaterController {
         }
         ABUpdateInstaller.getInstance(mContext, this).setPerformanceMode(enable);
     }
+
+    /**
+     * Limit the combined speed of all the downloads, including the ones in progress
+     *
+     * @param bytesPerSecond the limit, or BandwidthLimiter.UNLIMITED
+     */
+    public void setBandwidthLimit(long bytesPerSecond) {
+        BandwidthLimiter.setLimit(bytesPerSecond);
+    }
 }
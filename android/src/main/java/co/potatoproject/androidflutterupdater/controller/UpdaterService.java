@@ -20,15 +20,12 @@ import android.app.NotificationChannel;
 import android.app.NotificationManager;
 import android.app.PendingIntent;
 import android.app.Service;
-import android.content.BroadcastReceiver;
 import android.content.Context;
 import android.content.Intent;
-import android.content.IntentFilter;
 import android.os.Binder;
 import android.os.Bundle;
 import android.os.IBinder;
 import androidx.core.app.NotificationCompat;
-import androidx.localbroadcastmanager.content.LocalBroadcastManager;
 import android.text.format.Formatter;
 import android.util.Log;
 
@@ -39,6 +36,7 @@ import co.potatoproject.androidflutterupdater.misc.BuildInfoUtils;
 import co.potatoproject.androidflutterupdater.misc.StringGenerator;
 import co.potatoproject.androidflutterupdater.misc.Utils;
 import co.potatoproject.androidflutterupdater.model.UpdateInfo;
+import co.potatoproject.androidflutterupdater.model.UpdateSnapshot;
 import co.potatoproject.androidflutterupdater.model.UpdateStatus;
 
 import java.io.IOException;
@@ -66,7 +64,37 @@ public class UpdaterService extends Service {
     private final IBinder mBinder = new LocalBinder();
     private boolean mHasClients;
 
-    private BroadcastReceiver mBroadcastReceiver;
+    private final UpdateEventBus.Listener mUpdateListener = new UpdateEventBus.Listener() {
+        @Override
+        public void onStatusChanged(UpdateSnapshot update) {
+            setNotificationTitle(update);
+            Bundle extras = new Bundle();
+            extras.putString(UpdaterController.EXTRA_DOWNLOAD_ID, update.getDownloadId());
+            mNotificationBuilder.setExtras(extras);
+            handleUpdateStatusChange(update);
+        }
+
+        @Override
+        public void onDownloadProgress(UpdateSnapshot update) {
+            handleDownloadProgressChange(update);
+        }
+
+        @Override
+        public void onInstallProgress(UpdateSnapshot update) {
+            setNotificationTitle(update);
+            handleInstallProgress(update);
+        }
+
+        @Override
+        public void onRemoved(String downloadId) {
+            Bundle extras = mNotificationBuilder.getExtras();
+            if (extras != null && downloadId.equals(
+                    extras.getString(UpdaterController.EXTRA_DOWNLOAD_ID))) {
+                mNotificationBuilder.setExtras(null);
+                mNotificationManager.cancel(NOTIFICATION_ID);
+            }
+        }
+    };
     private NotificationCompat.Builder mNotificationBuilder;
     private NotificationManager mNotificationManager;
     private NotificationCompat.BigTextStyle mNotificationStyle;
@@ -98,46 +126,13 @@ public class UpdaterService extends Service {
                 PendingIntent.FLAG_UPDATE_CURRENT);
         mNotificationBuilder.setContentIntent(intent);
 
-        mBroadcastReceiver = new BroadcastReceiver() {
-            @Override
-            public void onReceive(Context context, Intent intent) {
-                String downloadId = intent.getStringExtra(UpdaterController.EXTRA_DOWNLOAD_ID);
-                if (UpdaterController.ACTION_UPDATE_STATUS.equals(intent.getAction())) {
-                    UpdateInfo update = mUpdaterController.getUpdate(downloadId);
-                    setNotificationTitle(update);
-                    Bundle extras = new Bundle();
-                    extras.putString(UpdaterController.EXTRA_DOWNLOAD_ID, downloadId);
-                    mNotificationBuilder.setExtras(extras);
-                    handleUpdateStatusChange(update);
-                } else if (UpdaterController.ACTION_DOWNLOAD_PROGRESS.equals(intent.getAction())) {
-                    UpdateInfo update = mUpdaterController.getUpdate(downloadId);
-                    handleDownloadProgressChange(update);
-                } else if (UpdaterController.ACTION_INSTALL_PROGRESS.equals(intent.getAction())) {
-                    UpdateInfo update = mUpdaterController.getUpdate(downloadId);
-                    setNotificationTitle(update);
-                    handleInstallProgress(update);
-                } else if (UpdaterController.ACTION_UPDATE_REMOVED.equals(intent.getAction())) {
-                    Bundle extras = mNotificationBuilder.getExtras();
-                    if (extras != null && downloadId.equals(
-                            extras.getString(UpdaterController.EXTRA_DOWNLOAD_ID))) {
-                        mNotificationBuilder.setExtras(null);
-                        mNotificationManager.cancel(NOTIFICATION_ID);
-                    }
-                }
-            }
-        };
-        IntentFilter intentFilter = new IntentFilter();
-        intentFilter.addAction(UpdaterController.ACTION_DOWNLOAD_PROGRESS);
-        intentFilter.addAction(UpdaterController.ACTION_INSTALL_PROGRESS);
-        intentFilter.addAction(UpdaterController.ACTION_UPDATE_STATUS);
-        intentFilter.addAction(UpdaterController.ACTION_UPDATE_REMOVED);
-        LocalBroadcastManager.getInstance(this).registerReceiver(mBroadcastReceiver, intentFilter);
+        mUpdaterController.getEventBus().register(mUpdateListener, UpdateEventBus.MAIN_THREAD);
 
     }
 
     @Override
     public void onDestroy() {
-        LocalBroadcastManager.getInstance(this).unregisterReceiver(mBroadcastReceiver);
+        mUpdaterController.getEventBus().unregister(mUpdateListener);
         super.onDestroy();
     }
 
@@ -200,8 +195,7 @@ public class UpdaterService extends Service {
                 }
             } catch (IOException e) {
                 Log.e(TAG, "Could not install update", e);
-                mUpdaterController.getActualUpdate(downloadId)
-                        .setStatus(UpdateStatus.INSTALLATION_FAILED);
+                mUpdaterController.setStatus(downloadId, UpdateStatus.INSTALLATION_FAILED);
                 mUpdaterController.notifyUpdateChange(downloadId);
             }
         } else if (ACTION_INSTALL_STOP.equals(intent.getAction())) {
@@ -256,6 +250,24 @@ public class UpdaterService extends Service {
                 mNotificationManager.notify(NOTIFICATION_ID, mNotificationBuilder.build());
                 break;
             }
+            case QUEUED: {
+                // Don't replace the notification of a download in progress
+                if (mUpdaterController.hasActiveDownloads()) {
+                    break;
+                }
+                mNotificationBuilder.mActions.clear();
+                mNotificationBuilder.setProgress(0, 0, true);
+                mNotificationStyle.setSummaryText(null);
+                String text = getString(R.string.download_queued_notification);
+                mNotificationStyle.bigText(text);
+                mNotificationBuilder.setStyle(mNotificationStyle);
+                mNotificationBuilder.setSmallIcon(android.R.drawable.stat_sys_download);
+                mNotificationBuilder.setTicker(text);
+                mNotificationBuilder.setOngoing(false);
+                mNotificationBuilder.setAutoCancel(false);
+                mNotificationManager.notify(NOTIFICATION_ID, mNotificationBuilder.build());
+                break;
+            }
             case DOWNLOADING: {
                 String text = getString(R.string.downloading_notification);
                 mNotificationStyle.bigText(text);
@@ -0,0 +1,114 @@
+/*
+ * Copyright (C) 2019 The Potato Open Sauce Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package co.potatoproject.androidflutterupdater.download;
+
+import android.os.SystemClock;
+
+import java.io.InterruptedIOException;
+
+/**
+ * Token bucket shared by all the downloads, so that together they don't read
+ * more than the configured amount of bytes per second. The limit can be changed
+ * at any time and applies to the downloads already running.
+ */
+public final class BandwidthLimiter {
+
+    public static final long UNLIMITED = 0;
+
+    // How much unused bandwidth can be accumulated
+    private static final long BURST_MILLIS = 250;
+    // Read in chunks small enough to keep the traffic smooth
+    private static final long CHUNKS_PER_SECOND = 8;
+
+    private static final Object sLock = new Object();
+    private static long sLimit = UNLIMITED;
+    private static long sTokens = 0;
+    private static long sLastRefill = 0;
+
+    private BandwidthLimiter() {
+    }
+
+    /**
+     * @param bytesPerSecond the new limit, or {@link #UNLIMITED}
+     */
+    public static void setLimit(long bytesPerSecond) {
+        synchronized (sLock) {
+            refill();
+            sLimit = Math.max(UNLIMITED, bytesPerSecond);
+            sTokens = Math.min(sTokens, getCapacity());
+            sLock.notifyAll();
+        }
+    }
+
+    public static long getLimit() {
+        synchronized (sLock) {
+            return sLimit;
+        }
+    }
+
+    /**
+     * @return how many bytes to read at most with the next read
+     */
+    static int getReadSize(int max) {
+        synchronized (sLock) {
+            if (sLimit == UNLIMITED) {
+                return max;
+            }
+            return (int) Math.max(1, Math.min(max, sLimit / CHUNKS_PER_SECOND));
+        }
+    }
+
+    /**
+     * Take the given amount of bytes from the bucket, blocking until the
+     * bucket is no longer in debt
+     */
+    static void consume(int bytes) throws InterruptedIOException {
+        synchronized (sLock) {
+            if (sLimit == UNLIMITED) {
+                return;
+            }
+            refill();
+            sTokens -= bytes;
+            while (sLimit != UNLIMITED && sTokens < 0) {
+                try {
+                    sLock.wait(Math.max(1, -sTokens * 1000 / sLimit));
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("Interrupted while throttled");
+                }
+                refill();
+            }
+        }
+    }
+
+    private static long getCapacity() {
+        return Math.max(1, sLimit * BURST_MILLIS / 1000);
+    }
+
+    private static void refill() {
+        final long now = SystemClock.elapsedRealtime();
+        if (sLimit == UNLIMITED) {
+            sLastRefill = now;
+            return;
+        }
+        final long tokens = (now - sLastRefill) * sLimit / 1000;
+        // Don't lose the time that wasn't worth a whole byte yet
+        if (tokens > 0) {
+            sTokens = Math.min(getCapacity(), sTokens + tokens);
+            sLastRefill = now;
+        }
+    }
+}
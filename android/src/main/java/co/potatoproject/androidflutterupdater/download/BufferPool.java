@@ -0,0 +1,53 @@
+/*
+ * Copyright (C) 2019 The Potato Open Sauce Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package co.potatoproject.androidflutterupdater.download;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+
+/**
+ * Pool of direct buffers shared by all the downloads. Direct buffers are
+ * expensive to allocate and are only freed by the GC, so keep a few around.
+ */
+final class BufferPool {
+
+    private static final int MAX_POOLED_BUFFERS = 8;
+
+    private static final ArrayDeque<ByteBuffer> sBuffers = new ArrayDeque<>();
+
+    private BufferPool() {
+    }
+
+    static synchronized ByteBuffer acquire(int size) {
+        Iterator<ByteBuffer> iterator = sBuffers.iterator();
+        while (iterator.hasNext()) {
+            ByteBuffer buffer = iterator.next();
+            if (buffer.capacity() == size) {
+                iterator.remove();
+                buffer.clear();
+                return buffer;
+            }
+        }
+        return ByteBuffer.allocateDirect(size);
+    }
+
+    static synchronized void release(ByteBuffer buffer) {
+        if (sBuffers.size() < MAX_POOLED_BUFFERS) {
+            sBuffers.push(buffer);
+        }
+    }
+}
@@ -0,0 +1,109 @@
+/*
+ * Copyright (C) 2019 The Potato Open Sauce Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package co.potatoproject.androidflutterupdater.download;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Accumulates downloaded data in a pooled direct buffer and writes it to the
+ * given position of a file channel once the buffer is full, so that each
+ * write syscall moves a large block without going through the heap.
+ * The channel is shared and not closed by this class.
+ */
+class ChannelWriter implements Closeable {
+
+    private final FileChannel mChannel;
+    private final long mSyncInterval;
+    private final ResumeJournal mJournal;
+    private ByteBuffer mBuffer;
+    private volatile long mPosition;
+    private long mUnsyncedBytes;
+
+    /**
+     * @param channel      destination channel
+     * @param position     offset of the first byte to write
+     * @param bufferSize   size of the buffer used to batch writes
+     * @param syncInterval see {@link DownloadClient.Builder#setSyncInterval(long)}
+     * @param journal      journal to update with the ranges written
+     */
+    ChannelWriter(FileChannel channel, long position, int bufferSize, long syncInterval,
+                  ResumeJournal journal) {
+        mChannel = channel;
+        mPosition = position;
+        mSyncInterval = syncInterval;
+        mJournal = journal;
+        mBuffer = BufferPool.acquire(bufferSize);
+    }
+
+    void write(byte[] b, int off, int len) throws IOException {
+        while (len > 0) {
+            int count = Math.min(len, mBuffer.remaining());
+            mBuffer.put(b, off, count);
+            off += count;
+            len -= count;
+            if (!mBuffer.hasRemaining()) {
+                flush();
+            }
+        }
+    }
+
+    /**
+     * Write the buffered data to the channel
+     */
+    void flush() throws IOException {
+        mBuffer.flip();
+        try {
+            while (mBuffer.hasRemaining()) {
+                int count = mChannel.write(mBuffer, mPosition);
+                mJournal.addRange(mPosition, mPosition + count);
+                mPosition += count;
+                mUnsyncedBytes += count;
+            }
+        } finally {
+            mBuffer.compact();
+        }
+        if (mSyncInterval > 0 && mUnsyncedBytes >= mSyncInterval) {
+            mChannel.force(false);
+            mUnsyncedBytes = 0;
+        }
+    }
+
+    /**
+     * @return the offset following the last byte written to the channel
+     */
+    long getPosition() {
+        return mPosition;
+    }
+
+    /**
+     * Flush the buffered data and return the buffer to the pool
+     */
+    @Override
+    public void close() throws IOException {
+        if (mBuffer == null) {
+            return;
+        }
+        try {
+            flush();
+        } finally {
+            BufferPool.release(mBuffer);
+            mBuffer = null;
+        }
+    }
+}
@@ -0,0 +1,176 @@
+/*
+ * Copyright (C) 2019 The Potato Open Sauce Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package co.potatoproject.androidflutterupdater.download;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Rebuilds a package from an older one and a binary patch, streaming both.
+ * The patch may be gzip compressed and has the following layout, with all
+ * numbers big endian:
+ * <pre>
+ * int  magic ("UDLT")
+ * int  version (1)
+ * long length of the source file
+ * long length of the target file
+ * ops, each one starting with its code:
+ *   COPY (1): long source offset, int length
+ *             copy length bytes of the source
+ *   ADD  (2): long source offset, int length, length bytes
+ *             add each byte to the matching byte of the source, bsdiff style
+ *   DATA (3): int length, length bytes
+ *             bytes that aren't in the source
+ *   END  (0)
+ * </pre>
+ */
+public final class DeltaPatcher {
+
+    private static final int MAGIC = 0x55444c54; // UDLT
+    private static final int VERSION = 1;
+
+    private static final int OP_END = 0;
+    private static final int OP_COPY = 1;
+    private static final int OP_ADD = 2;
+    private static final int OP_DATA = 3;
+
+    private static final int BUFFER_SIZE = 256 * 1024;
+
+    public interface ProgressListener {
+        void update(long bytesWritten, long targetLength);
+    }
+
+    private DeltaPatcher() {
+    }
+
+    /**
+     * Apply the patch to the source file. The thread can be interrupted to
+     * stop, in which case InterruptedIOException is thrown.
+     *
+     * @param source   the file the patch was created from
+     * @param patch    the patch
+     * @param target   the file to create, overwritten if it exists
+     * @param digest   fed with the target while it's written, can be null
+     * @param listener notified of the progress, can be null
+     * @throws IOException if the patch is invalid, doesn't match the source or
+     *                     any of the files can't be accessed
+     */
+    public static void apply(File source, File patch, File target, StreamingDigest digest,
+                             ProgressListener listener) throws IOException {
+        try (RandomAccessFile sourceFile = new RandomAccessFile(source, "r");
+             DataInputStream is = new DataInputStream(openPatch(patch));
+             OutputStream os = new BufferedOutputStream(new FileOutputStream(target),
+                     BUFFER_SIZE)) {
+            if (is.readInt() != MAGIC || is.readInt() != VERSION) {
+                throw new IOException("Not a supported patch");
+            }
+            long sourceLength = is.readLong();
+            long targetLength = is.readLong();
+            if (sourceLength != sourceFile.length()) {
+                throw new IOException("The patch is for a different source, expected " +
+                        sourceLength + " bytes, got " + sourceFile.length());
+            }
+            if (digest != null) {
+                digest.reset();
+            }
+
+            byte[] buffer = new byte[BUFFER_SIZE];
+            byte[] diff = new byte[BUFFER_SIZE];
+            long written = 0;
+            long lastReport = 0;
+            for (int op; (op = is.readUnsignedByte()) != OP_END; ) {
+                long offset = op == OP_DATA ? -1 : is.readLong();
+                int length = is.readInt();
+                if (length < 0 || written + length > targetLength ||
+                        (offset >= 0 && offset + length > sourceLength)) {
+                    throw new IOException("Invalid op " + op + " at " + written);
+                }
+                for (int remaining = length; remaining > 0; ) {
+                    int count = Math.min(remaining, BUFFER_SIZE);
+                    switch (op) {
+                        case OP_COPY:
+                            sourceFile.seek(offset);
+                            sourceFile.readFully(buffer, 0, count);
+                            break;
+                        case OP_ADD:
+                            sourceFile.seek(offset);
+                            sourceFile.readFully(buffer, 0, count);
+                            is.readFully(diff, 0, count);
+                            for (int i = 0; i < count; i++) {
+                                buffer[i] += diff[i];
+                            }
+                            break;
+                        case OP_DATA:
+                            is.readFully(buffer, 0, count);
+                            break;
+                        default:
+                            throw new IOException("Unknown op " + op + " at " + written);
+                    }
+                    os.write(buffer, 0, count);
+                    if (digest != null) {
+                        digest.update(buffer, 0, count);
+                    }
+                    offset += count;
+                    written += count;
+                    remaining -= count;
+                    // A single op can cover most of the package
+                    if (Thread.interrupted()) {
+                        throw new InterruptedIOException("Patching interrupted at " + written);
+                    }
+                }
+                if (listener != null && written - lastReport >= BUFFER_SIZE * 4) {
+                    lastReport = written;
+                    listener.update(written, targetLength);
+                }
+            }
+            if (written != targetLength) {
+                throw new IOException("Incomplete patch, wrote " + written + " of " +
+                        targetLength + " bytes");
+            }
+            if (listener != null) {
+                listener.update(written, targetLength);
+            }
+        } catch (EOFException e) {
+            throw new IOException("Truncated patch", e);
+        }
+    }
+
+    private static InputStream openPatch(File patch) throws IOException {
+        BufferedInputStream is = new BufferedInputStream(new FileInputStream(patch),
+                BUFFER_SIZE);
+        try {
+            is.mark(2);
+            int magic = is.read() | (is.read() << 8);
+            is.reset();
+            return magic == GZIPInputStream.GZIP_MAGIC ?
+                    new GZIPInputStream(is, BUFFER_SIZE) : is;
+        } catch (IOException e) {
+            is.close();
+            throw e;
+        }
+    }
+}
@@ -22,12 +22,36 @@ import java.util.Map;
 
 public interface DownloadClient {
 
+    int DEFAULT_BUFFER_SIZE = 256 * 1024;
+
+    /**
+     * Never fsync the destination file, except before persisting the resume journal
+     */
+    long SYNC_NEVER = -1;
+
+    /**
+     * Fsync the destination file only once the download is complete
+     */
+    long SYNC_ON_COMPLETE = 0;
+
+    long DEFAULT_PROGRESS_INTERVAL_MS = 500;
+
+    long DEFAULT_PROGRESS_INTERVAL_BYTES = 1024 * 1024;
+
     interface DownloadCallback {
         void onResponse(int statusCode, String url, Headers headers);
 
         void onSuccess(File destination);
 
         void onFailure(boolean cancelled);
+
+        /**
+         * The remote file matches the validators given to
+         * {@link Builder#setValidators(String, String)}. Nothing was written.
+         */
+        default void onNotModified() {
+            onFailure(false);
+        }
     }
 
     interface ProgressListener {
@@ -64,6 +88,18 @@ public interface DownloadClient {
         private DownloadClient.DownloadCallback mCallback;
         private DownloadClient.ProgressListener mProgressListener;
         private boolean mUseDuplicateLinks;
+        private int mMaxConnections = 1;
+        private int mMirrorProbes = 0;
+        private int mBufferSize = DEFAULT_BUFFER_SIZE;
+        private long mSyncInterval = SYNC_ON_COMPLETE;
+        private long mProgressIntervalMillis = DEFAULT_PROGRESS_INTERVAL_MS;
+        private long mProgressIntervalBytes = DEFAULT_PROGRESS_INTERVAL_BYTES;
+        private String mIfNoneMatch;
+        private String mIfModifiedSince;
+        private boolean mAcceptGzip;
+        private StreamingDigest mDigest;
+        private ResumeJournal mJournal;
+        private ResumeJournal.Store mJournalStore;
 
         public DownloadClient build() throws IOException {
             if (mUrl == null) {
@@ -74,7 +110,9 @@ public interface DownloadClient {
                 throw new IllegalStateException("No download callback defined");
             }
             return new HttpURLConnectionClient(mUrl, mDestination, mProgressListener, mCallback,
-                    mUseDuplicateLinks);
+                    mUseDuplicateLinks, mMaxConnections, mMirrorProbes, mBufferSize, mSyncInterval,
+                    mProgressIntervalMillis, mProgressIntervalBytes, mIfNoneMatch,
+                    mIfModifiedSince, mAcceptGzip, mDigest, mJournal, mJournalStore);
         }
 
         public Builder setUrl(String url) {
@@ -101,5 +139,102 @@ public interface DownloadClient {
             mUseDuplicateLinks = useDuplicateLinks;
             return this;
         }
+
+        /**
+         * Download the file using up to the given number of parallel connections,
+         * each one fetching a different byte range. Servers that don't support
+         * partial content requests are downloaded with a single connection.
+         */
+        public Builder setMaxConnections(int maxConnections) {
+            mMaxConnections = Math.max(1, maxConnections);
+            return this;
+        }
+
+        /**
+         * When the server offers duplicate links, download a small part of the
+         * file from up to the given number of them at the same time and use the
+         * fastest one. Connections that become much slower than what their mirror
+         * achieved move to the next best one. Only used with duplicate links.
+         */
+        public Builder setMirrorProbes(int mirrorProbes) {
+            mMirrorProbes = Math.max(0, mirrorProbes);
+            return this;
+        }
+
+        /**
+         * Size of the buffer used to batch writes to the destination file. Each
+         * connection uses its own buffer.
+         */
+        public Builder setBufferSize(int bufferSize) {
+            if (bufferSize <= 0) {
+                throw new IllegalArgumentException("Invalid buffer size " + bufferSize);
+            }
+            mBufferSize = bufferSize;
+            return this;
+        }
+
+        /**
+         * Fsync the destination file every time the given amount of bytes has been
+         * written, and once the download is complete. Use {@link #SYNC_ON_COMPLETE}
+         * to only sync at the end or {@link #SYNC_NEVER} to leave it to the kernel.
+         */
+        public Builder setSyncInterval(long syncInterval) {
+            mSyncInterval = syncInterval;
+            return this;
+        }
+
+        /**
+         * Only download the file if it changed since the copy described by the
+         * given ETag and Last-Modified values, either of which can be null.
+         * Otherwise DownloadCallback.onNotModified() is called.
+         */
+        public Builder setValidators(String etag, String lastModified) {
+            mIfNoneMatch = etag;
+            mIfModifiedSince = lastModified;
+            return this;
+        }
+
+        /**
+         * Let the server compress the file with gzip. The file is saved as it
+         * was sent, so the destination may or may not be compressed. Meant for
+         * text files, resuming a compressed download isn't possible.
+         */
+        public Builder setAcceptGzip(boolean acceptGzip) {
+            mAcceptGzip = acceptGzip;
+            return this;
+        }
+
+        /**
+         * Report the progress once the given time has passed or the given amount
+         * of bytes has been read since the last report, whichever comes first.
+         * The completion of the download is always reported.
+         */
+        public Builder setProgressInterval(long millis, long bytes) {
+            mProgressIntervalMillis = millis;
+            mProgressIntervalBytes = bytes;
+            return this;
+        }
+
+        /**
+         * Hash the data while it's downloaded. When resuming, pass the digest
+         * used by the previous client to avoid hashing the existing data again.
+         * The digest is complete once DownloadCallback.onSuccess() is called.
+         */
+        public Builder setDigest(StreamingDigest digest) {
+            mDigest = digest;
+            return this;
+        }
+
+        /**
+         * Keep track of the downloaded ranges and of the version of the remote
+         * file in the given journal. The journal is periodically passed to the
+         * store, so that resume() can continue from the exact same point even
+         * after the process died.
+         */
+        public Builder setResumeJournal(ResumeJournal journal, ResumeJournal.Store store) {
+            mJournal = journal;
+            mJournalStore = store;
+            return this;
+        }
     }
 }
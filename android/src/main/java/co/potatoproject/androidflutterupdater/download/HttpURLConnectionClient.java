@@ -18,17 +18,28 @@ package co.potatoproject.androidflutterupdater.download;
 import android.os.SystemClock;
 import android.util.Log;
 
+import co.potatoproject.androidflutterupdater.misc.TaskExecutor;
+
 import java.io.File;
-import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.OutputStream;
+import java.io.RandomAccessFile;
 import java.net.HttpURLConnection;
+import java.net.MalformedURLException;
 import java.net.URL;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.Comparator;
 import java.util.List;
 import java.util.Map;
 import java.util.PriorityQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -36,14 +47,45 @@ public class HttpURLConnectionClient implements DownloadClient {
 
     private final static String TAG = "HttpURLConnectionClient";
 
+    private static final int READ_SIZE = 64 * 1024;
+
+    private static final long FOLLOW_INTERVAL_MS = 200;
+
+    private static final long CHECKPOINT_INTERVAL_MS = 5000;
+
+    // Amount of data downloaded from each mirror to measure its speed
+    private static final long PROBE_SIZE = 512 * 1024;
+    private static final long PROBE_TIMEOUT_MS = 5000;
+    // Switch mirror when a connection gets slower than this fraction of the
+    // speed measured by the probe
+    private static final long MIRROR_SAMPLE_INTERVAL_MS = 10000;
+    private static final double MIRROR_SWITCH_FRACTION = 0.25;
+
+    // Don't split the download in segments smaller than this
+    private static final long MIN_SEGMENT_SIZE = 4 * 1024 * 1024;
+
+    private static final Pattern CONTENT_RANGE_PATTERN =
+            Pattern.compile("(?i)bytes\\s+([0-9]+)-([0-9]+)/([0-9]+)");
+
     private HttpURLConnection mClient;
 
     private final File mDestination;
     private final DownloadClient.ProgressListener mProgressListener;
     private final DownloadClient.DownloadCallback mCallback;
     private final boolean mUseDuplicateLinks;
+    private final int mMaxConnections;
+    private final int mMirrorProbes;
+    private final int mBufferSize;
+    private final long mSyncInterval;
+    private final long mProgressIntervalMillis;
+    private final long mProgressIntervalBytes;
+    private final String mIfNoneMatch;
+    private final String mIfModifiedSince;
+    private final StreamingDigest mDigest;
+    private final ResumeJournal mJournal;
+    private final ResumeJournal.Store mJournalStore;
 
-    private DownloadThread mDownloadThread;
+    private DownloadTask mDownloadTask;
 
     public class Headers implements DownloadClient.Headers {
         @Override
@@ -60,17 +102,43 @@ public class HttpURLConnectionClient implements DownloadClient {
     HttpURLConnectionClient(String url, File destination,
                             DownloadClient.ProgressListener progressListener,
                             DownloadClient.DownloadCallback callback,
-                            boolean useDuplicateLinks) throws IOException {
+                            boolean useDuplicateLinks, int maxConnections, int mirrorProbes,
+                            int bufferSize, long syncInterval, long progressIntervalMillis,
+                            long progressIntervalBytes, String ifNoneMatch,
+                            String ifModifiedSince, boolean acceptGzip,
+                            StreamingDigest digest, ResumeJournal journal,
+                            ResumeJournal.Store journalStore) throws IOException {
         mClient = (HttpURLConnection) new URL(url).openConnection();
         mDestination = destination;
         mProgressListener = progressListener;
         mCallback = callback;
         mUseDuplicateLinks = useDuplicateLinks;
+        mMaxConnections = maxConnections;
+        mMirrorProbes = mirrorProbes;
+        mBufferSize = bufferSize;
+        mSyncInterval = syncInterval;
+        mProgressIntervalMillis = progressIntervalMillis;
+        mProgressIntervalBytes = progressIntervalBytes;
+        mIfNoneMatch = ifNoneMatch;
+        mIfModifiedSince = ifModifiedSince;
+        if (ifNoneMatch != null) {
+            mClient.setRequestProperty("If-None-Match", ifNoneMatch);
+        }
+        if (ifModifiedSince != null) {
+            mClient.setRequestProperty("If-Modified-Since", ifModifiedSince);
+        }
+        if (acceptGzip) {
+            // Setting it explicitly disables the transparent decompression
+            mClient.setRequestProperty("Accept-Encoding", "gzip");
+        }
+        mDigest = digest;
+        mJournal = journal != null ? journal : new ResumeJournal();
+        mJournalStore = journalStore;
     }
 
     @Override
     public void start() {
-        if (mDownloadThread != null) {
+        if (mDownloadTask != null) {
             Log.e(TAG, "Already downloading");
             return;
         }
@@ -79,7 +147,7 @@ public class HttpURLConnectionClient implements DownloadClient {
 
     @Override
     public void resume() {
-        if (mDownloadThread != null) {
+        if (mDownloadTask != null) {
             Log.e(TAG, "Already downloading");
             return;
         }
@@ -88,12 +156,12 @@ public class HttpURLConnectionClient implements DownloadClient {
 
     @Override
     public void cancel() {
-        if (mDownloadThread == null) {
+        if (mDownloadTask == null) {
             Log.e(TAG, "Not downloading");
             return;
         }
-        mDownloadThread.interrupt();
-        mDownloadThread = null;
+        mDownloadTask.cancel();
+        mDownloadTask = null;
     }
 
     private void downloadFileResumeInternal() {
@@ -101,19 +169,31 @@ public class HttpURLConnectionClient implements DownloadClient {
             mCallback.onFailure(false);
             return;
         }
-        long offset = mDestination.length();
+        long length = mDestination.length();
+        if (mJournal.isEmpty() || mJournal.getEnd() > length) {
+            // Without a usable journal, trust the file length
+            mJournal.reset();
+            mJournal.addRange(0, length);
+        }
+        long offset = mJournal.getContiguousEnd(0);
         mClient.setRequestProperty("Range", "bytes=" + offset + "-");
+        String validator = mJournal.getValidator();
+        if (validator != null) {
+            // Get the whole file if it changed since we started downloading it
+            mClient.setRequestProperty("If-Range", validator);
+        }
         downloadFileInternalCommon(true);
     }
 
     private void downloadFileInternalCommon(boolean resume) {
-        if (mDownloadThread != null) {
+        if (mDownloadTask != null) {
             Log.wtf(TAG, "Already downloading");
             return;
         }
 
-        mDownloadThread = new DownloadThread(resume);
-        mDownloadThread.start();
+        mDownloadTask = new DownloadTask(resume);
+        TaskExecutor.submit(TaskExecutor.Pool.NETWORK, "Download " + mDestination.getName(),
+                mDownloadTask);
     }
 
     private static boolean isSuccessCode(int statusCode) {
@@ -128,25 +208,72 @@ public class HttpURLConnectionClient implements DownloadClient {
         return statusCode == 206;
     }
 
+    /**
+     * Get the total size of the resource from the Content-Range header of a
+     * partial content response
+     *
+     * @param contentRange value of the Content-Range header
+     * @param offset       first byte we asked for
+     * @return the total size, or -1 if unknown or not matching the request
+     */
+    private static long getTotalLength(String contentRange, long offset) {
+        if (contentRange == null) {
+            return -1;
+        }
+        Matcher matcher = CONTENT_RANGE_PATTERN.matcher(contentRange.trim());
+        if (!matcher.matches() || Long.parseLong(matcher.group(1)) != offset) {
+            return -1;
+        }
+        return Long.parseLong(matcher.group(3));
+    }
+
     @SuppressWarnings("Convert2Lambda")
-    private class DownloadThread extends Thread {
+    private class DownloadTask implements Runnable {
 
         private long mTotalBytes = 0;
         private long mTotalBytesRead = 0;
 
         private long mCurSampleBytes = 0;
         private long mLastMillis = 0;
+        private long mLastReportMillis = 0;
+        private long mUnreportedBytes = 0;
         private long mSpeed = -1;
         private long mEta = -1;
+        // Bytes read, total bytes, speed and eta not reported yet
+        private long[] mPendingReport;
+        private boolean mReporting;
+
+        private volatile boolean mAborted = false;
+        private volatile boolean mCancelled = false;
+        // Thread running the task, interrupted to cancel blocking operations
+        private Thread mThread;
+
+        private final Object mCheckpointLock = new Object();
+        private final Object mMirrorLock = new Object();
+        // Mirrors still usable, the first one is the one in use
+        private List<Mirror> mMirrors;
+        // Where the validators of the journal come from
+        private URL mValidatorUrl;
+        private volatile long mLastCheckpoint = SystemClock.elapsedRealtime();
 
         private final boolean mResume;
 
-        private DownloadThread(boolean resume) {
+        private DownloadTask(boolean resume) {
             mResume = resume;
         }
 
-        private void calculateSpeed() {
-            final long millis = SystemClock.elapsedRealtime();
+        private synchronized void cancel() {
+            mCancelled = true;
+            if (mThread != null) {
+                mThread.interrupt();
+            }
+        }
+
+        private boolean isCancelled() {
+            return mCancelled;
+        }
+
+        private void calculateSpeed(long millis) {
             final long delta = millis - mLastMillis;
             if (delta > 500) {
                 final long curSpeed = ((mTotalBytesRead - mCurSampleBytes) * 1000) / delta;
@@ -168,11 +295,18 @@ public class HttpURLConnectionClient implements DownloadClient {
         }
 
         private void changeClientUrl(URL newUrl) throws IOException {
-            String range = mClient.getRequestProperty("Range");
+            String[] headers = {"Range", "If-Range", "If-None-Match", "If-Modified-Since",
+                    "Accept-Encoding"};
+            String[] values = new String[headers.length];
+            for (int i = 0; i < headers.length; i++) {
+                values[i] = mClient.getRequestProperty(headers[i]);
+            }
             mClient.disconnect();
             mClient = (HttpURLConnection) newUrl.openConnection();
-            if (range != null) {
-                mClient.setRequestProperty("Range", range);
+            for (int i = 0; i < headers.length; i++) {
+                if (values[i] != null) {
+                    mClient.setRequestProperty(headers[i], values[i]);
+                }
             }
         }
 
@@ -220,29 +354,44 @@ public class HttpURLConnectionClient implements DownloadClient {
                 }
             }
 
-            String newUrl = mClient.getHeaderField("Location");
-            for (; ; ) {
-                try {
-                    URL url = new URL(newUrl);
-                    if (!url.getProtocol().equals(protocol)) {
-                        // If we hadn't handled duplicate links, we wouldn't have
-                        // used this url.
-                        throw new IOException("Protocol changes are not allowed");
+            // Candidates in priority order, starting from the location we were
+            // redirected to
+            List<Mirror> mirrors = new ArrayList<>();
+            addMirror(mirrors, mClient.getHeaderField("Location"), protocol);
+            while (duplicates != null && !duplicates.isEmpty()) {
+                addMirror(mirrors, duplicates.poll().mUrl, protocol);
+            }
+            if (mirrors.isEmpty()) {
+                throw new IOException("No valid location to download from");
+            }
+            if (mMirrorProbes > 1 && mirrors.size() > 1) {
+                raceMirrors(mirrors.subList(0, Math.min(mMirrorProbes, mirrors.size())));
+                Collections.sort(mirrors, new Comparator<Mirror>() {
+                    @Override
+                    public int compare(Mirror m1, Mirror m2) {
+                        // Stable sort, mirrors that weren't probed keep their order
+                        return Long.compare(m2.mSpeed, m1.mSpeed);
                     }
-                    Log.d(TAG, "Downloading from " + newUrl);
-                    changeClientUrl(url);
+                });
+            }
+
+            for (int i = 0; ; i++) {
+                Mirror mirror = mirrors.get(i);
+                try {
+                    Log.d(TAG, "Downloading from " + mirror.mUrl);
+                    changeClientUrl(mirror.mUrl);
                     mClient.setConnectTimeout(5000);
                     mClient.connect();
                     if (!isSuccessCode(mClient.getResponseCode())) {
                         throw new IOException("Server replied with " + mClient.getResponseCode());
                     }
+                    synchronized (mMirrorLock) {
+                        mMirrors = mirrors.subList(i, mirrors.size());
+                    }
                     return;
                 } catch (IOException e) {
-                    if (duplicates != null && !duplicates.isEmpty()) {
-                        DuplicateLink link = duplicates.poll();
-                        duplicates.remove(link);
-                        newUrl = link.mUrl;
-                        Log.e(TAG, "Using duplicate link " + link.mUrl, e);
+                    if (i + 1 < mirrors.size()) {
+                        Log.e(TAG, "Using duplicate link " + mirrors.get(i + 1).mUrl, e);
                     } else {
                         throw e;
                     }
@@ -250,10 +399,408 @@ public class HttpURLConnectionClient implements DownloadClient {
             }
         }
 
+        private void addMirror(List<Mirror> mirrors, String url, String protocol) {
+            if (url == null) {
+                return;
+            }
+            try {
+                URL mirrorUrl = new URL(url);
+                if (!mirrorUrl.getProtocol().equals(protocol)) {
+                    // If we hadn't handled duplicate links, we wouldn't have
+                    // used this url.
+                    Log.d(TAG, "Ignoring " + url + ", protocol changes are not allowed");
+                    return;
+                }
+                mirrors.add(new Mirror(mirrorUrl));
+            } catch (MalformedURLException e) {
+                Log.e(TAG, "Ignoring invalid link " + url, e);
+            }
+        }
+
+        /**
+         * Download the beginning of the file from all the given mirrors at the
+         * same time and measure how fast each of them is
+         */
+        private void raceMirrors(List<Mirror> mirrors) {
+            List<Future<?>> probes = new ArrayList<>();
+            for (final Mirror mirror : mirrors) {
+                probes.add(TaskExecutor.submit(TaskExecutor.Pool.NETWORK,
+                        "Probe " + mirror.mUrl.getHost(), new Runnable() {
+                            @Override
+                            public void run() {
+                                mirror.probe();
+                            }
+                        }));
+            }
+            final long deadline = SystemClock.elapsedRealtime() + PROBE_TIMEOUT_MS;
+            try {
+                for (Future<?> probe : probes) {
+                    probe.get(Math.max(1, deadline - SystemClock.elapsedRealtime()),
+                            TimeUnit.MILLISECONDS);
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } catch (ExecutionException | TimeoutException e) {
+                Log.d(TAG, "Not all the mirrors could be probed in time");
+            }
+            for (Future<?> probe : probes) {
+                // Whatever is still running is too slow to be useful
+                probe.cancel(true);
+            }
+        }
+
+        /**
+         * Compare URLs as strings, URL.equals resolves the host names
+         */
+        private boolean sameUrl(URL u1, URL u2) {
+            return u1.toString().equals(u2.toString());
+        }
+
+        /**
+         * @return the mirror new connections should use
+         */
+        private URL getMirrorUrl() {
+            synchronized (mMirrorLock) {
+                return mMirrors != null ? mMirrors.get(0).mUrl : mClient.getURL();
+            }
+        }
+
+        /**
+         * @return whether a connection to the given mirror is much slower than
+         * what the mirror achieved when probed
+         */
+        private boolean isMirrorTooSlow(URL url, long bytes, long millis) {
+            synchronized (mMirrorLock) {
+                if (mMirrors == null || mMirrors.size() < 2 ||
+                        !sameUrl(mMirrors.get(0).mUrl, url) || mMirrors.get(0).mSpeed <= 0) {
+                    return !sameUrl(getMirrorUrl(), url);
+                }
+                // Throttled connections are slow on purpose
+                return BandwidthLimiter.getLimit() == BandwidthLimiter.UNLIMITED &&
+                        bytes * 1000 / millis < mMirrors.get(0).mSpeed * MIRROR_SWITCH_FRACTION;
+            }
+        }
+
+        /**
+         * Stop using the given mirror, unless another connection did it already
+         *
+         * @return whether there is a different mirror to use
+         */
+        private boolean dropMirror(URL url, String reason) {
+            synchronized (mMirrorLock) {
+                if (mMirrors == null) {
+                    return false;
+                }
+                if (sameUrl(mMirrors.get(0).mUrl, url)) {
+                    if (mMirrors.size() < 2) {
+                        return false;
+                    }
+                    mMirrors = mMirrors.subList(1, mMirrors.size());
+                    Log.d(TAG, url + " " + reason + ", switching to " + mMirrors.get(0).mUrl);
+                }
+                return true;
+            }
+        }
+
+        private void onBytesRead(int count) {
+            synchronized (this) {
+                mTotalBytesRead += count;
+                mUnreportedBytes += count;
+                final long millis = SystemClock.elapsedRealtime();
+                if (mUnreportedBytes < mProgressIntervalBytes &&
+                        millis - mLastReportMillis < mProgressIntervalMillis) {
+                    return;
+                }
+                mUnreportedBytes = 0;
+                mLastReportMillis = millis;
+                calculateSpeed(millis);
+                calculateEta();
+                if (mProgressListener == null) {
+                    return;
+                }
+                mPendingReport = new long[]{mTotalBytesRead, mTotalBytes, mSpeed, mEta};
+                if (mReporting) {
+                    // The connection reporting right now picks it up
+                    return;
+                }
+                mReporting = true;
+            }
+            reportProgress();
+        }
+
+        /**
+         * Hand the pending progress to the listener. The listener runs without
+         * the lock of the task held, since it takes locks of its own and those
+         * can be held by whoever is cancelling the task. Only one connection
+         * reports at a time, so the reports never go backwards.
+         */
+        private void reportProgress() {
+            boolean reported = false;
+            try {
+                while (true) {
+                    long[] report;
+                    synchronized (this) {
+                        report = mPendingReport;
+                        mPendingReport = null;
+                        if (report == null) {
+                            mReporting = false;
+                            reported = true;
+                            return;
+                        }
+                    }
+                    mProgressListener.update(report[0], report[1], report[2], report[3], false);
+                }
+            } finally {
+                if (!reported) {
+                    synchronized (this) {
+                        mReporting = false;
+                    }
+                }
+            }
+        }
+
+        private boolean isAborted() {
+            return mAborted || isCancelled();
+        }
+
+        /**
+         * Persist the journal. Everything it lists is synced first, so that the
+         * stored journal never claims data that could be lost.
+         */
+        private void checkpoint(FileChannel channel) throws IOException {
+            if (mJournalStore == null) {
+                return;
+            }
+            synchronized (mCheckpointLock) {
+                ResumeJournal snapshot = mJournal.copy();
+                channel.force(false);
+                mJournalStore.save(snapshot);
+                mLastCheckpoint = SystemClock.elapsedRealtime();
+            }
+        }
+
+        private void maybeCheckpoint(FileChannel channel) throws IOException {
+            if (mJournalStore != null &&
+                    SystemClock.elapsedRealtime() - mLastCheckpoint >= CHECKPOINT_INTERVAL_MS) {
+                checkpoint(channel);
+            }
+        }
+
+        private void downloadStream(long offset) throws IOException {
+            try (
+                    InputStream inputStream = mClient.getInputStream();
+                    RandomAccessFile file = new RandomAccessFile(mDestination, "rw");
+                    FileChannel channel = file.getChannel()
+            ) {
+                channel.truncate(offset);
+                mJournal.truncate(offset);
+                mTotalBytesRead = offset;
+                catchUpDigest(channel, offset);
+                long contentLength = mClient.getContentLengthLong();
+                mTotalBytes = contentLength + offset;
+                mJournal.setValidator(mClient.getHeaderField("ETag"),
+                        mClient.getHeaderField("Last-Modified"),
+                        contentLength >= 0 ? mTotalBytes : -1);
+                try {
+                    try (ChannelWriter writer = new ChannelWriter(channel, offset,
+                            mBufferSize, mSyncInterval, mJournal)) {
+                        byte[] b = new byte[READ_SIZE];
+                        int count;
+                        while (!isCancelled() && (count = inputStream.read(b, 0,
+                                BandwidthLimiter.getReadSize(b.length))) > 0) {
+                            // The read can outlast the cancellation, whatever
+                            // it returned belongs to the next client
+                            if (isCancelled()) {
+                                break;
+                            }
+                            BandwidthLimiter.consume(count);
+                            writer.write(b, 0, count);
+                            if (mDigest != null) {
+                                mDigest.update(b, 0, count);
+                            }
+                            onBytesRead(count);
+                            maybeCheckpoint(channel);
+                        }
+                    }
+                    sync(channel);
+                } finally {
+                    checkpoint(channel);
+                }
+            }
+        }
+
+        /**
+         * Hash the data already in the file that the digest hasn't seen yet,
+         * which only happens if the digest state was lost
+         */
+        private void catchUpDigest(FileChannel channel, long offset) throws IOException {
+            if (mDigest == null) {
+                return;
+            }
+            if (mDigest.getOffset() > offset) {
+                Log.w(TAG, "Digest is ahead of the file, starting over");
+                mDigest.reset();
+            }
+            followDigest(channel);
+        }
+
+        /**
+         * Hash the data written so far, as long as it's contiguous with what
+         * the digest already covers
+         */
+        private void followDigest(FileChannel channel) throws IOException {
+            if (mDigest != null) {
+                mDigest.update(channel, mJournal.getContiguousEnd(mDigest.getOffset()));
+            }
+        }
+
+        private void sync(FileChannel channel) throws IOException {
+            if (mSyncInterval != DownloadClient.SYNC_NEVER) {
+                channel.force(false);
+            }
+        }
+
+        /**
+         * Split the missing data in segments, so that there is enough work for
+         * all the connections and the first segment starts at offset
+         */
+        private List<Segment> getSegments(FileChannel channel, int connections) {
+            List<long[]> missing = mJournal.getMissingRanges();
+            long missingBytes = 0;
+            for (long[] range : missing) {
+                missingBytes += range[1] - range[0];
+            }
+            long segmentSize = Math.max(MIN_SEGMENT_SIZE,
+                    (missingBytes + connections - 1) / connections);
+            List<Segment> segments = new ArrayList<>();
+            for (long[] range : missing) {
+                for (long start = range[0]; start < range[1]; start += segmentSize) {
+                    long end = Math.min(range[1], start + segmentSize);
+                    // The first segment reuses the connection we already opened
+                    segments.add(new Segment(channel, segments.isEmpty() ? mClient : null,
+                            start, end));
+                }
+            }
+            return segments;
+        }
+
+        private void downloadSegments(int connections) throws IOException {
+            try (RandomAccessFile file = new RandomAccessFile(mDestination, "rw");
+                 FileChannel channel = file.getChannel()) {
+                catchUpDigest(channel, mJournal.getContiguousEnd(0));
+                file.setLength(mTotalBytes);
+
+                List<Segment> segments = getSegments(channel, connections);
+                final ConcurrentLinkedQueue<Segment> queue = new ConcurrentLinkedQueue<>(
+                        segments.subList(1, segments.size()));
+                Runnable worker = new Runnable() {
+                    @Override
+                    public void run() {
+                        Segment segment;
+                        while (!isAborted() && (segment = queue.poll()) != null) {
+                            segment.run();
+                        }
+                    }
+                };
+                int workerCount = Math.min(connections, segments.size()) - 1;
+                Log.d(TAG, "Downloading " + segments.size() + " segments with " +
+                        (workerCount + 1) + " connections");
+                List<Future<?>> workers = new ArrayList<>();
+                // Set by a worker when it starts or by the download thread when it
+                // gives up on it, whichever comes first. Future.cancel() can't
+                // tell, it also succeeds while the task is running.
+                final List<AtomicBoolean> claims = new ArrayList<>();
+                for (int i = 0; i < workerCount; i++) {
+                    final AtomicBoolean claim = new AtomicBoolean();
+                    claims.add(claim);
+                    workers.add(TaskExecutor.submit(TaskExecutor.Pool.NETWORK,
+                            "Segments of " + mDestination.getName(), new Runnable() {
+                                @Override
+                                public void run() {
+                                    if (claim.compareAndSet(false, true)) {
+                                        worker.run();
+                                    }
+                                }
+                            }));
+                }
+
+                boolean interrupted = false;
+                try {
+                    segments.get(0).run();
+                    worker.run();
+
+                    // Hash the other segments in order while they are being written,
+                    // the data is most likely still in the page cache
+                    for (int i = 0; i < workers.size(); i++) {
+                        // Workers that didn't start yet have nothing left to do
+                        if (claims.get(i).compareAndSet(false, true)) {
+                            workers.get(i).cancel(false);
+                            continue;
+                        }
+                        Future<?> future = workers.get(i);
+                        while (!future.isDone()) {
+                            try {
+                                future.get(FOLLOW_INTERVAL_MS, TimeUnit.MILLISECONDS);
+                            } catch (InterruptedException e) {
+                                interrupted = true;
+                                mAborted = true;
+                            } catch (ExecutionException | TimeoutException e) {
+                                // Errors are reported by the segments
+                            }
+                            if (!mAborted) {
+                                followDigest(channel);
+                                maybeCheckpoint(channel);
+                            }
+                        }
+                    }
+                    if (!mAborted) {
+                        followDigest(channel);
+                    }
+
+                    if (mJournalStore == null) {
+                        // Keep only the bytes we know are contiguous so that resuming
+                        // from the file length never leaves holes behind
+                        long contiguous = mJournal.getContiguousEnd(0);
+                        if (contiguous < mTotalBytes) {
+                            file.setLength(contiguous);
+                        }
+                    }
+                } finally {
+                    checkpoint(channel);
+                }
+
+                if (interrupted) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+                for (Segment segment : segments) {
+                    if (segment.mError != null) {
+                        throw segment.mError;
+                    }
+                }
+                if (!isAborted() && !mJournal.isComplete()) {
+                    throw new IOException("Missing data after downloading all the segments");
+                }
+                sync(channel);
+            }
+        }
+
         @Override
         public void run() {
+            synchronized (this) {
+                mThread = Thread.currentThread();
+            }
             try {
+                if (isCancelled()) {
+                    mCallback.onFailure(true);
+                    return;
+                }
                 mClient.setInstanceFollowRedirects(!mUseDuplicateLinks);
+                if (!mResume && mMaxConnections > 1) {
+                    // Check whether the server supports ranges, the response is
+                    // used for the first segment or as a regular download
+                    mClient.setRequestProperty("Range", "bytes=0-");
+                }
                 mClient.connect();
                 int responseCode = mClient.getResponseCode();
 
@@ -264,49 +811,258 @@ public class HttpURLConnectionClient implements DownloadClient {
 
                 mCallback.onResponse(responseCode, mClient.getURL().toString(), new Headers());
 
+                if (responseCode == HttpURLConnection.HTTP_NOT_MODIFIED && !mResume &&
+                        (mIfNoneMatch != null || mIfModifiedSince != null)) {
+                    Log.d(TAG, "The remote file didn't change");
+                    mCallback.onNotModified();
+                    return;
+                }
+
+                final String etag = mClient.getHeaderField("ETag");
+                final String lastModified = mClient.getHeaderField("Last-Modified");
+                long offset = 0;
                 if (mResume && isPartialContentCode(responseCode)) {
-                    mTotalBytesRead = mDestination.length();
+                    if (!mJournal.matches(etag, lastModified)) {
+                        // The server ignored If-Range, start over next time
+                        Log.e(TAG, "The remote file changed, discarding the partial download");
+                        mJournal.reset();
+                        if (mDigest != null) {
+                            mDigest.reset();
+                        }
+                        try (RandomAccessFile file = new RandomAccessFile(mDestination, "rw")) {
+                            file.setLength(0);
+                        }
+                        if (mJournalStore != null) {
+                            mJournalStore.save(mJournal.copy());
+                        }
+                        mCallback.onFailure(false);
+                        return;
+                    }
+                    offset = mJournal.getContiguousEnd(0);
                     Log.d(TAG, "The server fulfilled the partial content request");
+                } else if (mResume && isSuccessCode(responseCode) &&
+                        mClient.getRequestProperty("If-Range") != null) {
+                    Log.d(TAG, "The remote file changed, downloading it again");
+                    mJournal.reset();
                 } else if (mResume || !isSuccessCode(responseCode)) {
                     Log.e(TAG, "The server replied with code " + responseCode);
-                    mCallback.onFailure(isInterrupted());
+                    mCallback.onFailure(isCancelled());
                     return;
+                } else {
+                    mJournal.reset();
+                    if (mDigest != null) {
+                        mDigest.reset();
+                    }
                 }
 
-                try (
-                        InputStream inputStream = mClient.getInputStream();
-                        OutputStream outputStream = new FileOutputStream(mDestination, mResume)
-                ) {
-                    mTotalBytes = mClient.getContentLength() + mTotalBytesRead;
-                    byte[] b = new byte[8192];
-                    int count;
-                    while (!isInterrupted() && (count = inputStream.read(b)) > 0) {
-                        outputStream.write(b, 0, count);
-                        mTotalBytesRead += count;
-                        calculateSpeed();
-                        calculateEta();
-                        if (mProgressListener != null) {
-                            mProgressListener.update(mTotalBytesRead, mTotalBytes, mSpeed, mEta,
-                                    false);
-                        }
-                    }
-                    if (mProgressListener != null) {
-                        mProgressListener.update(mTotalBytesRead, mTotalBytes, mSpeed, mEta, true);
-                    }
+                long totalLength = -1;
+                if (isPartialContentCode(responseCode)) {
+                    totalLength = getTotalLength(mClient.getHeaderField("Content-Range"),
+                            offset);
+                }
 
-                    outputStream.flush();
+                if (totalLength > 0) {
+                    mValidatorUrl = mClient.getURL();
+                    mJournal.setValidator(etag, lastModified, totalLength);
+                    mTotalBytes = totalLength;
+                    mTotalBytesRead = mJournal.getCompletedBytes();
+                    downloadSegments(mMaxConnections);
+                } else {
+                    downloadStream(offset);
+                }
 
-                    if (isInterrupted()) {
-                        mCallback.onFailure(true);
-                    } else {
-                        mCallback.onSuccess(mDestination);
+                if (mProgressListener != null) {
+                    long[] report;
+                    synchronized (this) {
+                        report = new long[]{mTotalBytesRead, mTotalBytes, mSpeed, mEta};
                     }
+                    mProgressListener.update(report[0], report[1], report[2], report[3], true);
+                }
+
+                if (isCancelled()) {
+                    mCallback.onFailure(true);
+                } else {
+                    mCallback.onSuccess(mDestination);
                 }
             } catch (IOException e) {
                 Log.e(TAG, "Error downloading file", e);
-                mCallback.onFailure(isInterrupted());
+                mCallback.onFailure(isCancelled());
             } finally {
                 mClient.disconnect();
+                synchronized (this) {
+                    mThread = null;
+                }
+                // Don't leave the interruption to whatever runs next on this thread
+                Thread.interrupted();
+            }
+        }
+
+        private class Segment implements Runnable {
+            private final FileChannel mChannel;
+            private final HttpURLConnection mConnection;
+            private final long mStart;
+            private final long mEnd;
+            private volatile IOException mError;
+
+            private Segment(FileChannel channel, HttpURLConnection connection, long start,
+                            long end) {
+                mChannel = channel;
+                mConnection = connection;
+                mStart = start;
+                mEnd = end;
+            }
+
+            /**
+             * Request the rest of the segment from the mirror in use. Only the
+             * server the validators come from can check them with If-Range,
+             * other mirrors have their own. Their replies are checked against
+             * the total length instead, and a mirror that can't serve the
+             * range is dropped in favor of the next one.
+             */
+            private HttpURLConnection openConnection(long position) throws IOException {
+                while (true) {
+                    URL url = getMirrorUrl();
+                    boolean validatorServer = sameUrl(url, mValidatorUrl);
+                    HttpURLConnection connection = (HttpURLConnection) url.openConnection();
+                    connection.setRequestProperty("Range",
+                            "bytes=" + position + "-" + (mEnd - 1));
+                    String validator = mJournal.getValidator();
+                    if (validator != null && validatorServer) {
+                        connection.setRequestProperty("If-Range", validator);
+                    }
+                    connection.connect();
+                    int responseCode = connection.getResponseCode();
+                    if (isPartialContentCode(responseCode) && getTotalLength(
+                            connection.getHeaderField("Content-Range"), position) == mTotalBytes) {
+                        return connection;
+                    }
+                    connection.disconnect();
+                    if (validatorServer || !dropMirror(url, "can't serve the segment")) {
+                        throw new IOException("Server replied with " + responseCode +
+                                " to a segment request");
+                    }
+                }
+            }
+
+            @Override
+            public void run() {
+                // The first segment is read by the download thread and can
+                // be hashed right away
+                boolean hash = mDigest != null && mConnection != null &&
+                        mDigest.getOffset() == mStart;
+                long received = mStart;
+                HttpURLConnection connection = mConnection;
+                try (ChannelWriter writer = new ChannelWriter(mChannel, mStart,
+                        mBufferSize, mSyncInterval, mJournal)) {
+                    while (!isAborted() && received < mEnd) {
+                        if (connection == null) {
+                            connection = openConnection(received);
+                        }
+                        URL url = connection.getURL();
+                        boolean switchMirror = false;
+                        try (InputStream is = connection.getInputStream()) {
+                            byte[] b = new byte[READ_SIZE];
+                            long sampleStart = SystemClock.elapsedRealtime();
+                            long sampleBytes = 0;
+                            while (!isAborted() && received < mEnd) {
+                                int count = is.read(b, 0, (int) Math.min(
+                                        BandwidthLimiter.getReadSize(b.length),
+                                        mEnd - received));
+                                if (count < 0 || isAborted()) {
+                                    break;
+                                }
+                                BandwidthLimiter.consume(count);
+                                writer.write(b, 0, count);
+                                if (hash) {
+                                    mDigest.update(b, 0, count);
+                                }
+                                received += count;
+                                onBytesRead(count);
+                                maybeCheckpoint(mChannel);
+
+                                sampleBytes += count;
+                                final long millis = SystemClock.elapsedRealtime() - sampleStart;
+                                if (millis >= MIRROR_SAMPLE_INTERVAL_MS) {
+                                    if (isMirrorTooSlow(url, sampleBytes, millis) &&
+                                            dropMirror(url, "became too slow")) {
+                                        switchMirror = true;
+                                        break;
+                                    }
+                                    sampleStart += millis;
+                                    sampleBytes = 0;
+                                }
+                            }
+                        } finally {
+                            if (connection != mConnection) {
+                                connection.disconnect();
+                            }
+                            connection = null;
+                        }
+                        if (!switchMirror) {
+                            break;
+                        }
+                    }
+                } catch (IOException e) {
+                    Log.e(TAG, "Error downloading segment", e);
+                    mError = e;
+                    mAborted = true;
+                    return;
+                }
+                if (!isAborted() && received < mEnd) {
+                    mError = new IOException("Segment ended prematurely at " + received);
+                    mAborted = true;
+                }
+            }
+        }
+
+        private class Mirror {
+            private final URL mUrl;
+            // Bytes per second measured by the probe, 0 if unknown or failed
+            private volatile long mSpeed = 0;
+
+            private Mirror(URL url) {
+                mUrl = url;
+            }
+
+            private void probe() {
+                HttpURLConnection connection = null;
+                try {
+                    final long start = SystemClock.elapsedRealtime();
+                    connection = (HttpURLConnection) mUrl.openConnection();
+                    connection.setConnectTimeout((int) PROBE_TIMEOUT_MS);
+                    connection.setReadTimeout((int) PROBE_TIMEOUT_MS);
+                    connection.setRequestProperty("Range", "bytes=0-" + (PROBE_SIZE - 1));
+                    connection.connect();
+                    if (!isSuccessCode(connection.getResponseCode())) {
+                        throw new IOException("Server replied with " +
+                                connection.getResponseCode());
+                    }
+                    long firstByte = -1;
+                    long received = 0;
+                    try (InputStream is = connection.getInputStream()) {
+                        byte[] b = new byte[READ_SIZE];
+                        int count;
+                        while (!Thread.currentThread().isInterrupted() && received < PROBE_SIZE &&
+                                (count = is.read(b)) > 0) {
+                            if (firstByte < 0) {
+                                firstByte = SystemClock.elapsedRealtime() - start;
+                            }
+                            received += count;
+                        }
+                    }
+                    // The time to the first byte is included on purpose, it's
+                    // paid again every time a new segment is requested
+                    final long millis = Math.max(1, SystemClock.elapsedRealtime() - start);
+                    mSpeed = received * 1000 / millis;
+                    Log.d(TAG, "Probed " + mUrl + ": first byte after " + firstByte +
+                            "ms, " + mSpeed + " B/s");
+                } catch (IOException e) {
+                    Log.e(TAG, "Could not probe " + mUrl, e);
+                } finally {
+                    if (connection != null) {
+                        connection.disconnect();
+                    }
+                }
             }
         }
     }
@@ -0,0 +1,214 @@
+/*
+ * Copyright (C) 2019 The Potato Open Sauce Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package co.potatoproject.androidflutterupdater.download;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Describes what part of a download reached the destination file and which
+ * version of the remote file it belongs to, so that a download can be resumed
+ * exactly where it stopped even if the process was killed.
+ */
+public class ResumeJournal {
+
+    public interface Store {
+        /**
+         * Persist the journal. Called from the download thread with a copy of
+         * the journal whose ranges are already synced to disk.
+         */
+        void save(ResumeJournal journal);
+    }
+
+    private String mEtag;
+    private String mLastModified;
+    private long mTotalLength = -1;
+    // Completed ranges, start (inclusive) to end (exclusive), never adjacent
+    private final TreeMap<Long, Long> mRanges = new TreeMap<>();
+
+    public ResumeJournal() {
+    }
+
+    public ResumeJournal(String etag, String lastModified, long totalLength, String ranges) {
+        mEtag = etag;
+        mLastModified = lastModified;
+        mTotalLength = totalLength;
+        if (ranges != null && !ranges.isEmpty()) {
+            for (String range : ranges.split(",")) {
+                int separator = range.indexOf('-');
+                addRange(Long.parseLong(range.substring(0, separator)),
+                        Long.parseLong(range.substring(separator + 1)));
+            }
+        }
+    }
+
+    public synchronized String getEtag() {
+        return mEtag;
+    }
+
+    public synchronized String getLastModified() {
+        return mLastModified;
+    }
+
+    public synchronized long getTotalLength() {
+        return mTotalLength;
+    }
+
+    /**
+     * @return the completed ranges as comma separated start-end pairs
+     */
+    public synchronized String getRanges() {
+        StringBuilder sb = new StringBuilder();
+        for (Map.Entry<Long, Long> range : mRanges.entrySet()) {
+            if (sb.length() > 0) {
+                sb.append(',');
+            }
+            sb.append(range.getKey()).append('-').append(range.getValue());
+        }
+        return sb.toString();
+    }
+
+    public synchronized long getCompletedBytes() {
+        long completed = 0;
+        for (Map.Entry<Long, Long> range : mRanges.entrySet()) {
+            completed += range.getValue() - range.getKey();
+        }
+        return completed;
+    }
+
+    public synchronized boolean isComplete() {
+        return mTotalLength > 0 && getContiguousEnd(0) >= mTotalLength;
+    }
+
+    synchronized boolean isEmpty() {
+        return mRanges.isEmpty();
+    }
+
+    /**
+     * @return the end of the last completed range
+     */
+    synchronized long getEnd() {
+        return mRanges.isEmpty() ? 0 : mRanges.lastEntry().getValue();
+    }
+
+    /**
+     * Value for the If-Range header. Weak entity tags can't be used there.
+     */
+    synchronized String getValidator() {
+        if (mEtag != null && !mEtag.startsWith("W/")) {
+            return mEtag;
+        }
+        return mLastModified;
+    }
+
+    /**
+     * @return whether the given response headers describe the same remote file
+     */
+    synchronized boolean matches(String etag, String lastModified) {
+        if (mEtag != null && etag != null) {
+            return mEtag.equals(etag);
+        }
+        if (mLastModified != null && lastModified != null) {
+            return mLastModified.equals(lastModified);
+        }
+        return true;
+    }
+
+    synchronized void setValidator(String etag, String lastModified, long totalLength) {
+        mEtag = etag;
+        mLastModified = lastModified;
+        mTotalLength = totalLength;
+    }
+
+    synchronized void reset() {
+        mEtag = null;
+        mLastModified = null;
+        mTotalLength = -1;
+        mRanges.clear();
+    }
+
+    synchronized void addRange(long start, long end) {
+        if (start >= end) {
+            return;
+        }
+        Map.Entry<Long, Long> previous = mRanges.floorEntry(start);
+        if (previous != null && previous.getValue() >= start) {
+            start = previous.getKey();
+            end = Math.max(end, previous.getValue());
+        }
+        Map.Entry<Long, Long> next = mRanges.ceilingEntry(start);
+        while (next != null && next.getKey() <= end) {
+            end = Math.max(end, next.getValue());
+            mRanges.remove(next.getKey());
+            next = mRanges.ceilingEntry(start);
+        }
+        mRanges.put(start, end);
+    }
+
+    /**
+     * Forget everything past the given offset
+     */
+    synchronized void truncate(long offset) {
+        while (!mRanges.isEmpty() && mRanges.lastKey() >= offset) {
+            mRanges.pollLastEntry();
+        }
+        Map.Entry<Long, Long> last = mRanges.lastEntry();
+        if (last != null && last.getValue() > offset) {
+            mRanges.put(last.getKey(), offset);
+        }
+    }
+
+    /**
+     * @return the end of the completed data starting at offset, or offset itself
+     * if the byte at offset is missing
+     */
+    synchronized long getContiguousEnd(long offset) {
+        Map.Entry<Long, Long> range = mRanges.floorEntry(offset);
+        return range != null && range.getValue() > offset ? range.getValue() : offset;
+    }
+
+    /**
+     * @return the ranges that still need to be downloaded
+     */
+    synchronized List<long[]> getMissingRanges() {
+        List<long[]> missing = new ArrayList<>();
+        long position = 0;
+        for (Map.Entry<Long, Long> range : mRanges.entrySet()) {
+            if (range.getKey() > position) {
+                missing.add(new long[]{position, range.getKey()});
+            }
+            position = range.getValue();
+        }
+        if (position < mTotalLength) {
+            missing.add(new long[]{position, mTotalLength});
+        }
+        return missing;
+    }
+
+    /**
+     * @return an independent copy of the journal as it is now
+     */
+    public synchronized ResumeJournal copy() {
+        ResumeJournal journal = new ResumeJournal();
+        journal.mEtag = mEtag;
+        journal.mLastModified = mLastModified;
+        journal.mTotalLength = mTotalLength;
+        journal.mRanges.putAll(mRanges);
+        return journal;
+    }
+}
@@ -0,0 +1,122 @@
+/*
+ * Copyright (C) 2019 The Potato Open Sauce Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package co.potatoproject.androidflutterupdater.download;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Locale;
+
+/**
+ * Digest of the first bytes of a download. The same instance, or a copy if the
+ * previous client may still be running, can be handed to the client that
+ * resumes the download, so that hashing continues from where it stopped
+ * instead of starting over.
+ */
+public class StreamingDigest {
+
+    public static final String MD5 = "MD5";
+    public static final String SHA_256 = "SHA-256";
+
+    private static final int READ_BUFFER_SIZE = 256 * 1024;
+
+    private final MessageDigest mDigest;
+    private long mOffset;
+
+    public StreamingDigest(String algorithm) throws NoSuchAlgorithmException {
+        mDigest = MessageDigest.getInstance(algorithm);
+    }
+
+    private StreamingDigest(MessageDigest digest, long offset) {
+        mDigest = digest;
+        mOffset = offset;
+    }
+
+    /**
+     * @return an independent copy of the digest as it is now, or null if the
+     * algorithm doesn't support it
+     */
+    public synchronized StreamingDigest copy() {
+        try {
+            return new StreamingDigest((MessageDigest) mDigest.clone(), mOffset);
+        } catch (CloneNotSupportedException e) {
+            return null;
+        }
+    }
+
+    public String getAlgorithm() {
+        return mDigest.getAlgorithm();
+    }
+
+    /**
+     * @return the number of bytes hashed so far
+     */
+    public synchronized long getOffset() {
+        return mOffset;
+    }
+
+    synchronized void reset() {
+        mDigest.reset();
+        mOffset = 0;
+    }
+
+    synchronized void update(byte[] b, int off, int len) {
+        mDigest.update(b, off, len);
+        mOffset += len;
+    }
+
+    /**
+     * Hash the bytes of the given channel between the current offset and end
+     */
+    synchronized void update(FileChannel channel, long end) throws IOException {
+        if (mOffset >= end) {
+            return;
+        }
+        ByteBuffer buffer = BufferPool.acquire(READ_BUFFER_SIZE);
+        try {
+            while (mOffset < end) {
+                buffer.clear();
+                buffer.limit((int) Math.min(buffer.capacity(), end - mOffset));
+                int count = channel.read(buffer, mOffset);
+                if (count < 0) {
+                    throw new IOException("Unexpected end of file at " + mOffset);
+                }
+                buffer.flip();
+                mDigest.update(buffer);
+                mOffset += count;
+            }
+        } finally {
+            BufferPool.release(buffer);
+        }
+    }
+
+    /**
+     * Complete the computation and reset the digest
+     *
+     * @return the lowercase hex representation of the digest
+     */
+    public synchronized String digest() {
+        byte[] digest = mDigest.digest();
+        mOffset = 0;
+        StringBuilder sb = new StringBuilder(digest.length * 2);
+        for (byte b : digest) {
+            sb.append(String.format(Locale.ROOT, "%02x", b));
+        }
+        return sb.toString();
+    }
+}
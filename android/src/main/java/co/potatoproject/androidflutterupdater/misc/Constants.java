@@ -38,8 +38,14 @@ public final class Constants {
     public static final String PREF_RELEASE_TYPE = "release_type";
     public static final String PREF_NEEDS_REBOOT_ID = "needs_reboot_id";
     public static final String PREF_VERIFY_MODE = "verify_mode";
+    public static final String PREF_BANDWIDTH_LIMIT = "bandwidth_limit";
+    public static final String PREF_MAX_CONCURRENT_DOWNLOADS = "max_concurrent_downloads";
+    public static final String PREF_DOWNLOAD_POLICY = "download_policy";
+    public static final String PREF_UPDATES_LIST_ETAG = "updates_list_etag";
+    public static final String PREF_UPDATES_LIST_LAST_MODIFIED = "updates_list_last_modified";
 
     public static final String UNCRYPT_FILE_EXT = ".uncrypt";
+    public static final String DELTA_FILE_EXT = ".delta";
 
     public static final String PROP_AB_DEVICE = "ro.build.ab_update";
     public static final String PROP_BUILD_DATE = "ro.build.date.utc";
@@ -52,6 +58,12 @@ public final class Constants {
     public static final String PROP_RELEASE_TYPE = "ro.{project}.buildtype";
     public static final String PROP_UPDATER_ALLOW_DOWNGRADING = "{project}.updater.allow_downgrading";
     public static final String PROP_UPDATER_URI = "{project}.updater.uri";
+    public static final String PROP_UPDATER_MAX_CONNECTIONS = "{project}.updater.max_connections";
+    public static final String PROP_UPDATER_MIRROR_PROBES = "{project}.updater.mirror_probes";
+
+    public static final int DEFAULT_MAX_CONNECTIONS = 4;
+    public static final int DEFAULT_MIRROR_PROBES = 3;
+    public static final int DEFAULT_MAX_CONCURRENT_DOWNLOADS = 1;
 
     public static final String PREF_INSTALL_OLD_TIMESTAMP = "install_old_timestamp";
     public static final String PREF_INSTALL_NEW_TIMESTAMP = "install_new_timestamp";
@@ -21,68 +21,66 @@ import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
-import java.nio.ByteBuffer;
+import java.nio.channels.ClosedByInterruptException;
 import java.nio.channels.FileChannel;
-import java.nio.channels.ReadableByteChannel;
 
 public class FileUtils {
 
     private static final String TAG = "FileUtils";
 
+    /**
+     * Amount of data handed to the kernel at once. Large enough for the copy
+     * to stay in the kernel most of the time, small enough to report the
+     * progress and notice cancellations often.
+     */
+    private static final long COPY_CHUNK_SIZE = 32 * 1024 * 1024;
+
     public interface ProgressCallBack {
         void update(int progress);
     }
 
-    private static class CallbackByteChannel implements ReadableByteChannel {
-        private ProgressCallBack mCallback;
-        private long mSize;
-        private ReadableByteChannel mReadableByteChannel;
-        private long mSizeRead;
-        private int mProgress;
-
-        private CallbackByteChannel(ReadableByteChannel readableByteChannel, long expectedSize,
-                                    ProgressCallBack callback) {
-            this.mCallback = callback;
-            this.mSize = expectedSize;
-            this.mReadableByteChannel = readableByteChannel;
-        }
-
-        @Override
-        public void close() throws IOException {
-            mReadableByteChannel.close();
-        }
-
-        @Override
-        public boolean isOpen() {
-            return mReadableByteChannel.isOpen();
-        }
-
-        @Override
-        public int read(ByteBuffer bb) throws IOException {
-            int read;
-            if ((read = mReadableByteChannel.read(bb)) > 0) {
-                mSizeRead += read;
-                int progress = mSize > 0 ? Math.round(mSizeRead * 100.f / mSize) : -1;
-                if (mProgress != progress) {
-                    mCallback.update(progress);
-                    mProgress = progress;
-                }
-            }
-            return read;
-        }
-    }
-
-    public static void copyFile(File sourceFile, File destFile, ProgressCallBack progressCallBack)
-            throws IOException {
+    /**
+     * Copy a file with FileChannel.transferTo(), which lets the kernel move the
+     * data without going through the Java heap. The copy is done in chunks,
+     * the progress is reported between them.
+     * <p>
+     * Interrupting the thread cancels the copy: the destination is deleted and
+     * the method returns with the interrupt flag still set.
+     *
+     * @param progressCallBack notified when the progress changes, can be null
+     * @param sync             whether to fsync the destination once complete
+     */
+    public static void copyFile(File sourceFile, File destFile, ProgressCallBack progressCallBack,
+                                boolean sync) throws IOException {
+        boolean cancelled = false;
         try (FileChannel sourceChannel = new FileInputStream(sourceFile).getChannel();
              FileChannel destChannel = new FileOutputStream(destFile).getChannel()) {
-            if (progressCallBack != null) {
-                ReadableByteChannel readableByteChannel = new CallbackByteChannel(sourceChannel,
-                        sourceFile.length(), progressCallBack);
-                destChannel.transferFrom(readableByteChannel, 0, sourceChannel.size());
-            } else {
-                destChannel.transferFrom(sourceChannel, 0, sourceChannel.size());
+            long size = sourceChannel.size();
+            long position = 0;
+            int lastProgress = -1;
+            while (position < size) {
+                if (Thread.currentThread().isInterrupted()) {
+                    cancelled = true;
+                    break;
+                }
+                long count = sourceChannel.transferTo(position,
+                        Math.min(COPY_CHUNK_SIZE, size - position), destChannel);
+                if (count <= 0) {
+                    throw new IOException("Could not copy past " + position + " of " + size);
+                }
+                position += count;
+                int progress = Math.round(position * 100.f / size);
+                if (progressCallBack != null && progress != lastProgress) {
+                    progressCallBack.update(progress);
+                    lastProgress = progress;
+                }
             }
+            if (!cancelled && sync) {
+                destChannel.force(true);
+            }
+        } catch (ClosedByInterruptException e) {
+            // Interrupted during a chunk
+            cancelled = true;
         } catch (IOException e) {
             Log.e(TAG, "Could not copy file", e);
             if (destFile.exists()) {
@@ -90,9 +88,21 @@ public class FileUtils {
             }
             throw e;
         }
+        if (cancelled) {
+            Log.d(TAG, "Copy of " + sourceFile.getName() + " cancelled");
+            Thread.currentThread().interrupt();
+            if (destFile.exists()) {
+                destFile.delete();
+            }
+        }
+    }
+
+    public static void copyFile(File sourceFile, File destFile, ProgressCallBack progressCallBack)
+            throws IOException {
+        copyFile(sourceFile, destFile, progressCallBack, false);
     }
 
     public static void copyFile(File sourceFile, File destFile) throws IOException {
-        copyFile(sourceFile, destFile, null);
+        copyFile(sourceFile, destFile, null, false);
     }
 }
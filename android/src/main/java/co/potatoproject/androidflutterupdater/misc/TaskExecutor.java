@@ -0,0 +1,198 @@
+/*
+ * Copyright (C) 2019 The Potato Open Sauce Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package co.potatoproject.androidflutterupdater.misc;
+
+import android.os.Process;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.util.Locale;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs all the background work of the updater. Network, disk and database work
+ * have separate pools, so that a slow download never delays a database write.
+ * Each pool has a fixed number of threads and queues the tasks exceeding it.
+ */
+@SuppressWarnings("Convert2Lambda")
+public final class TaskExecutor {
+
+    private static final String TAG = "TaskExecutor";
+
+    public enum Pool {
+        // Download connections, including the ones of segmented downloads
+        NETWORK(8, Process.THREAD_PRIORITY_BACKGROUND),
+        // Verification, copies and deletions
+        DISK(2, Process.THREAD_PRIORITY_BACKGROUND),
+        // Serialized, SQLite doesn't benefit from concurrent writers
+        DB(1, Process.THREAD_PRIORITY_BACKGROUND + Process.THREAD_PRIORITY_MORE_FAVORABLE),
+        // Short bookkeeping, such as handing out download slots
+        CONTROL(1, Process.THREAD_PRIORITY_BACKGROUND + Process.THREAD_PRIORITY_MORE_FAVORABLE);
+
+        private final int mThreads;
+        private final int mPriority;
+
+        Pool(int threads, int priority) {
+            mThreads = threads;
+            mPriority = priority;
+        }
+    }
+
+    public static final class Stats {
+        private final int mQueueDepth;
+        private final int mActiveCount;
+        private final long mCompletedCount;
+        private final long mAverageWaitMillis;
+        private final long mMaxWaitMillis;
+        private final long mAverageRunMillis;
+
+        private Stats(int queueDepth, int activeCount, long completedCount,
+                      long averageWaitMillis, long maxWaitMillis, long averageRunMillis) {
+            mQueueDepth = queueDepth;
+            mActiveCount = activeCount;
+            mCompletedCount = completedCount;
+            mAverageWaitMillis = averageWaitMillis;
+            mMaxWaitMillis = maxWaitMillis;
+            mAverageRunMillis = averageRunMillis;
+        }
+
+        public int getQueueDepth() {
+            return mQueueDepth;
+        }
+
+        public int getActiveCount() {
+            return mActiveCount;
+        }
+
+        public long getCompletedCount() {
+            return mCompletedCount;
+        }
+
+        /**
+         * @return how long the completed tasks waited in the queue on average
+         */
+        public long getAverageWaitMillis() {
+            return mAverageWaitMillis;
+        }
+
+        public long getMaxWaitMillis() {
+            return mMaxWaitMillis;
+        }
+
+        public long getAverageRunMillis() {
+            return mAverageRunMillis;
+        }
+
+        @Override
+        public String toString() {
+            return "queued=" + mQueueDepth + " active=" + mActiveCount +
+                    " completed=" + mCompletedCount + " wait=" + mAverageWaitMillis +
+                    "ms (max " + mMaxWaitMillis + "ms) run=" + mAverageRunMillis + "ms";
+        }
+    }
+
+    private static class PoolExecutor extends ThreadPoolExecutor {
+        private long mCompleted;
+        private long mTotalWaitMillis;
+        private long mMaxWaitMillis;
+        private long mTotalRunMillis;
+
+        private PoolExecutor(final Pool pool) {
+            super(pool.mThreads, pool.mThreads, 30, TimeUnit.SECONDS,
+                    new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+                        private final AtomicInteger mCount = new AtomicInteger();
+
+                        @Override
+                        public Thread newThread(final Runnable r) {
+                            String name = pool.name().toLowerCase(Locale.ROOT) + "-" +
+                                    mCount.incrementAndGet();
+                            return new Thread(new Runnable() {
+                                @Override
+                                public void run() {
+                                    Process.setThreadPriority(pool.mPriority);
+                                    r.run();
+                                }
+                            }, name);
+                        }
+                    });
+            allowCoreThreadTimeOut(true);
+        }
+
+        private synchronized void onTaskDone(long waitMillis, long runMillis) {
+            mCompleted++;
+            mTotalWaitMillis += waitMillis;
+            mMaxWaitMillis = Math.max(mMaxWaitMillis, waitMillis);
+            mTotalRunMillis += runMillis;
+        }
+
+        private synchronized Stats getStats() {
+            return new Stats(getQueue().size(), getActiveCount(), mCompleted,
+                    mCompleted > 0 ? mTotalWaitMillis / mCompleted : 0, mMaxWaitMillis,
+                    mCompleted > 0 ? mTotalRunMillis / mCompleted : 0);
+        }
+    }
+
+    private static final PoolExecutor[] sExecutors = new PoolExecutor[Pool.values().length];
+
+    private TaskExecutor() {
+    }
+
+    private static synchronized PoolExecutor getExecutor(Pool pool) {
+        if (sExecutors[pool.ordinal()] == null) {
+            sExecutors[pool.ordinal()] = new PoolExecutor(pool);
+        }
+        return sExecutors[pool.ordinal()];
+    }
+
+    /**
+     * Run the task in the given pool. The thread running it is named after
+     * the task while it runs.
+     *
+     * @return the future of the task, cancel(true) interrupts the task
+     */
+    public static Future<?> submit(Pool pool, final String name, final Runnable task) {
+        final PoolExecutor executor = getExecutor(pool);
+        final long queued = SystemClock.elapsedRealtime();
+        return executor.submit(new Runnable() {
+            @Override
+            public void run() {
+                final long started = SystemClock.elapsedRealtime();
+                Thread thread = Thread.currentThread();
+                String threadName = thread.getName();
+                thread.setName(threadName + " (" + name + ")");
+                try {
+                    task.run();
+                } catch (RuntimeException e) {
+                    Log.e(TAG, "Task " + name + " failed", e);
+                    throw e;
+                } finally {
+                    thread.setName(threadName);
+                    executor.onTaskDone(started - queued,
+                            SystemClock.elapsedRealtime() - started);
+                }
+            }
+        });
+    }
+
+    public static Stats getStats(Pool pool) {
+        return getExecutor(pool).getStats();
+    }
+}
@@ -0,0 +1,110 @@
+/*
+ * Copyright (C) 2019 The Potato Open Sauce Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package co.potatoproject.androidflutterupdater.misc;
+
+import co.potatoproject.androidflutterupdater.model.UpdateInfo;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Difference between the compatible updates of a new updates list and the
+ * ones of the list known so far
+ */
+public final class UpdatesDiff {
+
+    private final boolean mInitial;
+    private final List<UpdateInfo> mUpdates;
+    private final List<UpdateInfo> mAdded = new ArrayList<>();
+    private final List<UpdateInfo> mChanged = new ArrayList<>();
+    private final List<String> mRemoved = new ArrayList<>();
+    private final Set<String> mIds = new HashSet<>();
+
+    /**
+     * @param known   content hash of the known updates by id, null if none is known
+     * @param updates the updates of the new list
+     */
+    UpdatesDiff(Map<String, Long> known, List<UpdateInfo> updates) {
+        mInitial = known == null;
+        mUpdates = Collections.unmodifiableList(updates);
+        for (UpdateInfo update : updates) {
+            mIds.add(update.getDownloadId());
+            Long hash = known != null ? known.get(update.getDownloadId()) : null;
+            if (hash == null) {
+                mAdded.add(update);
+            } else if (hash != UpdatesSnapshot.getContentHash(update)) {
+                mChanged.add(update);
+            }
+        }
+        if (known != null) {
+            for (String id : known.keySet()) {
+                if (!mIds.contains(id)) {
+                    mRemoved.add(id);
+                }
+            }
+        }
+    }
+
+    /**
+     * @return whether there was no list to compare with, everything is added
+     */
+    public boolean isInitial() {
+        return mInitial;
+    }
+
+    /**
+     * @return whether the new list has updates that weren't known before
+     */
+    public boolean hasNewUpdates() {
+        return !mInitial && !mAdded.isEmpty();
+    }
+
+    /**
+     * @return all the updates of the new list
+     */
+    public List<UpdateInfo> getUpdates() {
+        return mUpdates;
+    }
+
+    public Set<String> getIds() {
+        return Collections.unmodifiableSet(mIds);
+    }
+
+    public List<UpdateInfo> getAdded() {
+        return Collections.unmodifiableList(mAdded);
+    }
+
+    /**
+     * @return the updates whose id was known, but with different details
+     */
+    public List<UpdateInfo> getChanged() {
+        return Collections.unmodifiableList(mChanged);
+    }
+
+    public List<String> getRemoved() {
+        return Collections.unmodifiableList(mRemoved);
+    }
+
+    @Override
+    public String toString() {
+        return mAdded.size() + " added, " + mChanged.size() + " changed, " +
+                mRemoved.size() + " removed";
+    }
+}
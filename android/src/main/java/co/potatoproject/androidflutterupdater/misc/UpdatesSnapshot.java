@@ -0,0 +1,264 @@
+/*
+ * Copyright (C) 2019 The Potato Open Sauce Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package co.potatoproject.androidflutterupdater.misc;
+
+import android.content.Context;
+import android.os.SystemProperties;
+import android.util.Log;
+
+import co.potatoproject.androidflutterupdater.model.Update;
+import co.potatoproject.androidflutterupdater.model.UpdateInfo;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+/**
+ * Binary copy of the compatible updates of the cached updates list, so that
+ * they can be loaded without parsing the list again. The snapshot is only
+ * valid for the list, release type and build it was created for, but it
+ * always tells which updates are known, see {@link #loadIndex(Context)}.
+ */
+final class UpdatesSnapshot {
+
+    private static final String TAG = "UpdatesSnapshot";
+
+    private static final int MAGIC = 0x55504453; // UPDS
+    private static final int VERSION = 4;
+    private static final int MAX_STRING_LENGTH = 1024 * 1024;
+
+    private UpdatesSnapshot() {
+    }
+
+    private static File getFile(Context context) {
+        return new File(context.getCacheDir(), "updates.snapshot");
+    }
+
+    /**
+     * Identifies the input of the parser: the list itself and everything used
+     * to decide whether an update is compatible. The list is identified by its
+     * size and modification time, so that checking the key doesn't cost a
+     * read of the whole list.
+     */
+    private static String getKey(Context context, File json) {
+        return json.length() + ":" + json.lastModified() + ':' +
+                Utils.getReleaseType(context) + ':' +
+                SystemProperties.getLong(Constants.PROP_BUILD_DATE, 0) + ':' +
+                SystemProperties.getBoolean(
+                        Utils.getProjectProp(Constants.PROP_UPDATER_ALLOW_DOWNGRADING), false);
+    }
+
+    /**
+     * @return the compatible updates of the given list, or null if there's no
+     * valid snapshot for it
+     */
+    static List<UpdateInfo> load(Context context, File json) {
+        File file = getFile(context);
+        if (!file.exists() || !json.exists()) {
+            return null;
+        }
+        try (DataInputStream is = new DataInputStream(
+                new BufferedInputStream(new FileInputStream(file)))) {
+            if (is.readInt() != MAGIC || is.readInt() != VERSION ||
+                    !readString(is).equals(getKey(context, json))) {
+                Log.d(TAG, "Snapshot is stale");
+                return null;
+            }
+            int count = is.readInt();
+            List<UpdateInfo> updates = new ArrayList<>(count);
+            for (int i = 0; i < count; i++) {
+                Update update = new Update();
+                is.readLong(); // Content hash
+                update.setDownloadId(readString(is));
+                update.setTimestamp(is.readLong());
+                update.setFileSize(is.readLong());
+                update.setName(readString(is));
+                update.setType(readString(is));
+                update.setDownloadUrl(readString(is));
+                update.setVersion(readString(is));
+                update.setNotes(readString(is));
+                update.setDeltaSize(is.readLong());
+                update.setDeltaSource(readString(is));
+                update.setDeltaUrl(readString(is));
+                long chunkSize = is.readLong();
+                update.setChunkHashes(chunkSize, readStringList(is));
+                updates.add(update);
+            }
+            return updates;
+        } catch (IOException e) {
+            Log.e(TAG, "Could not read snapshot", e);
+            return null;
+        }
+    }
+
+    /**
+     * @return the content hash of the updates in the snapshot by id, even if the
+     * snapshot is stale, or null if there's no snapshot
+     */
+    static Map<String, Long> loadIndex(Context context) {
+        File file = getFile(context);
+        if (!file.exists()) {
+            return null;
+        }
+        try (DataInputStream is = new DataInputStream(
+                new BufferedInputStream(new FileInputStream(file)))) {
+            if (is.readInt() != MAGIC || is.readInt() != VERSION) {
+                return null;
+            }
+            skipString(is); // Key
+            int count = is.readInt();
+            Map<String, Long> index = new HashMap<>(count * 2);
+            for (int i = 0; i < count; i++) {
+                long hash = is.readLong();
+                index.put(readString(is), hash);
+                is.readLong(); // Timestamp
+                is.readLong(); // Size
+                for (int j = 0; j < 5; j++) {
+                    skipString(is);
+                }
+                is.readLong(); // Delta size
+                skipString(is); // Delta source
+                skipString(is); // Delta URL
+                is.readLong(); // Chunk size
+                int chunks = is.readInt();
+                for (int j = 0; j < chunks; j++) {
+                    skipString(is);
+                }
+            }
+            return index;
+        } catch (IOException e) {
+            Log.e(TAG, "Could not read snapshot index", e);
+            return null;
+        }
+    }
+
+    /**
+     * Hash of all the details of the update, to tell whether it changed
+     */
+    static long getContentHash(UpdateInfo update) {
+        CRC32 crc = new CRC32();
+        String content = update.getDownloadId() + '\0' + update.getTimestamp() + '\0' +
+                update.getFileSize() + '\0' + update.getName() + '\0' + update.getType() +
+                '\0' + update.getDownloadUrl() + '\0' + update.getVersion() + '\0' +
+                update.getNotes() + '\0' + update.getDeltaSource() + '\0' +
+                update.getDeltaUrl() + '\0' + update.getDeltaSize() + '\0' +
+                update.getChunkSize() + '\0' + update.getChunkHashes();
+        crc.update(content.getBytes(StandardCharsets.UTF_8));
+        return crc.getValue();
+    }
+
+    static void save(Context context, File json, List<UpdateInfo> updates) {
+        File file = getFile(context);
+        File tmp = new File(file.getAbsolutePath() + ".tmp");
+        try (DataOutputStream os = new DataOutputStream(
+                new BufferedOutputStream(new FileOutputStream(tmp)))) {
+            os.writeInt(MAGIC);
+            os.writeInt(VERSION);
+            writeString(os, getKey(context, json));
+            os.writeInt(updates.size());
+            for (UpdateInfo update : updates) {
+                os.writeLong(getContentHash(update));
+                writeString(os, update.getDownloadId());
+                os.writeLong(update.getTimestamp());
+                os.writeLong(update.getFileSize());
+                writeString(os, update.getName());
+                writeString(os, update.getType());
+                writeString(os, update.getDownloadUrl());
+                writeString(os, update.getVersion());
+                writeString(os, update.getNotes());
+                os.writeLong(update.getDeltaSize());
+                writeString(os, update.getDeltaSource());
+                writeString(os, update.getDeltaUrl());
+                os.writeLong(update.getChunkSize());
+                List<String> chunkHashes = update.getChunkHashes();
+                os.writeInt(chunkHashes != null ? chunkHashes.size() : -1);
+                if (chunkHashes != null) {
+                    for (String hash : chunkHashes) {
+                        writeString(os, hash);
+                    }
+                }
+            }
+        } catch (IOException e) {
+            Log.e(TAG, "Could not write snapshot", e);
+            tmp.delete();
+            return;
+        }
+        if (!tmp.renameTo(file)) {
+            Log.e(TAG, "Could not replace snapshot");
+            tmp.delete();
+        }
+    }
+
+    // writeUTF() is limited to 64KB, release notes can be longer
+    private static void writeString(DataOutputStream os, String value) throws IOException {
+        if (value == null) {
+            os.writeInt(-1);
+            return;
+        }
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        os.writeInt(bytes.length);
+        os.write(bytes);
+    }
+
+    private static void skipString(DataInputStream is) throws IOException {
+        int length = is.readInt();
+        if (length == -1) {
+            return;
+        }
+        if (length < 0 || is.skipBytes(length) != length) {
+            throw new IOException("Truncated string");
+        }
+    }
+
+    private static List<String> readStringList(DataInputStream is) throws IOException {
+        int count = is.readInt();
+        if (count == -1) {
+            return null;
+        }
+        if (count < 0 || count > MAX_STRING_LENGTH) {
+            throw new IOException("Invalid list length " + count);
+        }
+        List<String> list = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            list.add(readString(is));
+        }
+        return list;
+    }
+
+    private static String readString(DataInputStream is) throws IOException {
+        int length = is.readInt();
+        if (length == -1) {
+            return null;
+        }
+        if (length < 0 || length > MAX_STRING_LENGTH) {
+            throw new IOException("Invalid string length " + length);
+        }
+        byte[] bytes = new byte[length];
+        is.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+}
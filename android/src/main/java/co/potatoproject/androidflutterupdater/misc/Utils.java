@@ -26,33 +26,38 @@ import android.os.Environment;
 import android.os.SystemProperties;
 import android.os.storage.StorageManager;
 import android.preference.PreferenceManager;
+import android.util.JsonReader;
+import android.util.JsonToken;
 import android.util.Log;
 
-import org.json.JSONArray;
 import org.json.JSONException;
-import org.json.JSONObject;
 
+import java.io.BufferedInputStream;
 import java.io.BufferedReader;
 import java.io.File;
-import java.io.FileReader;
+import java.io.FileInputStream;
 import java.io.FilenameFilter;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
 import java.text.DateFormat;
 import java.util.ArrayList;
-import java.util.Enumeration;
-import java.util.HashSet;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Locale;
-import java.util.Set;
+import java.util.Map;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
-import java.util.zip.ZipEntry;
-import java.util.zip.ZipFile;
+import java.util.zip.GZIPInputStream;
 
 import co.potatoproject.androidflutterupdater.R;
 import co.potatoproject.androidflutterupdater.UpdatesDbHelper;
+import co.potatoproject.androidflutterupdater.controller.DownloadScheduler;
 import co.potatoproject.androidflutterupdater.controller.UpdaterController;
 import co.potatoproject.androidflutterupdater.controller.UpdaterService;
+import co.potatoproject.androidflutterupdater.download.BandwidthLimiter;
+import co.potatoproject.androidflutterupdater.download.DownloadClient;
 import co.potatoproject.androidflutterupdater.model.Update;
 import co.potatoproject.androidflutterupdater.model.UpdateBaseInfo;
 import co.potatoproject.androidflutterupdater.model.UpdateInfo;
@@ -82,36 +87,240 @@ public class Utils {
         return dir;
     }
 
+    /**
+     * The list is stored as the server sent it, it may be gzipped
+     */
     public static File getCachedUpdateList(Context context) {
         return new File(context.getCacheDir(), "updates.json");
     }
 
+    /**
+     * Make the builder download the updates list only if it differs from the
+     * cached one
+     */
+    public static DownloadClient.Builder setCachedUpdateListValidators(Context context,
+            DownloadClient.Builder builder) {
+        if (!getCachedUpdateList(context).exists()) {
+            return builder;
+        }
+        SharedPreferences preferences = PreferenceManager.getDefaultSharedPreferences(context);
+        return builder.setValidators(
+                preferences.getString(Constants.PREF_UPDATES_LIST_ETAG, null),
+                preferences.getString(Constants.PREF_UPDATES_LIST_LAST_MODIFIED, null));
+    }
+
+    /**
+     * Remember the validators of the updates list that was just cached
+     */
+    public static void saveCachedUpdateListValidators(Context context, String etag,
+                                                      String lastModified) {
+        SharedPreferences preferences = PreferenceManager.getDefaultSharedPreferences(context);
+        preferences.edit()
+                .putString(Constants.PREF_UPDATES_LIST_ETAG, etag)
+                .putString(Constants.PREF_UPDATES_LIST_LAST_MODIFIED, lastModified)
+                .apply();
+    }
+
+    /**
+     * Read an update object, stopping as soon as it turns out to be incompatible
+     *
+     * @param type    the required build type, or null to accept any
+     * @param minDate updates must be newer than this, use Long.MIN_VALUE to accept any
+     * @return the update, or null if incompatible or invalid
+     */
     // This should really return an UpdateBaseInfo object, but currently this only
     // used to initialize UpdateInfo objects
-    private static UpdateInfo parseJsonUpdate(JSONObject object) throws JSONException {
+    private static UpdateInfo parseJsonUpdate(JsonReader reader, String type, long minDate)
+            throws IOException {
         Update update = new Update();
-        update.setTimestamp(object.getLong("build_date"));
-        update.setName(object.getString("filename"));
-        update.setDownloadId(object.getString("md5"));
-        update.setType(object.getString("build_type"));
-        update.setFileSize(object.getLong("size"));
-        update.setDownloadUrl(object.getString("url"));
-        update.setVersion(object.getString("version"));
-        update.setNotes(object.getString("notes"));
+        // Mandatory fields found so far
+        int found = 0;
+        reader.beginObject();
+        while (reader.hasNext()) {
+            String name = reader.nextName();
+            switch (name) {
+                case "build_date":
+                    long timestamp = nextLong(reader);
+                    if (timestamp <= minDate) {
+                        skipObject(reader);
+                        return null;
+                    }
+                    update.setTimestamp(timestamp);
+                    found |= 1;
+                    break;
+                case "build_type":
+                    String buildType = nextString(reader);
+                    if (buildType != null && type != null && !buildType.equalsIgnoreCase(type)) {
+                        skipObject(reader);
+                        return null;
+                    }
+                    update.setType(buildType);
+                    found |= buildType != null ? 1 << 1 : 0;
+                    break;
+                case "filename":
+                    update.setName(nextString(reader));
+                    found |= update.getName() != null ? 1 << 2 : 0;
+                    break;
+                case "md5":
+                    update.setDownloadId(nextString(reader));
+                    found |= update.getDownloadId() != null ? 1 << 3 : 0;
+                    break;
+                case "size":
+                    long size = nextLong(reader);
+                    update.setFileSize(size);
+                    found |= size != Long.MIN_VALUE ? 1 << 4 : 0;
+                    break;
+                case "url":
+                    update.setDownloadUrl(nextString(reader));
+                    found |= update.getDownloadUrl() != null ? 1 << 5 : 0;
+                    break;
+                case "version":
+                    update.setVersion(nextString(reader));
+                    found |= update.getVersion() != null ? 1 << 6 : 0;
+                    break;
+                case "notes":
+                    update.setNotes(nextString(reader));
+                    found |= update.getNotes() != null ? 1 << 7 : 0;
+                    break;
+                case "chunks":
+                    if (reader.peek() == JsonToken.BEGIN_OBJECT) {
+                        parseJsonChunks(reader, update);
+                    } else {
+                        reader.skipValue();
+                    }
+                    break;
+                case "delta":
+                    if (reader.peek() == JsonToken.BEGIN_OBJECT) {
+                        parseJsonDelta(reader, update);
+                    } else {
+                        reader.skipValue();
+                    }
+                    break;
+                default:
+                    reader.skipValue();
+                    break;
+            }
+        }
+        reader.endObject();
+        if (found != 0xff) {
+            Log.e(TAG, "Could not parse update object " + update.getName());
+            return null;
+        }
         return update;
     }
 
-    private static boolean isCompatible(UpdateBaseInfo update, Context context) {
-        if (!SystemProperties.getBoolean(getProjectProp(Constants.PROP_UPDATER_ALLOW_DOWNGRADING), false) &&
-                update.getTimestamp() <= SystemProperties.getLong(Constants.PROP_BUILD_DATE, 0)) {
-            Log.d(TAG, update.getName() + " is older than/equal to the current build");
-            return false;
+    /**
+     * Read the optional patch from an older package. A delta missing any of
+     * its fields is ignored, the full package is downloaded instead.
+     */
+    private static void parseJsonDelta(JsonReader reader, Update update) throws IOException {
+        String source = null;
+        String url = null;
+        long size = Long.MIN_VALUE;
+        reader.beginObject();
+        while (reader.hasNext()) {
+            switch (reader.nextName()) {
+                case "source":
+                    source = nextString(reader);
+                    break;
+                case "url":
+                    url = nextString(reader);
+                    break;
+                case "size":
+                    size = nextLong(reader);
+                    break;
+                default:
+                    reader.skipValue();
+                    break;
+            }
         }
-        if (!update.getType().equalsIgnoreCase(getReleaseType(context))) {
-            Log.d(TAG, update.getName() + " has type " + update.getType());
-            return false;
+        reader.endObject();
+        if (source != null && url != null && size > 0) {
+            update.setDeltaSource(source);
+            update.setDeltaUrl(url);
+            update.setDeltaSize(size);
         }
-        return true;
+    }
+
+    /**
+     * Read the optional SHA-256 of each chunk of the package, used to verify
+     * it in parallel. Invalid lists are ignored.
+     */
+    private static void parseJsonChunks(JsonReader reader, Update update) throws IOException {
+        long size = Long.MIN_VALUE;
+        List<String> hashes = null;
+        reader.beginObject();
+        while (reader.hasNext()) {
+            switch (reader.nextName()) {
+                case "size":
+                    size = nextLong(reader);
+                    break;
+                case "sha256":
+                    if (reader.peek() != JsonToken.BEGIN_ARRAY) {
+                        reader.skipValue();
+                        break;
+                    }
+                    hashes = new ArrayList<>();
+                    reader.beginArray();
+                    boolean valid = true;
+                    while (reader.hasNext()) {
+                        String hash = nextString(reader);
+                        valid &= hash != null && hash.matches("[0-9a-fA-F]{64}");
+                        if (valid) {
+                            hashes.add(hash);
+                        }
+                    }
+                    if (!valid) {
+                        hashes = null;
+                    }
+                    reader.endArray();
+                    break;
+                default:
+                    reader.skipValue();
+                    break;
+            }
+        }
+        reader.endObject();
+        if (size > 0 && hashes != null && !hashes.isEmpty()) {
+            update.setChunkHashes(size, hashes);
+        } else {
+            Log.e(TAG, "Ignoring invalid chunk hashes of " + update.getName());
+        }
+    }
+
+    /**
+     * @return the next value as a string, or null if it isn't a string or a number
+     */
+    private static String nextString(JsonReader reader) throws IOException {
+        JsonToken token = reader.peek();
+        if (token == JsonToken.STRING || token == JsonToken.NUMBER) {
+            return reader.nextString();
+        }
+        reader.skipValue();
+        return null;
+    }
+
+    /**
+     * @return the next value as a long, or Long.MIN_VALUE if it isn't one
+     */
+    private static long nextLong(JsonReader reader) throws IOException {
+        JsonToken token = reader.peek();
+        if (token == JsonToken.STRING || token == JsonToken.NUMBER) {
+            try {
+                return reader.nextLong();
+            } catch (NumberFormatException e) {
+                // Not consumed, skip it below
+            }
+        }
+        reader.skipValue();
+        return Long.MIN_VALUE;
+    }
+
+    private static void skipObject(JsonReader reader) throws IOException {
+        while (reader.hasNext()) {
+            reader.skipValue();
+        }
+        reader.endObject();
     }
 
     public static boolean canInstall(UpdateBaseInfo update) {
@@ -138,35 +347,92 @@ public class Utils {
         return update.getTimestamp() <= SystemProperties.getLong(Constants.PROP_BUILD_DATE, 0);
     }
 
+    /**
+     * Open the file, decompressing it on the fly if it was stored as gzip
+     */
+    private static InputStream openMaybeGzipped(File file) throws IOException {
+        BufferedInputStream is = new BufferedInputStream(new FileInputStream(file));
+        try {
+            is.mark(2);
+            int magic = is.read() | (is.read() << 8);
+            is.reset();
+            return magic == GZIPInputStream.GZIP_MAGIC ? new GZIPInputStream(is) : is;
+        } catch (IOException e) {
+            is.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Parse the updates list without loading it in memory. Incompatible updates
+     * are skipped while reading, as soon as the fields telling so are found.
+     */
     public static List<UpdateInfo> parseJson(File file, boolean compatibleOnly, Context context)
             throws IOException, JSONException {
-        List<UpdateInfo> updates = new ArrayList<>();
-
-        StringBuilder json = new StringBuilder();
-        try (BufferedReader br = new BufferedReader(new FileReader(file))) {
-            for (String line; (line = br.readLine()) != null; ) {
-                json.append(line);
+        String type = null;
+        long minDate = Long.MIN_VALUE;
+        if (compatibleOnly) {
+            type = getReleaseType(context);
+            if (!SystemProperties.getBoolean(
+                    getProjectProp(Constants.PROP_UPDATER_ALLOW_DOWNGRADING), false)) {
+                minDate = SystemProperties.getLong(Constants.PROP_BUILD_DATE, 0);
             }
         }
 
-        JSONObject obj = new JSONObject(json.toString());
-        JSONArray updatesList = obj.getJSONArray("results");
-        for (int i = 0; i < updatesList.length(); i++) {
-            if (updatesList.isNull(i)) {
-                continue;
-            }
-            try {
-                UpdateInfo update = parseJsonUpdate(updatesList.getJSONObject(i));
-                if (!compatibleOnly || isCompatible(update, context)) {
-                    updates.add(update);
-                } else {
-                    Log.d(TAG, "Ignoring incompatible update " + update.getName());
+        List<UpdateInfo> updates = new ArrayList<>();
+        boolean foundResults = false;
+        int ignored = 0;
+        try (JsonReader reader = new JsonReader(new BufferedReader(new InputStreamReader(
+                openMaybeGzipped(file), StandardCharsets.UTF_8)))) {
+            reader.beginObject();
+            while (reader.hasNext()) {
+                if (!"results".equals(reader.nextName())) {
+                    reader.skipValue();
+                    continue;
+                }
+                foundResults = true;
+                reader.beginArray();
+                while (reader.hasNext()) {
+                    UpdateInfo update = null;
+                    if (reader.peek() == JsonToken.BEGIN_OBJECT) {
+                        update = parseJsonUpdate(reader, type, minDate);
+                    } else {
+                        reader.skipValue();
+                    }
+                    if (update != null) {
+                        updates.add(update);
+                    } else {
+                        ignored++;
+                    }
                 }
-            } catch (JSONException e) {
-                Log.e(TAG, "Could not parse update object, index=" + i, e);
+                reader.endArray();
             }
+            reader.endObject();
+        } catch (IllegalStateException e) {
+            // Thrown when the structure of the document isn't the expected one
+            throw new JSONException(e.getMessage());
+        }
+        if (!foundResults) {
+            throw new JSONException("No results in the updates list");
         }
+        if (ignored > 0) {
+            Log.d(TAG, "Ignored " + ignored + " incompatible or invalid updates");
+        }
+
+        return updates;
+    }
 
+    /**
+     * Same as parseJson(file, true, context), but reuses the updates parsed
+     * the last time if the list and the device didn't change
+     */
+    public static List<UpdateInfo> loadCompatibleUpdates(File file, Context context)
+            throws IOException, JSONException {
+        List<UpdateInfo> updates = UpdatesSnapshot.load(context, file);
+        if (updates == null) {
+            updates = parseJson(file, true, context);
+            UpdatesSnapshot.save(context, file, updates);
+        }
         return updates;
     }
 
@@ -182,6 +448,16 @@ public class Utils {
                 .replace("{type}", type);
     }
 
+    public static int getMaxConnections() {
+        return SystemProperties.getInt(getProjectProp(Constants.PROP_UPDATER_MAX_CONNECTIONS),
+                Constants.DEFAULT_MAX_CONNECTIONS);
+    }
+
+    public static int getMirrorProbes() {
+        return SystemProperties.getInt(getProjectProp(Constants.PROP_UPDATER_MIRROR_PROBES),
+                Constants.DEFAULT_MIRROR_PROBES);
+    }
+
     public static void triggerUpdate(Context context, String downloadId) {
         final Intent intent = new Intent(context, UpdaterService.class);
         intent.setAction(UpdaterService.ACTION_INSTALL_UPDATE);
@@ -208,64 +484,57 @@ public class Utils {
     }
 
     /**
-     * Compares two json formatted updates list files
+     * Compares a freshly downloaded updates list with the one we know of. The
+     * new list is parsed once, the old list only if there's no snapshot of it.
+     * The new list becomes the known one with
+     * {@link #replaceUpdatesList(File, File, UpdatesDiff, Context)}.
      *
-     * @param oldJson old update list
-     * @param newJson new update list
-     * @return true if newJson has at least a compatible update not available in oldJson
+     * @param oldJson the cached updates list, may not exist
+     * @param newJson the new updates list
+     * @return the compatible updates of newJson and how they changed
      * @throws IOException   may throw IOException
      * @throws JSONException may throw JSONException
      */
-    public static boolean checkForNewUpdates(File oldJson, File newJson, Context context)
+    public static UpdatesDiff diffUpdates(File oldJson, File newJson, Context context)
             throws IOException, JSONException {
-        List<UpdateInfo> oldList = parseJson(oldJson, true, context);
-        List<UpdateInfo> newList = parseJson(newJson, true, context);
-        Set<String> oldIds = new HashSet<>();
-        for (UpdateInfo update : oldList) {
-            oldIds.add(update.getDownloadId());
-        }
-        // In case of no new updates, the old list should
-        // have all (if not more) the updates
-        for (UpdateInfo update : newList) {
-            if (!oldIds.contains(update.getDownloadId())) {
-                return true;
+        Map<String, Long> known = UpdatesSnapshot.loadIndex(context);
+        if (known == null && oldJson.exists()) {
+            known = new HashMap<>();
+            for (UpdateInfo update : parseJson(oldJson, true, context)) {
+                known.put(update.getDownloadId(), UpdatesSnapshot.getContentHash(update));
             }
         }
-        return false;
+        List<UpdateInfo> updates = parseJson(newJson, true, context);
+        UpdatesDiff diff = new UpdatesDiff(known, updates);
+        Log.d(TAG, "Updates list diff: " + diff);
+        return diff;
     }
 
     /**
-     * Get the offset to the compressed data of a file inside the given zip
+     * Replace the cached updates list with the new one and save the snapshot
+     * of its updates. The snapshot is saved once the list is in place, so that
+     * it never describes a list that didn't replace the cached one.
      *
-     * @param zipFile   input zip file
-     * @param entryPath full path of the entry
-     * @return the offset of the compressed, or -1 if not found
-     * @throws IllegalArgumentException if the given entry is not found
+     * @param diff the result of diffUpdates(json, newJson, context)
+     * @return whether the new list replaced the cached one
      */
-    public static long getZipEntryOffset(ZipFile zipFile, String entryPath) {
-        // Each entry has an header of (30 + n + m) bytes
-        // 'n' is the length of the file name
-        // 'm' is the length of the extra field
-        final int FIXED_HEADER_SIZE = 30;
-        Enumeration<? extends ZipEntry> zipEntries = zipFile.entries();
-        long offset = 0;
-        while (zipEntries.hasMoreElements()) {
-            ZipEntry entry = zipEntries.nextElement();
-            int n = entry.getName().length();
-            int m = entry.getExtra() == null ? 0 : entry.getExtra().length;
-            int headerSize = FIXED_HEADER_SIZE + n + m;
-            offset += headerSize;
-            if (entry.getName().equals(entryPath)) {
-                return offset;
-            }
-            offset += entry.getCompressedSize();
+    public static boolean replaceUpdatesList(File json, File newJson, UpdatesDiff diff,
+                                             Context context) {
+        if (!newJson.renameTo(json)) {
+            Log.e(TAG, "Could not replace " + json.getAbsolutePath());
+            return false;
         }
-        Log.e(TAG, "Entry " + entryPath + " not found");
-        throw new IllegalArgumentException("The given entry was not found");
+        UpdatesSnapshot.save(context, json, diff.getUpdates());
+        return true;
     }
 
+    /**
+     * Undo the staging of packages for uncrypt. A staged package that took the
+     * place of the downloaded one is moved back, since it's the only copy of a
+     * package the database still lists, copies are deleted.
+     */
     @SuppressWarnings("ResultOfMethodCallIgnored")
-    private static void removeUncryptFiles(File downloadPath) {
+    private static void restoreUncryptFiles(File downloadPath) {
         File[] uncryptFiles = downloadPath.listFiles(new FilenameFilter() {
             @Override
             public boolean accept(File dir, String name) {
@@ -276,7 +545,14 @@ public class Utils {
             return;
         }
         for (File file : uncryptFiles) {
-            file.delete();
+            String name = file.getName();
+            File packageFile = new File(file.getParentFile(),
+                    name.substring(0, name.length() - Constants.UNCRYPT_FILE_EXT.length()));
+            if (packageFile.exists()) {
+                file.delete();
+            } else if (!file.renameTo(packageFile)) {
+                Log.e(TAG, "Could not restore " + packageFile);
+            }
         }
     }
 
@@ -296,7 +572,7 @@ public class Utils {
         }
         SharedPreferences preferences = PreferenceManager.getDefaultSharedPreferences(context);
 
-        removeUncryptFiles(downloadPath);
+        restoreUncryptFiles(downloadPath);
 
         long buildTimestamp = SystemProperties.getLong(Constants.PROP_BUILD_DATE, 0);
         long prevTimestamp = preferences.getLong(Constants.PREF_INSTALL_OLD_TIMESTAMP, 0);
@@ -368,16 +644,10 @@ public class Utils {
         return SystemProperties.getBoolean(Constants.PROP_AB_DEVICE, false);
     }
 
-    private static boolean isABUpdate(ZipFile zipFile) {
-        return zipFile.getEntry(Constants.AB_PAYLOAD_BIN_PATH) != null &&
-                zipFile.getEntry(Constants.AB_PAYLOAD_PROPERTIES_PATH) != null;
-    }
-
     public static boolean isABUpdate(File file) throws IOException {
-        ZipFile zipFile = new ZipFile(file);
-        boolean isAB = isABUpdate(zipFile);
-        zipFile.close();
-        return isAB;
+        ZipIndex zipIndex = ZipIndex.get(file);
+        return zipIndex.hasEntry(Constants.AB_PAYLOAD_BIN_PATH) &&
+                zipIndex.hasEntry(Constants.AB_PAYLOAD_PROPERTIES_PATH);
     }
 
     public static boolean isEncrypted(Context context, File file) {
@@ -461,6 +731,50 @@ public class Utils {
         return prop.replace("{project}", SystemProperties.get(Constants.PROP_PROJECT_NAME));
     }
 
+    public static long getBandwidthLimit(Context context) {
+        return PreferenceManager.getDefaultSharedPreferences(context)
+                .getLong(Constants.PREF_BANDWIDTH_LIMIT, BandwidthLimiter.UNLIMITED);
+    }
+
+    public static void setBandwidthLimit(Context context, UpdaterController updaterController,
+                                         long bytesPerSecond) {
+        SharedPreferences preferences = PreferenceManager.getDefaultSharedPreferences(context);
+        preferences.edit().putLong(Constants.PREF_BANDWIDTH_LIMIT, bytesPerSecond).apply();
+        updaterController.setBandwidthLimit(bytesPerSecond);
+    }
+
+    public static int getMaxConcurrentDownloads(Context context) {
+        return PreferenceManager.getDefaultSharedPreferences(context)
+                .getInt(Constants.PREF_MAX_CONCURRENT_DOWNLOADS,
+                        Constants.DEFAULT_MAX_CONCURRENT_DOWNLOADS);
+    }
+
+    public static void setMaxConcurrentDownloads(Context context,
+                                                 UpdaterController updaterController,
+                                                 int maxDownloads) {
+        SharedPreferences preferences = PreferenceManager.getDefaultSharedPreferences(context);
+        preferences.edit().putInt(Constants.PREF_MAX_CONCURRENT_DOWNLOADS, maxDownloads).apply();
+        updaterController.setMaxConcurrentDownloads(maxDownloads);
+    }
+
+    public static DownloadScheduler.Policy getDownloadPolicy(Context context) {
+        String policy = PreferenceManager.getDefaultSharedPreferences(context)
+                .getString(Constants.PREF_DOWNLOAD_POLICY, null);
+        try {
+            return policy != null ? DownloadScheduler.Policy.valueOf(policy) :
+                    DownloadScheduler.Policy.PRIORITY;
+        } catch (IllegalArgumentException e) {
+            return DownloadScheduler.Policy.PRIORITY;
+        }
+    }
+
+    public static void setDownloadPolicy(Context context, UpdaterController updaterController,
+                                         DownloadScheduler.Policy policy) {
+        SharedPreferences preferences = PreferenceManager.getDefaultSharedPreferences(context);
+        preferences.edit().putString(Constants.PREF_DOWNLOAD_POLICY, policy.name()).apply();
+        updaterController.setDownloadPolicy(policy);
+    }
+
     public static boolean getVerify(Context context) {
         return PreferenceManager.getDefaultSharedPreferences(context)
                 .getBoolean(Constants.PREF_VERIFY_MODE, true);
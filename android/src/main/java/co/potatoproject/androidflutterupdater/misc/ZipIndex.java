@@ -0,0 +1,341 @@
+/*
+ * Copyright (C) 2019 The Potato Open Sauce Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package co.potatoproject.androidflutterupdater.misc;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+import java.util.zip.ZipEntry;
+
+/**
+ * Index of the entries of a zip file, built from its central directory.
+ * The data offset of an entry is read from its own local header, which
+ * isn't always the same size as the central directory suggests.
+ * Indexes are cached until the size or the modification time of the file
+ * change.
+ */
+public final class ZipIndex {
+
+    private static final int EOCD_SIGNATURE = 0x06054b50;
+    private static final int EOCD_SIZE = 22;
+    private static final int ZIP64_EOCD_LOCATOR_SIGNATURE = 0x07064b50;
+    private static final int ZIP64_EOCD_LOCATOR_SIZE = 20;
+    private static final int ZIP64_EOCD_SIGNATURE = 0x06064b50;
+    private static final int CENTRAL_HEADER_SIGNATURE = 0x02014b50;
+    private static final int CENTRAL_HEADER_SIZE = 46;
+    private static final int LOCAL_HEADER_SIGNATURE = 0x04034b50;
+    private static final int LOCAL_HEADER_SIZE = 30;
+    private static final int ZIP64_EXTRA_ID = 0x0001;
+    private static final int MAX_COMMENT_LENGTH = 0xffff;
+
+    private static final int MAX_CACHED_INDEXES = 4;
+
+    private static final Map<String, ZipIndex> sCache =
+            new LinkedHashMap<String, ZipIndex>(MAX_CACHED_INDEXES, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String, ZipIndex> eldest) {
+                    return size() > MAX_CACHED_INDEXES;
+                }
+            };
+
+    public static final class Entry {
+        private final String mName;
+        private final int mMethod;
+        private final long mCompressedSize;
+        private final long mSize;
+        private final long mLocalHeaderOffset;
+        private long mDataOffset = -1;
+
+        private Entry(String name, int method, long compressedSize, long size,
+                      long localHeaderOffset) {
+            mName = name;
+            mMethod = method;
+            mCompressedSize = compressedSize;
+            mSize = size;
+            mLocalHeaderOffset = localHeaderOffset;
+        }
+
+        public String getName() {
+            return mName;
+        }
+
+        /**
+         * @return ZipEntry.STORED or ZipEntry.DEFLATED
+         */
+        public int getMethod() {
+            return mMethod;
+        }
+
+        public long getCompressedSize() {
+            return mCompressedSize;
+        }
+
+        public long getSize() {
+            return mSize;
+        }
+    }
+
+    private final File mFile;
+    private final long mLength;
+    private final long mLastModified;
+    private final Map<String, Entry> mEntries;
+
+    private ZipIndex(File file, long length, long lastModified, Map<String, Entry> entries) {
+        mFile = file;
+        mLength = length;
+        mLastModified = lastModified;
+        mEntries = entries;
+    }
+
+    /**
+     * @return the index of the given zip, reusing the cached one if the file
+     * didn't change since it was built
+     * @throws IOException if the file can't be read or isn't a zip
+     */
+    public static ZipIndex get(File file) throws IOException {
+        String key = file.getAbsolutePath();
+        long length = file.length();
+        long lastModified = file.lastModified();
+        synchronized (sCache) {
+            ZipIndex index = sCache.get(key);
+            if (index != null && index.mLength == length &&
+                    index.mLastModified == lastModified) {
+                return index;
+            }
+        }
+        ZipIndex index;
+        try (RandomAccessFile raf = new RandomAccessFile(file, "r")) {
+            index = new ZipIndex(file, length, lastModified, readCentralDirectory(raf));
+        }
+        synchronized (sCache) {
+            sCache.put(key, index);
+        }
+        return index;
+    }
+
+    public boolean hasEntry(String name) {
+        return mEntries.containsKey(name);
+    }
+
+    public Entry getEntry(String name) {
+        return mEntries.get(name);
+    }
+
+    public int size() {
+        return mEntries.size();
+    }
+
+    /**
+     * Get the offset of the data of an entry, as needed to point update_engine
+     * at the payload of an A/B package
+     *
+     * @return the offset of the first byte of the (compressed) data
+     * @throws IllegalArgumentException if the given entry is not found
+     * @throws IOException              if the local header can't be read
+     */
+    public long getDataOffset(String name) throws IOException {
+        Entry entry = mEntries.get(name);
+        if (entry == null) {
+            throw new IllegalArgumentException("The given entry was not found: " + name);
+        }
+        synchronized (entry) {
+            if (entry.mDataOffset < 0) {
+                try (RandomAccessFile raf = new RandomAccessFile(mFile, "r")) {
+                    entry.mDataOffset = readDataOffset(raf.getChannel(), entry);
+                }
+            }
+            return entry.mDataOffset;
+        }
+    }
+
+    /**
+     * Read the whole content of a small entry, decompressing it if needed
+     */
+    public InputStream getInputStream(String name) throws IOException {
+        Entry entry = mEntries.get(name);
+        if (entry == null) {
+            throw new IllegalArgumentException("The given entry was not found: " + name);
+        }
+        if (entry.mCompressedSize > Integer.MAX_VALUE || entry.mSize > Integer.MAX_VALUE) {
+            throw new IOException("Entry too large to be read in memory: " + name);
+        }
+        long offset = getDataOffset(name);
+        byte[] data = new byte[(int) entry.mCompressedSize];
+        try (RandomAccessFile raf = new RandomAccessFile(mFile, "r")) {
+            raf.seek(offset);
+            raf.readFully(data);
+        }
+        if (entry.mMethod == ZipEntry.STORED) {
+            return new ByteArrayInputStream(data);
+        } else if (entry.mMethod != ZipEntry.DEFLATED) {
+            throw new IOException("Unsupported compression method " + entry.mMethod);
+        }
+        Inflater inflater = new Inflater(true);
+        try {
+            inflater.setInput(data);
+            byte[] content = new byte[(int) entry.mSize];
+            int count = 0;
+            while (count < content.length && !inflater.finished()) {
+                int inflated = inflater.inflate(content, count, content.length - count);
+                if (inflated == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                    break;
+                }
+                count += inflated;
+            }
+            if (count != content.length) {
+                throw new IOException("Truncated entry " + name);
+            }
+            return new ByteArrayInputStream(content);
+        } catch (DataFormatException e) {
+            throw new IOException("Corrupted entry " + name, e);
+        } finally {
+            inflater.end();
+        }
+    }
+
+    private static Map<String, Entry> readCentralDirectory(RandomAccessFile raf)
+            throws IOException {
+        FileChannel channel = raf.getChannel();
+        long fileLength = channel.size();
+        if (fileLength < EOCD_SIZE) {
+            throw new IOException("Not a zip file");
+        }
+
+        // The end of central directory record is followed by a comment of up to 64KB
+        long tailOffset = Math.max(0, fileLength - EOCD_SIZE - MAX_COMMENT_LENGTH);
+        ByteBuffer tail = map(channel, tailOffset, fileLength - tailOffset);
+        int eocd = -1;
+        for (int i = tail.limit() - EOCD_SIZE; i >= 0; i--) {
+            if (tail.getInt(i) == EOCD_SIGNATURE &&
+                    i + EOCD_SIZE + (tail.getShort(i + 20) & 0xffff) == tail.limit()) {
+                eocd = i;
+                break;
+            }
+        }
+        if (eocd < 0) {
+            throw new IOException("End of central directory not found");
+        }
+        long count = tail.getShort(eocd + 10) & 0xffff;
+        long cdSize = tail.getInt(eocd + 12) & 0xffffffffL;
+        long cdOffset = tail.getInt(eocd + 16) & 0xffffffffL;
+
+        int locator = eocd - ZIP64_EOCD_LOCATOR_SIZE;
+        if (locator >= 0 && tail.getInt(locator) == ZIP64_EOCD_LOCATOR_SIGNATURE) {
+            long zip64EocdOffset = tail.getLong(locator + 8);
+            ByteBuffer zip64Eocd = map(channel, zip64EocdOffset, 56);
+            if (zip64Eocd.getInt(0) != ZIP64_EOCD_SIGNATURE) {
+                throw new IOException("Invalid zip64 end of central directory");
+            }
+            count = zip64Eocd.getLong(32);
+            cdSize = zip64Eocd.getLong(40);
+            cdOffset = zip64Eocd.getLong(48);
+        }
+        if (cdOffset + cdSize > fileLength || cdSize > Integer.MAX_VALUE) {
+            throw new IOException("Invalid central directory");
+        }
+
+        ByteBuffer cd = map(channel, cdOffset, cdSize);
+        Map<String, Entry> entries = new HashMap<>((int) Math.min(count, 1 << 16) * 2);
+        int position = 0;
+        for (long i = 0; i < count; i++) {
+            if (position + CENTRAL_HEADER_SIZE > cd.limit() ||
+                    cd.getInt(position) != CENTRAL_HEADER_SIGNATURE) {
+                throw new IOException("Invalid central directory entry " + i);
+            }
+            int method = cd.getShort(position + 10) & 0xffff;
+            long compressedSize = cd.getInt(position + 20) & 0xffffffffL;
+            long size = cd.getInt(position + 24) & 0xffffffffL;
+            int nameLength = cd.getShort(position + 28) & 0xffff;
+            int extraLength = cd.getShort(position + 30) & 0xffff;
+            int commentLength = cd.getShort(position + 32) & 0xffff;
+            long localHeaderOffset = cd.getInt(position + 42) & 0xffffffffL;
+            int next = position + CENTRAL_HEADER_SIZE + nameLength + extraLength + commentLength;
+            if (next > cd.limit()) {
+                throw new IOException("Truncated central directory entry " + i);
+            }
+
+            byte[] name = new byte[nameLength];
+            cd.position(position + CENTRAL_HEADER_SIZE);
+            cd.get(name);
+
+            // Values that don't fit are in the zip64 extra field, in this order
+            int extra = position + CENTRAL_HEADER_SIZE + nameLength;
+            int extraEnd = extra + extraLength;
+            while (extra + 4 <= extraEnd) {
+                int id = cd.getShort(extra) & 0xffff;
+                int length = cd.getShort(extra + 2) & 0xffff;
+                int field = extra + 4;
+                if (id == ZIP64_EXTRA_ID) {
+                    if (size == 0xffffffffL && field + 8 <= extraEnd) {
+                        size = cd.getLong(field);
+                        field += 8;
+                    }
+                    if (compressedSize == 0xffffffffL && field + 8 <= extraEnd) {
+                        compressedSize = cd.getLong(field);
+                        field += 8;
+                    }
+                    if (localHeaderOffset == 0xffffffffL && field + 8 <= extraEnd) {
+                        localHeaderOffset = cd.getLong(field);
+                    }
+                    break;
+                }
+                extra = field + length;
+            }
+
+            String entryName = new String(name, StandardCharsets.UTF_8);
+            entries.put(entryName, new Entry(entryName, method, compressedSize, size,
+                    localHeaderOffset));
+            position = next;
+        }
+        return entries;
+    }
+
+    private static long readDataOffset(FileChannel channel, Entry entry) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(LOCAL_HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+        while (header.hasRemaining()) {
+            if (channel.read(header, entry.mLocalHeaderOffset + header.position()) < 0) {
+                throw new IOException("Truncated local header of " + entry.mName);
+            }
+        }
+        if (header.getInt(0) != LOCAL_HEADER_SIGNATURE) {
+            throw new IOException("Invalid local header of " + entry.mName);
+        }
+        // The extra field of the local header can differ from the central one
+        int nameLength = header.getShort(26) & 0xffff;
+        int extraLength = header.getShort(28) & 0xffff;
+        return entry.mLocalHeaderOffset + LOCAL_HEADER_SIZE + nameLength + extraLength;
+    }
+
+    private static ByteBuffer map(FileChannel channel, long offset, long size)
+            throws IOException {
+        if (offset < 0 || size < 0 || offset + size > channel.size()) {
+            throw new IOException("Invalid zip structure");
+        }
+        return channel.map(FileChannel.MapMode.READ_ONLY, offset, size)
+                .order(ByteOrder.LITTLE_ENDIAN);
+    }
+}
@@ -19,15 +19,17 @@ import java.io.File;
 
 public class Update extends UpdateBase implements UpdateInfo {
 
-    private UpdateStatus mStatus = UpdateStatus.UNKNOWN;
-    private int mPersistentStatus = UpdateStatus.Persistent.UNKNOWN;
-    private File mFile;
-    private int mProgress;
-    private long mEta;
-    private long mSpeed;
-    private int mInstallProgress;
-    private boolean mAvailableOnline;
-    private boolean mIsFinalizing;
+    private volatile UpdateStatus mStatus = UpdateStatus.UNKNOWN;
+    private volatile int mPersistentStatus = UpdateStatus.Persistent.UNKNOWN;
+    private volatile File mFile;
+    private volatile int mProgress;
+    private volatile long mDownloadedBytes;
+    private volatile long mEta;
+    private volatile long mSpeed;
+    private volatile int mInstallProgress;
+    private volatile boolean mAvailableOnline;
+    private volatile boolean mIsFinalizing;
+    private volatile long mRepairedBytes;
 
     public Update() {
     }
@@ -42,11 +44,13 @@ public class Update extends UpdateBase implements UpdateInfo {
         mPersistentStatus = update.getPersistentStatus();
         mFile = update.getFile();
         mProgress = update.getProgress();
+        mDownloadedBytes = update.getDownloadedBytes();
         mEta = update.getEta();
         mSpeed = update.getSpeed();
         mInstallProgress = update.getInstallProgress();
         mAvailableOnline = update.getAvailableOnline();
         mIsFinalizing = update.getFinalizing();
+        mRepairedBytes = update.getRepairedBytes();
     }
 
     @Override
@@ -85,6 +89,15 @@ public class Update extends UpdateBase implements UpdateInfo {
         mProgress = progress;
     }
 
+    @Override
+    public long getDownloadedBytes() {
+        return mDownloadedBytes;
+    }
+
+    public void setDownloadedBytes(long downloadedBytes) {
+        mDownloadedBytes = downloadedBytes;
+    }
+
     @Override
     public long getEta() {
         return mEta;
@@ -129,4 +142,13 @@ public class Update extends UpdateBase implements UpdateInfo {
     public void setFinalizing(boolean finalizing) {
         mIsFinalizing = finalizing;
     }
+
+    @Override
+    public long getRepairedBytes() {
+        return mRepairedBytes;
+    }
+
+    public void setRepairedBytes(long repairedBytes) {
+        mRepairedBytes = repairedBytes;
+    }
 }
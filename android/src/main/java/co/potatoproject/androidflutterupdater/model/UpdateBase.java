@@ -15,6 +15,8 @@
  */
 package co.potatoproject.androidflutterupdater.model;
 
+import java.util.List;
+
 public class UpdateBase implements UpdateBaseInfo {
 
     private String mName;
@@ -25,6 +27,11 @@ public class UpdateBase implements UpdateBaseInfo {
     private String mVersion;
     private long mFileSize;
     private String mNotes;
+    private String mDeltaSource;
+    private String mDeltaUrl;
+    private long mDeltaSize;
+    private long mChunkSize;
+    private List<String> mChunkHashes;
 
     public UpdateBase() {
     }
@@ -38,6 +45,11 @@ public class UpdateBase implements UpdateBaseInfo {
         mVersion = update.getVersion();
         mFileSize = update.getFileSize();
         mNotes = update.getNotes();
+        mDeltaSource = update.getDeltaSource();
+        mDeltaUrl = update.getDeltaUrl();
+        mDeltaSize = update.getDeltaSize();
+        mChunkSize = update.getChunkSize();
+        mChunkHashes = update.getChunkHashes();
     }
 
     @Override
@@ -111,4 +123,46 @@ public class UpdateBase implements UpdateBaseInfo {
     public void setNotes(String notes) {
         mNotes = notes;
     }
+
+    @Override
+    public String getDeltaSource() {
+        return mDeltaSource;
+    }
+
+    public void setDeltaSource(String deltaSource) {
+        mDeltaSource = deltaSource;
+    }
+
+    @Override
+    public String getDeltaUrl() {
+        return mDeltaUrl;
+    }
+
+    public void setDeltaUrl(String deltaUrl) {
+        mDeltaUrl = deltaUrl;
+    }
+
+    @Override
+    public long getDeltaSize() {
+        return mDeltaSize;
+    }
+
+    public void setDeltaSize(long deltaSize) {
+        mDeltaSize = deltaSize;
+    }
+
+    @Override
+    public long getChunkSize() {
+        return mChunkSize;
+    }
+
+    @Override
+    public List<String> getChunkHashes() {
+        return mChunkHashes;
+    }
+
+    public void setChunkHashes(long chunkSize, List<String> chunkHashes) {
+        mChunkSize = chunkSize;
+        mChunkHashes = chunkHashes;
+    }
 }
@@ -15,6 +15,8 @@
  */
 package co.potatoproject.androidflutterupdater.model;
 
+import java.util.List;
+
 public interface UpdateBaseInfo {
     String getName();
 
@@ -31,4 +33,24 @@ public interface UpdateBaseInfo {
     long getFileSize();
 
     String getNotes();
+
+    /**
+     * @return the download id of the package the delta applies to, or null if
+     * there's no delta
+     */
+    String getDeltaSource();
+
+    String getDeltaUrl();
+
+    long getDeltaSize();
+
+    /**
+     * @return the size of the chunks listed by getChunkHashes(), 0 if none
+     */
+    long getChunkSize();
+
+    /**
+     * @return the SHA-256 of each chunk of the package, or null if unknown
+     */
+    List<String> getChunkHashes();
 }
@@ -28,6 +28,11 @@ public interface UpdateInfo extends UpdateBaseInfo {
 
     int getProgress();
 
+    /**
+     * @return how much of the package was downloaded, in bytes
+     */
+    long getDownloadedBytes();
+
     long getEta();
 
     long getSpeed();
@@ -37,4 +42,9 @@ public interface UpdateInfo extends UpdateBaseInfo {
     boolean getAvailableOnline();
 
     boolean getFinalizing();
+
+    /**
+     * @return the size of the corrupted chunks that were downloaded again
+     */
+    long getRepairedBytes();
 }
@@ -0,0 +1,212 @@
+/*
+ * Copyright (C) 2019 The Potato Open Sauce Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package co.potatoproject.androidflutterupdater.model;
+
+import java.io.File;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Immutable copy of an update, taken after each change. Readers on any thread
+ * see all the values of the same version without locking.
+ */
+public final class UpdateSnapshot implements UpdateInfo {
+
+    private final long mSnapshotVersion;
+
+    private final String mName;
+    private final String mDownloadUrl;
+    private final String mDownloadId;
+    private final long mTimestamp;
+    private final String mType;
+    private final String mVersion;
+    private final long mFileSize;
+    private final String mNotes;
+    private final String mDeltaSource;
+    private final String mDeltaUrl;
+    private final long mDeltaSize;
+    private final long mChunkSize;
+    private final List<String> mChunkHashes;
+
+    private final UpdateStatus mStatus;
+    private final int mPersistentStatus;
+    private final File mFile;
+    private final int mProgress;
+    private final long mDownloadedBytes;
+    private final long mEta;
+    private final long mSpeed;
+    private final int mInstallProgress;
+    private final boolean mAvailableOnline;
+    private final boolean mIsFinalizing;
+    private final long mRepairedBytes;
+
+    /**
+     * @param snapshotVersion greater than the one of the previous snapshot of
+     *                        the same update
+     */
+    public UpdateSnapshot(UpdateInfo update, long snapshotVersion) {
+        mSnapshotVersion = snapshotVersion;
+        mName = update.getName();
+        mDownloadUrl = update.getDownloadUrl();
+        mDownloadId = update.getDownloadId();
+        mTimestamp = update.getTimestamp();
+        mType = update.getType();
+        mVersion = update.getVersion();
+        mFileSize = update.getFileSize();
+        mNotes = update.getNotes();
+        mDeltaSource = update.getDeltaSource();
+        mDeltaUrl = update.getDeltaUrl();
+        mDeltaSize = update.getDeltaSize();
+        mChunkSize = update.getChunkSize();
+        List<String> chunkHashes = update.getChunkHashes();
+        mChunkHashes = chunkHashes != null ? Collections.unmodifiableList(chunkHashes) : null;
+        mStatus = update.getStatus();
+        mPersistentStatus = update.getPersistentStatus();
+        mFile = update.getFile();
+        mProgress = update.getProgress();
+        mDownloadedBytes = update.getDownloadedBytes();
+        mEta = update.getEta();
+        mSpeed = update.getSpeed();
+        mInstallProgress = update.getInstallProgress();
+        mAvailableOnline = update.getAvailableOnline();
+        mIsFinalizing = update.getFinalizing();
+        mRepairedBytes = update.getRepairedBytes();
+    }
+
+    public long getSnapshotVersion() {
+        return mSnapshotVersion;
+    }
+
+    @Override
+    public String getName() {
+        return mName;
+    }
+
+    @Override
+    public String getDownloadId() {
+        return mDownloadId;
+    }
+
+    @Override
+    public long getTimestamp() {
+        return mTimestamp;
+    }
+
+    @Override
+    public String getType() {
+        return mType;
+    }
+
+    @Override
+    public String getVersion() {
+        return mVersion;
+    }
+
+    @Override
+    public String getDownloadUrl() {
+        return mDownloadUrl;
+    }
+
+    @Override
+    public long getFileSize() {
+        return mFileSize;
+    }
+
+    @Override
+    public String getNotes() {
+        return mNotes;
+    }
+
+    @Override
+    public String getDeltaSource() {
+        return mDeltaSource;
+    }
+
+    @Override
+    public String getDeltaUrl() {
+        return mDeltaUrl;
+    }
+
+    @Override
+    public long getDeltaSize() {
+        return mDeltaSize;
+    }
+
+    @Override
+    public long getChunkSize() {
+        return mChunkSize;
+    }
+
+    @Override
+    public List<String> getChunkHashes() {
+        return mChunkHashes;
+    }
+
+    @Override
+    public UpdateStatus getStatus() {
+        return mStatus;
+    }
+
+    @Override
+    public int getPersistentStatus() {
+        return mPersistentStatus;
+    }
+
+    @Override
+    public File getFile() {
+        return mFile;
+    }
+
+    @Override
+    public int getProgress() {
+        return mProgress;
+    }
+
+    @Override
+    public long getDownloadedBytes() {
+        return mDownloadedBytes;
+    }
+
+    @Override
+    public long getEta() {
+        return mEta;
+    }
+
+    @Override
+    public long getSpeed() {
+        return mSpeed;
+    }
+
+    @Override
+    public int getInstallProgress() {
+        return mInstallProgress;
+    }
+
+    @Override
+    public boolean getAvailableOnline() {
+        return mAvailableOnline;
+    }
+
+    @Override
+    public boolean getFinalizing() {
+        return mIsFinalizing;
+    }
+
+    @Override
+    public long getRepairedBytes() {
+        return mRepairedBytes;
+    }
+}
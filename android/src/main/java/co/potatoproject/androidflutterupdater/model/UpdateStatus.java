@@ -29,7 +29,38 @@ public enum UpdateStatus {
     INSTALLING,
     INSTALLED,
     INSTALLATION_FAILED,
-    INSTALLATION_CANCELLED;
+    INSTALLATION_CANCELLED,
+    QUEUED;
+
+    /**
+     * @return whether an update can go from this status to the given one
+     */
+    public boolean canMoveTo(UpdateStatus status) {
+        switch (this) {
+            case STARTING:
+            case DOWNLOADING:
+                return status == STARTING || status == DOWNLOADING || status == PAUSED ||
+                        status == PAUSED_ERROR || status == VERIFYING ||
+                        status == VERIFICATION_FAILED;
+            case VERIFYING:
+                // Starting again repairs the package or downloads it in full
+                return status == VERIFIED || status == VERIFICATION_FAILED ||
+                        status == STARTING || status == PAUSED_ERROR || status == DELETED;
+            case INSTALLING:
+                return status == INSTALLING || status == INSTALLED ||
+                        status == INSTALLATION_FAILED || status == INSTALLATION_CANCELLED;
+            case QUEUED:
+                // Waiting for a download slot
+                return status == STARTING || status == VERIFYING || status == PAUSED ||
+                        status == PAUSED_ERROR || status == DELETED;
+            default:
+                // Nothing is running, the update can be downloaded, verified,
+                // installed or deleted
+                return status == STARTING || status == QUEUED || status == VERIFYING ||
+                        status == PAUSED_ERROR || status == DELETED || status == INSTALLING ||
+                        status == INSTALLED || status == INSTALLATION_FAILED;
+        }
+    }
 
     public static final class Persistent {
         public static final int UNKNOWN = 0;
@@ -0,0 +1,194 @@
+/*
+ * Copyright (C) 2019 The Potato Open Sauce Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package co.potatoproject.androidflutterupdater.controller;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import co.potatoproject.androidflutterupdater.model.Update;
+import co.potatoproject.androidflutterupdater.model.UpdateStatus;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+@SuppressWarnings("Convert2Lambda")
+public class DownloadEntryTest {
+
+    private static final int THREADS = 8;
+    private static final int MOVES_PER_THREAD = 20000;
+    private static final int ROUNDS = 2000;
+
+    private static final UpdateStatus[] STATUSES = UpdateStatus.values();
+
+    /**
+     * Records every status change, which moveTo() must make one at a time
+     */
+    private static class RecordingUpdate extends Update {
+        final List<UpdateStatus[]> mTransitions =
+                Collections.synchronizedList(new ArrayList<UpdateStatus[]>());
+        final AtomicInteger mIllegal = new AtomicInteger();
+        final AtomicInteger mOverlapping = new AtomicInteger();
+        private final AtomicBoolean mChanging = new AtomicBoolean();
+
+        RecordingUpdate() {
+            setDownloadId("test");
+        }
+
+        @Override
+        public void setStatus(UpdateStatus status) {
+            if (!mChanging.compareAndSet(false, true)) {
+                mOverlapping.incrementAndGet();
+            }
+            UpdateStatus current = getStatus();
+            if (!current.canMoveTo(status)) {
+                mIllegal.incrementAndGet();
+            }
+            mTransitions.add(new UpdateStatus[]{current, status});
+            super.setStatus(status);
+            mChanging.set(false);
+        }
+    }
+
+    private static void runConcurrently(int threads, final Callable<Void> task)
+            throws Exception {
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try {
+            List<Future<Void>> futures = new ArrayList<>();
+            for (int i = 0; i < threads; i++) {
+                futures.add(executor.submit(task));
+            }
+            for (Future<Void> future : futures) {
+                future.get();
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void concurrentMovesFollowTheTransitionTable() throws Exception {
+        final RecordingUpdate update = new RecordingUpdate();
+        final UpdaterController.DownloadEntry entry = new UpdaterController.DownloadEntry(update);
+        final AtomicInteger moved = new AtomicInteger();
+        final CountDownLatch start = new CountDownLatch(1);
+
+        runConcurrently(THREADS, new Callable<Void>() {
+            @Override
+            public Void call() throws Exception {
+                ThreadLocalRandom random = ThreadLocalRandom.current();
+                start.countDown();
+                start.await();
+                for (int i = 0; i < MOVES_PER_THREAD; i++) {
+                    UpdateStatus status = STATUSES[random.nextInt(STATUSES.length)];
+                    boolean changed;
+                    if (random.nextBoolean()) {
+                        changed = entry.moveTo(status);
+                    } else {
+                        changed = entry.moveTo(status,
+                                STATUSES[random.nextInt(STATUSES.length)],
+                                STATUSES[random.nextInt(STATUSES.length)]);
+                    }
+                    if (changed) {
+                        moved.incrementAndGet();
+                    }
+                }
+                return null;
+            }
+        });
+
+        assertEquals(0, update.mIllegal.get());
+        assertEquals(0, update.mOverlapping.get());
+        assertTrue("No transition happened", moved.get() > 0);
+
+        // Every successful move is recorded and picks up where the previous one left
+        assertEquals(moved.get(), update.mTransitions.size());
+        UpdateStatus previous = UpdateStatus.UNKNOWN;
+        for (UpdateStatus[] transition : update.mTransitions) {
+            assertEquals(previous, transition[0]);
+            previous = transition[1];
+        }
+        assertEquals(previous, update.getStatus());
+
+        // One snapshot for the entry plus one per move, the last one is current
+        assertEquals(moved.get() + 1, entry.mSnapshot.get().getSnapshotVersion());
+        assertEquals(update.getStatus(), entry.mSnapshot.get().getStatus());
+    }
+
+    @Test
+    public void racingMovesFromTheSameStatusHaveOneWinner() throws Exception {
+        final Update update = new Update();
+        update.setDownloadId("test");
+        final UpdaterController.DownloadEntry entry = new UpdaterController.DownloadEntry(update);
+        final AtomicInteger winners = new AtomicInteger();
+        final AtomicInteger badRounds = new AtomicInteger();
+        // Winners of the round are checked by one thread while the others wait
+        final CyclicBarrier barrier = new CyclicBarrier(THREADS, new Runnable() {
+            @Override
+            public void run() {
+                if (winners.getAndSet(0) != 1) {
+                    badRounds.incrementAndGet();
+                }
+                update.setStatus(UpdateStatus.STARTING);
+            }
+        });
+        final UpdateStatus[] targets = {UpdateStatus.DOWNLOADING, UpdateStatus.PAUSED,
+                UpdateStatus.PAUSED_ERROR, UpdateStatus.VERIFYING};
+        update.setStatus(UpdateStatus.STARTING);
+
+        runConcurrently(THREADS, new Callable<Void>() {
+            @Override
+            public Void call() throws Exception {
+                ThreadLocalRandom random = ThreadLocalRandom.current();
+                for (int i = 0; i < ROUNDS; i++) {
+                    if (entry.moveTo(targets[random.nextInt(targets.length)],
+                            UpdateStatus.STARTING)) {
+                        winners.incrementAndGet();
+                    }
+                    barrier.await();
+                }
+                return null;
+            }
+        });
+
+        assertEquals(0, badRounds.get());
+    }
+
+    @Test
+    public void runningInstallationsCanOnlyEnd() {
+        for (UpdateStatus status : STATUSES) {
+            boolean ending = status == UpdateStatus.INSTALLING ||
+                    status == UpdateStatus.INSTALLED ||
+                    status == UpdateStatus.INSTALLATION_FAILED ||
+                    status == UpdateStatus.INSTALLATION_CANCELLED;
+            assertEquals(status.name(), ending, UpdateStatus.INSTALLING.canMoveTo(status));
+        }
+        assertFalse(UpdateStatus.DOWNLOADING.canMoveTo(UpdateStatus.DELETED));
+        assertTrue(UpdateStatus.QUEUED.canMoveTo(UpdateStatus.STARTING));
+    }
+}
@@ -0,0 +1,137 @@
+/*
+ * Copyright (C) 2019 The Potato Open Sauce Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package co.potatoproject.androidflutterupdater.controller;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import co.potatoproject.androidflutterupdater.misc.Benchmark;
+import co.potatoproject.androidflutterupdater.model.Update;
+import co.potatoproject.androidflutterupdater.model.UpdateSnapshot;
+
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Rate of progress events from a download to a listener on a single thread,
+ * through the bus and with one task per event like the broadcasts it replaced
+ */
+@SuppressWarnings("Convert2Lambda")
+public class UpdateEventBusBenchmark {
+
+    private static final int EVENTS = 1000000;
+    private static final String ID = "0123456789abcdef0123456789abcdef";
+
+    // Stands for the main thread
+    private ExecutorService mExecutor;
+    private final Update mUpdate = new Update();
+
+    /**
+     * Counts the events until the last one
+     */
+    private static class CountingListener implements UpdateEventBus.Listener {
+        final AtomicInteger mDelivered = new AtomicInteger();
+        final CountDownLatch mLast = new CountDownLatch(1);
+
+        @Override
+        public void onStatusChanged(UpdateSnapshot update) {
+        }
+
+        @Override
+        public void onDownloadProgress(UpdateSnapshot update) {
+            mDelivered.incrementAndGet();
+            if (update.getSnapshotVersion() == EVENTS) {
+                mLast.countDown();
+            }
+        }
+
+        @Override
+        public void onInstallProgress(UpdateSnapshot update) {
+        }
+
+        @Override
+        public void onRemoved(String downloadId) {
+        }
+
+        void await() throws InterruptedException {
+            assertTrue("The last event wasn't delivered", mLast.await(60, TimeUnit.SECONDS));
+        }
+    }
+
+    @Before
+    public void setUp() {
+        Benchmark.assumeEnabled();
+        mExecutor = Executors.newSingleThreadExecutor();
+        mUpdate.setDownloadId(ID);
+    }
+
+    @After
+    public void tearDown() {
+        if (mExecutor != null) {
+            mExecutor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void progressEventRate() throws Exception {
+        final AtomicInteger perTaskDelivered = new AtomicInteger();
+        Benchmark.Result perTask = Benchmark.measure("One task per event", 2, 5,
+                new Benchmark.Task() {
+                    @Override
+                    public void run() throws Exception {
+                        final CountingListener listener = new CountingListener();
+                        for (int i = 1; i <= EVENTS; i++) {
+                            final UpdateSnapshot snapshot = new UpdateSnapshot(mUpdate, i);
+                            mExecutor.execute(new Runnable() {
+                                @Override
+                                public void run() {
+                                    listener.onDownloadProgress(snapshot);
+                                }
+                            });
+                        }
+                        listener.await();
+                        perTaskDelivered.set(listener.mDelivered.get());
+                    }
+                });
+
+        final AtomicInteger busDelivered = new AtomicInteger();
+        Benchmark.Result bus = Benchmark.measure("UpdateEventBus", 2, 5,
+                new Benchmark.Task() {
+                    @Override
+                    public void run() throws Exception {
+                        UpdateEventBus eventBus = new UpdateEventBus();
+                        CountingListener listener = new CountingListener();
+                        eventBus.register(listener, mExecutor);
+                        for (int i = 1; i <= EVENTS; i++) {
+                            eventBus.postDownloadProgress(new UpdateSnapshot(mUpdate, i));
+                        }
+                        listener.await();
+                        busDelivered.set(listener.mDelivered.get());
+                    }
+                });
+
+        Benchmark.report("Posting " + EVENTS + " progress events", perTask, bus);
+        System.out.printf("  %.1fM events/s with %d delivered, %.1fM events/s with %d " +
+                        "delivered%n", perTask.perSecond(EVENTS) / 1e6, perTaskDelivered.get(),
+                bus.perSecond(EVENTS) / 1e6, busDelivered.get());
+    }
+}
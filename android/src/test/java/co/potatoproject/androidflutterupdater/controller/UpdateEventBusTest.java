@@ -0,0 +1,177 @@
+/*
+ * Copyright (C) 2019 The Potato Open Sauce Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package co.potatoproject.androidflutterupdater.controller;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Executor;
+
+import co.potatoproject.androidflutterupdater.model.Update;
+import co.potatoproject.androidflutterupdater.model.UpdateSnapshot;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+@SuppressWarnings("Convert2Lambda")
+public class UpdateEventBusTest {
+
+    private static final String ID = "0123456789abcdef0123456789abcdef";
+    private static final String OTHER_ID = "fedcba9876543210fedcba9876543210";
+
+    /**
+     * Runs the tasks only when asked to, like a busy main thread
+     */
+    private static class ManualExecutor implements Executor {
+        final ArrayDeque<Runnable> mTasks = new ArrayDeque<>();
+
+        @Override
+        public void execute(Runnable command) {
+            mTasks.add(command);
+        }
+
+        void runAll() {
+            while (!mTasks.isEmpty()) {
+                mTasks.poll().run();
+            }
+        }
+    }
+
+    /**
+     * Records the events as type, download id and snapshot version
+     */
+    private static class RecordingListener implements UpdateEventBus.Listener {
+        final List<String> mEvents = new ArrayList<>();
+
+        @Override
+        public void onStatusChanged(UpdateSnapshot update) {
+            mEvents.add("S" + update.getSnapshotVersion() + idSuffix(update.getDownloadId()));
+        }
+
+        @Override
+        public void onDownloadProgress(UpdateSnapshot update) {
+            mEvents.add("P" + update.getSnapshotVersion() + idSuffix(update.getDownloadId()));
+        }
+
+        @Override
+        public void onInstallProgress(UpdateSnapshot update) {
+            mEvents.add("I" + update.getSnapshotVersion() + idSuffix(update.getDownloadId()));
+        }
+
+        @Override
+        public void onRemoved(String downloadId) {
+            mEvents.add("R" + idSuffix(downloadId));
+        }
+
+        private static String idSuffix(String downloadId) {
+            return ID.equals(downloadId) ? "" : "'";
+        }
+    }
+
+    private UpdateEventBus mBus;
+    private ManualExecutor mExecutor;
+    private RecordingListener mListener;
+
+    @Before
+    public void setUp() {
+        mBus = new UpdateEventBus();
+        mExecutor = new ManualExecutor();
+        mListener = new RecordingListener();
+        mBus.register(mListener, mExecutor);
+    }
+
+    private static UpdateSnapshot snapshot(String downloadId, long version) {
+        Update update = new Update();
+        update.setDownloadId(downloadId);
+        return new UpdateSnapshot(update, version);
+    }
+
+    @Test
+    public void progressIsCoalescedUntilTheStatusChanges() {
+        mBus.postStatusChanged(snapshot(ID, 1));
+        for (int i = 2; i <= 101; i++) {
+            mBus.postDownloadProgress(snapshot(ID, i));
+        }
+        mBus.postStatusChanged(snapshot(ID, 102));
+        mBus.postDownloadProgress(snapshot(ID, 103));
+        mBus.postDownloadProgress(snapshot(ID, 104));
+        mBus.postRemoved(ID);
+
+        // Scheduled once for the whole batch
+        assertEquals(1, mExecutor.mTasks.size());
+        mExecutor.runAll();
+        assertEquals(Arrays.asList("S1", "P101", "S102", "P104", "R"), mListener.mEvents);
+    }
+
+    @Test
+    public void progressOfDifferentUpdatesIsntMerged() {
+        mBus.postDownloadProgress(snapshot(ID, 1));
+        mBus.postDownloadProgress(snapshot(OTHER_ID, 1));
+        mBus.postInstallProgress(snapshot(ID, 2));
+        mBus.postDownloadProgress(snapshot(ID, 3));
+        mBus.postDownloadProgress(snapshot(OTHER_ID, 2));
+        mBus.postInstallProgress(snapshot(ID, 4));
+        // Only the status of the other update breaks its own coalescing
+        mBus.postStatusChanged(snapshot(OTHER_ID, 3));
+        mBus.postDownloadProgress(snapshot(ID, 5));
+        mBus.postDownloadProgress(snapshot(OTHER_ID, 4));
+
+        mExecutor.runAll();
+        assertEquals(Arrays.asList("P5", "P2'", "I4", "S3'", "P4'"), mListener.mEvents);
+    }
+
+    @Test
+    public void deliveredProgressIsntUpdatedAnymore() {
+        mBus.postDownloadProgress(snapshot(ID, 1));
+        mExecutor.runAll();
+        mBus.postDownloadProgress(snapshot(ID, 2));
+        mBus.postDownloadProgress(snapshot(ID, 3));
+        mExecutor.runAll();
+        assertEquals(Arrays.asList("P1", "P3"), mListener.mEvents);
+    }
+
+    @Test
+    public void unregisteredListenersArentCalled() {
+        mBus.postStatusChanged(snapshot(ID, 1));
+        mBus.unregister(mListener);
+        mBus.postStatusChanged(snapshot(ID, 2));
+        mExecutor.runAll();
+        assertTrue(mListener.mEvents.isEmpty());
+    }
+
+    @Test
+    public void failingListenersGetTheFollowingEvents() {
+        RecordingListener failing = new RecordingListener() {
+            @Override
+            public void onStatusChanged(UpdateSnapshot update) {
+                super.onStatusChanged(update);
+                throw new IllegalStateException("Listener bug");
+            }
+        };
+        mBus.register(failing, UpdateEventBus.DIRECT);
+        mBus.postStatusChanged(snapshot(ID, 1));
+        mBus.postDownloadProgress(snapshot(ID, 2));
+        mBus.postRemoved(ID);
+        assertEquals(Arrays.asList("S1", "P2", "R"), failing.mEvents);
+
+        mExecutor.runAll();
+        assertEquals(Arrays.asList("S1", "P2", "R"), mListener.mEvents);
+    }
+}
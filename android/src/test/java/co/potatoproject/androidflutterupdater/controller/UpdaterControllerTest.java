@@ -0,0 +1,360 @@
+/*
+ * Copyright (C) 2019 The Potato Open Sauce Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package co.potatoproject.androidflutterupdater.controller;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import co.potatoproject.androidflutterupdater.model.Update;
+import co.potatoproject.androidflutterupdater.model.UpdateSnapshot;
+import co.potatoproject.androidflutterupdater.model.UpdateStatus;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Downloads from a local server, slow enough for the downloads to be paused
+ * while they are still running
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = 28)
+@SuppressWarnings("Convert2Lambda")
+public class UpdaterControllerTest {
+
+    private static final int MB = 1024 * 1024;
+    private static final long SIZE = 512L * MB;
+    private static final int CHUNK_SIZE = 64 * 1024;
+    private static final long TIMEOUT_MS = 10000;
+    private static final int STRESS_THREADS = 4;
+    private static final long STRESS_DURATION_MS = 3000;
+    private static final Pattern RANGE_PATTERN = Pattern.compile("bytes=([0-9]+)-([0-9]*)");
+
+    private static final AtomicInteger sIds = new AtomicInteger();
+
+    private HttpServer mServer;
+    private ExecutorService mExecutor;
+    private UpdaterController mController;
+    private final List<UpdateEventBus.Listener> mListeners = new ArrayList<>();
+
+    /**
+     * Only interested in the download progress of one update
+     */
+    private abstract static class ProgressListener implements UpdateEventBus.Listener {
+        private final String mDownloadId;
+
+        ProgressListener(String downloadId) {
+            mDownloadId = downloadId;
+        }
+
+        abstract void onProgress();
+
+        @Override
+        public void onStatusChanged(UpdateSnapshot update) {
+        }
+
+        @Override
+        public void onDownloadProgress(UpdateSnapshot update) {
+            if (mDownloadId.equals(update.getDownloadId())) {
+                onProgress();
+            }
+        }
+
+        @Override
+        public void onInstallProgress(UpdateSnapshot update) {
+        }
+
+        @Override
+        public void onRemoved(String downloadId) {
+        }
+    }
+
+    @Before
+    public void setUp() throws IOException {
+        mServer = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0),
+                0);
+        mServer.setExecutor(Executors.newCachedThreadPool());
+        mServer.createContext("/update.zip", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                serve(exchange);
+            }
+        });
+        mServer.start();
+        mExecutor = Executors.newCachedThreadPool();
+        mController = UpdaterController.getInstance(RuntimeEnvironment.application);
+    }
+
+    @After
+    public void tearDown() {
+        for (UpdateEventBus.Listener listener : mListeners) {
+            mController.getEventBus().unregister(listener);
+        }
+        mExecutor.shutdownNow();
+        mServer.stop(0);
+    }
+
+    /**
+     * Serves SIZE generated bytes, honoring single ranges, at a few tens of MB/s
+     */
+    private static void serve(HttpExchange exchange) throws IOException {
+        String range = exchange.getRequestHeaders().getFirst("Range");
+        Matcher matcher = range != null ? RANGE_PATTERN.matcher(range) : null;
+        long start = 0;
+        long end = SIZE - 1;
+        exchange.getResponseHeaders().set("ETag", "\"v1\"");
+        if (matcher != null && matcher.matches()) {
+            start = Long.parseLong(matcher.group(1));
+            if (!matcher.group(2).isEmpty()) {
+                end = Math.min(end, Long.parseLong(matcher.group(2)));
+            }
+            exchange.getResponseHeaders().set("Content-Range",
+                    "bytes " + start + "-" + end + "/" + SIZE);
+            exchange.sendResponseHeaders(206, end - start + 1);
+        } else {
+            exchange.sendResponseHeaders(200, SIZE);
+        }
+        byte[] chunk = new byte[CHUNK_SIZE];
+        try (OutputStream os = exchange.getResponseBody()) {
+            for (long position = start; position <= end; position += chunk.length) {
+                int count = (int) Math.min(chunk.length, end - position + 1);
+                for (int i = 0; i < count; i++) {
+                    chunk[i] = (byte) ((position + i) * 31 >> 8);
+                }
+                os.write(chunk, 0, count);
+                Thread.sleep(1);
+            }
+        } catch (IOException | InterruptedException e) {
+            // The client hung up
+        }
+    }
+
+    private String addUpdate() {
+        String downloadId = "update-" + sIds.incrementAndGet();
+        Update update = new Update();
+        update.setDownloadId(downloadId);
+        update.setName(downloadId + ".zip");
+        update.setDownloadUrl("http://127.0.0.1:" + mServer.getAddress().getPort() +
+                "/update.zip");
+        update.setFileSize(SIZE);
+        update.setType("weekly");
+        update.setVersion("1.0");
+        update.setNotes("");
+        assertTrue(mController.addUpdate(update));
+        return downloadId;
+    }
+
+    private void register(UpdateEventBus.Listener listener) {
+        mListeners.add(listener);
+        // Called by the download threads, like the listener of the plugin
+        mController.getEventBus().register(listener, UpdateEventBus.DIRECT);
+    }
+
+    private <T> T call(Callable<T> callable, String what) throws Exception {
+        Future<T> future = mExecutor.submit(callable);
+        try {
+            return future.get(TIMEOUT_MS, TimeUnit.MILLISECONDS);
+        } catch (TimeoutException e) {
+            fail(what + " didn't return, deadlocked with the download");
+            return null;
+        }
+    }
+
+    private boolean pause(final String downloadId) throws Exception {
+        return call(new Callable<Boolean>() {
+            @Override
+            public Boolean call() {
+                return mController.pauseDownload(downloadId);
+            }
+        }, "pauseDownload()");
+    }
+
+    private void awaitStopped(String downloadId) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + TIMEOUT_MS;
+        while (mController.isDownloading(downloadId) ||
+                mController.getUpdate(downloadId).getStatus() == UpdateStatus.QUEUED) {
+            assertTrue("The download didn't stop", System.currentTimeMillis() < deadline);
+            Thread.sleep(10);
+        }
+    }
+
+    @Test
+    public void pausingDoesntWaitForProgressListeners() throws Exception {
+        final String downloadId = addUpdate();
+        final CountDownLatch reporting = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        register(new ProgressListener(downloadId) {
+            @Override
+            void onProgress() {
+                reporting.countDown();
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    // Cancelled
+                    Thread.currentThread().interrupt();
+                }
+            }
+        });
+
+        assertTrue(mController.startDownload(downloadId));
+        assertTrue("No progress reported",
+                reporting.await(TIMEOUT_MS, TimeUnit.MILLISECONDS));
+        try {
+            // The listener is still running on the download thread
+            assertTrue(pause(downloadId));
+        } finally {
+            release.countDown();
+        }
+        awaitStopped(downloadId);
+        assertEquals(UpdateStatus.PAUSED, mController.getUpdate(downloadId).getStatus());
+    }
+
+    @Test
+    public void pausesResumesAndCancelsWhileProgressFlows() throws Exception {
+        final String downloadId = addUpdate();
+        final AtomicInteger progress = new AtomicInteger();
+        register(new ProgressListener(downloadId) {
+            @Override
+            void onProgress() {
+                progress.incrementAndGet();
+            }
+        });
+
+        assertTrue(mController.startDownload(downloadId));
+        final long end = System.currentTimeMillis() + STRESS_DURATION_MS;
+        List<Future<Integer>> stressers = new ArrayList<>();
+        for (int i = 0; i < STRESS_THREADS; i++) {
+            stressers.add(mExecutor.submit(new Callable<Integer>() {
+                @Override
+                public Integer call() throws Exception {
+                    ThreadLocalRandom random = ThreadLocalRandom.current();
+                    int calls = 0;
+                    while (System.currentTimeMillis() < end) {
+                        // Mostly pauses and resumes, with the odd cancellation
+                        int action = random.nextInt(10);
+                        if (action < 4) {
+                            mController.pauseDownload(downloadId);
+                        } else if (action < 7) {
+                            mController.resumeDownload(downloadId);
+                        } else if (action < 9) {
+                            mController.startDownload(downloadId);
+                        } else {
+                            mController.pauseDownload(downloadId);
+                            mController.deleteUpdate(downloadId);
+                        }
+                        calls++;
+                        Thread.sleep(random.nextInt(100));
+                    }
+                    return calls;
+                }
+            }));
+        }
+        for (Future<Integer> stresser : stressers) {
+            try {
+                assertTrue(stresser.get(STRESS_DURATION_MS + TIMEOUT_MS,
+                        TimeUnit.MILLISECONDS) > 0);
+            } catch (TimeoutException e) {
+                fail("The controller deadlocked with the download");
+            }
+        }
+        assertTrue("No progress while stressing", progress.get() > 0);
+
+        // Whatever state it was left in, the download can still be cancelled
+        assertTrue(mController.startDownload(downloadId) ||
+                mController.isDownloading(downloadId));
+        awaitProgress(progress);
+        assertTrue(pause(downloadId));
+        awaitStopped(downloadId);
+        assertEquals(UpdateStatus.PAUSED, mController.getUpdate(downloadId).getStatus());
+        assertTrue(mController.deleteUpdate(downloadId));
+        assertEquals(UpdateStatus.DELETED, mController.getUpdate(downloadId).getStatus());
+        assertFalse("A download slot leaked", mController.hasActiveDownloads());
+
+        // The cancelled clients don't report anything anymore
+        int reported = progress.get();
+        Thread.sleep(200);
+        assertEquals(reported, progress.get());
+    }
+
+    private static void awaitProgress(AtomicInteger progress) throws InterruptedException {
+        int reported = progress.get();
+        long deadline = System.currentTimeMillis() + TIMEOUT_MS;
+        while (progress.get() == reported) {
+            assertTrue("No progress reported", System.currentTimeMillis() < deadline);
+            Thread.sleep(10);
+        }
+    }
+
+    @Test
+    public void queuedDownloadsCanBeQueuedAgainWithAnotherPriority() throws Exception {
+        String running = addUpdate();
+        String first = addUpdate();
+        String second = addUpdate();
+        int maxDownloads = mController.getMaxConcurrentDownloads();
+        mController.setMaxConcurrentDownloads(1);
+        try {
+            assertTrue(mController.startDownload(running));
+            long deadline = System.currentTimeMillis() + TIMEOUT_MS;
+            while (!mController.isDownloading(running)) {
+                assertTrue("The download didn't start", System.currentTimeMillis() < deadline);
+                Thread.sleep(10);
+            }
+
+            assertTrue(mController.enqueueDownload(first, DownloadScheduler.PRIORITY_LOW));
+            assertTrue(mController.enqueueDownload(second, DownloadScheduler.PRIORITY_NORMAL));
+            assertEquals(Arrays.asList(second, first), mController.getDownloadQueue());
+
+            assertTrue(mController.enqueueDownload(first, DownloadScheduler.PRIORITY_HIGH));
+            assertEquals(UpdateStatus.QUEUED, mController.getUpdate(first).getStatus());
+            assertEquals(Arrays.asList(first, second), mController.getDownloadQueue());
+        } finally {
+            for (String downloadId : Arrays.asList(first, second, running)) {
+                pause(downloadId);
+                awaitStopped(downloadId);
+            }
+            mController.setMaxConcurrentDownloads(maxDownloads);
+        }
+    }
+}
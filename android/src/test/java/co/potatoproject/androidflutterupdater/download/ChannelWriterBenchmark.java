@@ -0,0 +1,93 @@
+/*
+ * Copyright (C) 2019 The Potato Open Sauce Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package co.potatoproject.androidflutterupdater.download;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.util.Random;
+
+import co.potatoproject.androidflutterupdater.misc.Benchmark;
+
+/**
+ * Write throughput of the downloads, with the reads of a network stream
+ */
+public class ChannelWriterBenchmark {
+
+    private static final int LENGTH = 64 * 1024 * 1024;
+    // What a socket read usually returns
+    private static final int READ_SIZE = 8192;
+
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    private final byte[] mRead = new byte[READ_SIZE];
+    private File mFile;
+
+    @Before
+    public void setUp() throws Exception {
+        Benchmark.assumeEnabled();
+        new Random(1).nextBytes(mRead);
+        mFile = new File(mFolder.getRoot(), "download");
+    }
+
+    @SuppressWarnings("Convert2Lambda")
+    @Test
+    public void writeThroughput() throws Exception {
+        Benchmark.Result stream = Benchmark.measure("FileOutputStream", 2, 5,
+                new Benchmark.Task() {
+                    @Override
+                    public void run() throws Exception {
+                        // How the downloads were written before
+                        Files.deleteIfExists(mFile.toPath());
+                        try (OutputStream os = new FileOutputStream(mFile)) {
+                            for (int written = 0; written < LENGTH; written += READ_SIZE) {
+                                os.write(mRead, 0, READ_SIZE);
+                            }
+                        }
+                    }
+                });
+        Benchmark.Result channel = Benchmark.measure("ChannelWriter", 2, 5,
+                new Benchmark.Task() {
+                    @Override
+                    public void run() throws Exception {
+                        Files.deleteIfExists(mFile.toPath());
+                        try (RandomAccessFile raf = new RandomAccessFile(mFile, "rw");
+                             FileChannel fc = raf.getChannel();
+                             ChannelWriter writer = new ChannelWriter(fc, 0,
+                                     DownloadClient.DEFAULT_BUFFER_SIZE,
+                                     DownloadClient.SYNC_NEVER, new ResumeJournal())) {
+                            for (int written = 0; written < LENGTH; written += READ_SIZE) {
+                                writer.write(mRead, 0, READ_SIZE);
+                            }
+                        }
+                    }
+                });
+
+        Benchmark.report("Writing " + (LENGTH >> 20) + "MB in " + READ_SIZE + " byte reads",
+                stream, channel);
+        System.out.printf("  %.0f MB/s with FileOutputStream, %.0f MB/s with ChannelWriter%n",
+                stream.perSecond(LENGTH) / (1 << 20), channel.perSecond(LENGTH) / (1 << 20));
+    }
+}
@@ -0,0 +1,111 @@
+/*
+ * Copyright (C) 2019 The Potato Open Sauce Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package co.potatoproject.androidflutterupdater.download;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+
+public class ChannelWriterTest {
+
+    private static final int BUFFER_SIZE = 4096;
+
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    @Test
+    public void writesAtPositionAcrossBufferBoundaries() throws Exception {
+        byte[] data = new byte[10 * BUFFER_SIZE + 123];
+        Random random = new Random(1);
+        random.nextBytes(data);
+        File file = mFolder.newFile("download");
+        ResumeJournal journal = new ResumeJournal();
+        long position = 500;
+
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw");
+             FileChannel channel = raf.getChannel()) {
+            try (ChannelWriter writer = new ChannelWriter(channel, position, BUFFER_SIZE,
+                    DownloadClient.SYNC_NEVER, journal)) {
+                // Pieces of random sizes, like the reads of a network stream
+                for (int off = 0; off < data.length; ) {
+                    int count = Math.min(data.length - off, 1 + random.nextInt(3000));
+                    writer.write(data, off, count);
+                    off += count;
+                }
+            }
+        }
+
+        byte[] written = Files.readAllBytes(file.toPath());
+        assertEquals(position + data.length, written.length);
+        assertArrayEquals(data, Arrays.copyOfRange(written, (int) position, written.length));
+        assertEquals("500-" + (position + data.length), journal.getRanges());
+    }
+
+    @Test
+    public void journalOnlyListsFlushedData() throws Exception {
+        byte[] data = new byte[BUFFER_SIZE + 100];
+        File file = mFolder.newFile("download");
+        ResumeJournal journal = new ResumeJournal();
+
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw");
+             FileChannel channel = raf.getChannel()) {
+            ChannelWriter writer = new ChannelWriter(channel, 0, BUFFER_SIZE,
+                    DownloadClient.SYNC_NEVER, journal);
+            writer.write(data, 0, 100);
+            assertEquals(0, journal.getCompletedBytes());
+            assertEquals(0, writer.getPosition());
+
+            // Filling the buffer writes it out
+            writer.write(data, 100, BUFFER_SIZE);
+            assertEquals(BUFFER_SIZE, journal.getCompletedBytes());
+            assertEquals(BUFFER_SIZE, channel.size());
+
+            writer.close();
+            assertEquals(data.length, journal.getCompletedBytes());
+            assertEquals(data.length, writer.getPosition());
+        }
+    }
+
+    @Test
+    public void buffersAreReusedBySize() {
+        ByteBuffer buffer = BufferPool.acquire(BUFFER_SIZE);
+        buffer.put((byte) 1);
+        BufferPool.release(buffer);
+
+        ByteBuffer other = BufferPool.acquire(2 * BUFFER_SIZE);
+        ByteBuffer reused = BufferPool.acquire(BUFFER_SIZE);
+        assertNotSame(buffer, other);
+        assertSame(buffer, reused);
+        // Handed out empty
+        assertEquals(0, reused.position());
+        assertEquals(BUFFER_SIZE, reused.remaining());
+        BufferPool.release(other);
+        BufferPool.release(reused);
+    }
+}
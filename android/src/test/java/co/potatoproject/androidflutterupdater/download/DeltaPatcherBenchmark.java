@@ -0,0 +1,125 @@
+/*
+ * Copyright (C) 2019 The Potato Open Sauce Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package co.potatoproject.androidflutterupdater.download;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.nio.file.Files;
+import java.util.Random;
+import java.util.zip.GZIPOutputStream;
+
+import co.potatoproject.androidflutterupdater.misc.Benchmark;
+
+import static org.junit.Assert.assertArrayEquals;
+
+/**
+ * Bytes to download and rebuild time of a delta, against downloading the
+ * full package
+ */
+public class DeltaPatcherBenchmark {
+
+    private static final int BLOCK = 1024 * 1024;
+    private static final int BLOCKS = 64;
+
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    private File mSource;
+    private File mPatch;
+    private byte[] mTarget;
+
+    /**
+     * Like a weekly build: most blocks are unchanged, some are patched in a few
+     * places and a few are new
+     */
+    @Before
+    public void createPatch() throws Exception {
+        Benchmark.assumeEnabled();
+        Random random = new Random(1);
+        byte[] source = new byte[BLOCKS * BLOCK];
+        random.nextBytes(source);
+        mSource = mFolder.newFile("source");
+        Files.write(mSource.toPath(), source);
+
+        mTarget = new byte[source.length];
+        mPatch = mFolder.newFile("patch");
+        try (DataOutputStream os = new DataOutputStream(new GZIPOutputStream(
+                new FileOutputStream(mPatch)))) {
+            os.writeInt(0x55444c54);
+            os.writeInt(1);
+            os.writeLong(source.length);
+            os.writeLong(mTarget.length);
+            for (int block = 0; block < BLOCKS; block++) {
+                int offset = block * BLOCK;
+                if (block % 16 == 0) {
+                    byte[] data = new byte[BLOCK];
+                    random.nextBytes(data);
+                    System.arraycopy(data, 0, mTarget, offset, BLOCK);
+                    os.writeByte(3);
+                    os.writeInt(BLOCK);
+                    os.write(data);
+                } else if (block % 4 == 0) {
+                    byte[] diff = new byte[BLOCK];
+                    for (int i = 0; i < BLOCK; i += 1 + random.nextInt(512)) {
+                        diff[i] = (byte) (1 + random.nextInt(255));
+                    }
+                    for (int i = 0; i < BLOCK; i++) {
+                        mTarget[offset + i] = (byte) (source[offset + i] + diff[i]);
+                    }
+                    os.writeByte(2);
+                    os.writeLong(offset);
+                    os.writeInt(BLOCK);
+                    os.write(diff);
+                } else {
+                    System.arraycopy(source, offset, mTarget, offset, BLOCK);
+                    os.writeByte(1);
+                    os.writeLong(offset);
+                    os.writeInt(BLOCK);
+                }
+            }
+            os.writeByte(0);
+        }
+    }
+
+    @SuppressWarnings("Convert2Lambda")
+    @Test
+    public void deltaAgainstFull() throws Exception {
+        final File target = new File(mFolder.getRoot(), "target");
+        Benchmark.Result rebuild = Benchmark.measure("Rebuilt from the delta", 2, 5,
+                new Benchmark.Task() {
+                    @Override
+                    public void run() throws Exception {
+                        DeltaPatcher.apply(mSource, mPatch, target, null, null);
+                    }
+                });
+        assertArrayEquals(mTarget, Files.readAllBytes(target.toPath()));
+
+        long full = mTarget.length;
+        long delta = mPatch.length();
+        Benchmark.report("Updating a " + (full >> 20) + "MB package", rebuild);
+        // The delta is faster to get as long as downloading the bytes it saves
+        // takes longer than the rebuild
+        System.out.printf("  %d bytes to download in full, %d bytes as a delta (%.1f%%), " +
+                        "the delta is faster below %.0f MB/s%n", full, delta,
+                delta * 100.0 / full, (full - delta) / (rebuild.getNanos() / 1e9) / (1 << 20));
+    }
+}
@@ -0,0 +1,288 @@
+/*
+ * Copyright (C) 2019 The Potato Open Sauce Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package co.potatoproject.androidflutterupdater.download;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.Random;
+import java.util.zip.GZIPOutputStream;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class DeltaPatcherTest {
+
+    private static final int MAGIC = 0x55444c54;
+    private static final int SOURCE_LENGTH = 1024 * 1024;
+
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    private File mSourceFile;
+    private byte[] mSource;
+
+    /**
+     * Writes patches in the format read by DeltaPatcher
+     */
+    private static class PatchBuilder {
+        private final ByteArrayOutputStream mBytes = new ByteArrayOutputStream();
+        private final DataOutputStream mOut = new DataOutputStream(mBytes);
+
+        PatchBuilder header(int magic, int version, long sourceLength, long targetLength)
+                throws IOException {
+            mOut.writeInt(magic);
+            mOut.writeInt(version);
+            mOut.writeLong(sourceLength);
+            mOut.writeLong(targetLength);
+            return this;
+        }
+
+        PatchBuilder copy(long offset, int length) throws IOException {
+            mOut.writeByte(1);
+            mOut.writeLong(offset);
+            mOut.writeInt(length);
+            return this;
+        }
+
+        PatchBuilder add(long offset, byte[] diff) throws IOException {
+            mOut.writeByte(2);
+            mOut.writeLong(offset);
+            mOut.writeInt(diff.length);
+            mOut.write(diff);
+            return this;
+        }
+
+        PatchBuilder data(byte[] data) throws IOException {
+            mOut.writeByte(3);
+            mOut.writeInt(data.length);
+            mOut.write(data);
+            return this;
+        }
+
+        PatchBuilder end() throws IOException {
+            mOut.writeByte(0);
+            return this;
+        }
+
+        byte[] build() {
+            return mBytes.toByteArray();
+        }
+    }
+
+    private static byte[] randomBytes(int length, long seed) {
+        byte[] bytes = new byte[length];
+        new Random(seed).nextBytes(bytes);
+        return bytes;
+    }
+
+    private static String md5(byte[] data) throws Exception {
+        StringBuilder sb = new StringBuilder();
+        for (byte b : MessageDigest.getInstance("MD5").digest(data)) {
+            sb.append(String.format(Locale.ROOT, "%02x", b));
+        }
+        return sb.toString();
+    }
+
+    private File write(String name, byte[] data, boolean gzip) throws IOException {
+        File file = mFolder.newFile(name);
+        try (OutputStream os = gzip ? new GZIPOutputStream(new FileOutputStream(file)) :
+                new FileOutputStream(file)) {
+            os.write(data);
+        }
+        return file;
+    }
+
+    private File source() throws IOException {
+        if (mSourceFile == null) {
+            mSource = randomBytes(SOURCE_LENGTH, 1);
+            mSourceFile = write("source", mSource, false);
+        }
+        return mSourceFile;
+    }
+
+    private void assertRejected(byte[] patch) throws IOException {
+        File target = new File(mFolder.getRoot(), "target");
+        try {
+            DeltaPatcher.apply(source(), write("patch", patch, false), target, null, null);
+            fail("The patch was applied");
+        } catch (InterruptedIOException e) {
+            throw e;
+        } catch (IOException e) {
+            // Expected
+        }
+    }
+
+    /**
+     * Target made of a copied range, a range with bytes added and new data.
+     * The add op is larger than the patcher buffer.
+     */
+    @Test
+    public void rebuildsTargetFromAllOps() throws Exception {
+        File source = source();
+        byte[] diff = randomBytes(600 * 1024, 2);
+        byte[] data = "not in the source".getBytes("UTF-8");
+        ByteArrayOutputStream expected = new ByteArrayOutputStream();
+        expected.write(mSource, 4096, 300 * 1024);
+        byte[] added = Arrays.copyOfRange(mSource, 1000, 1000 + diff.length);
+        for (int i = 0; i < added.length; i++) {
+            added[i] += diff[i];
+        }
+        expected.write(added);
+        expected.write(data);
+
+        for (boolean gzip : new boolean[]{false, true}) {
+            byte[] patch = new PatchBuilder()
+                    .header(MAGIC, 1, SOURCE_LENGTH, expected.size())
+                    .copy(4096, 300 * 1024)
+                    .add(1000, diff)
+                    .data(data)
+                    .end()
+                    .build();
+            File patchFile = write(gzip ? "patch.gz" : "patch", patch, gzip);
+            File target = new File(mFolder.getRoot(), gzip ? "target.gz" : "target");
+            StreamingDigest digest = new StreamingDigest(StreamingDigest.MD5);
+            final long[] progress = new long[2];
+            DeltaPatcher.apply(source, patchFile, target, digest,
+                    new DeltaPatcher.ProgressListener() {
+                        @Override
+                        public void update(long bytesWritten, long targetLength) {
+                            progress[0] = bytesWritten;
+                            progress[1] = targetLength;
+                        }
+                    });
+
+            assertArrayEquals(expected.toByteArray(), Files.readAllBytes(target.toPath()));
+            assertEquals(md5(expected.toByteArray()), digest.digest());
+            assertEquals(expected.size(), progress[0]);
+            assertEquals(expected.size(), progress[1]);
+        }
+    }
+
+    @Test
+    public void rejectsInvalidHeaders() throws Exception {
+        byte[] empty = new PatchBuilder().end().build();
+        assertRejected(new PatchBuilder().header(0x504b0304, 1, SOURCE_LENGTH, 0).end().build());
+        assertRejected(new PatchBuilder().header(MAGIC, 2, SOURCE_LENGTH, 0).end().build());
+        // Made for a different source
+        assertRejected(new PatchBuilder().header(MAGIC, 1, SOURCE_LENGTH + 1, 0).end().build());
+        assertRejected(empty);
+    }
+
+    @Test
+    public void rejectsTruncatedPatches() throws Exception {
+        byte[] patch = new PatchBuilder()
+                .header(MAGIC, 1, SOURCE_LENGTH, 64)
+                .copy(0, 32)
+                .data(randomBytes(32, 3))
+                .end()
+                .build();
+        // Cut in the header, in an op and right before the end
+        for (int length : new int[]{10, patch.length - 20, patch.length - 1}) {
+            assertRejected(Arrays.copyOf(patch, length));
+        }
+    }
+
+    @Test
+    public void rejectsCorruptOps() throws Exception {
+        // Reads past the end of the source
+        assertRejected(new PatchBuilder()
+                .header(MAGIC, 1, SOURCE_LENGTH, 64)
+                .copy(SOURCE_LENGTH - 32, 64)
+                .end()
+                .build());
+        // Writes more than the target length
+        assertRejected(new PatchBuilder()
+                .header(MAGIC, 1, SOURCE_LENGTH, 16)
+                .copy(0, 32)
+                .end()
+                .build());
+        // Ends before the target is complete
+        assertRejected(new PatchBuilder()
+                .header(MAGIC, 1, SOURCE_LENGTH, 64)
+                .copy(0, 32)
+                .end()
+                .build());
+        // Unknown op
+        byte[] patch = new PatchBuilder()
+                .header(MAGIC, 1, SOURCE_LENGTH, 32)
+                .copy(0, 32)
+                .end()
+                .build();
+        patch[24] = 7;
+        assertRejected(patch);
+    }
+
+    @Test
+    public void digestExposesCorruptedData() throws Exception {
+        File source = source();
+        byte[] data = randomBytes(4096, 4);
+        ByteArrayOutputStream expected = new ByteArrayOutputStream();
+        expected.write(mSource, 0, 4096);
+        expected.write(data);
+        byte[] patch = new PatchBuilder()
+                .header(MAGIC, 1, SOURCE_LENGTH, expected.size())
+                .copy(0, 4096)
+                .data(data)
+                .end()
+                .build();
+        // The patch is well formed, only the result is wrong
+        patch[patch.length - 100] ^= 1;
+
+        File target = new File(mFolder.getRoot(), "target");
+        StreamingDigest digest = new StreamingDigest(StreamingDigest.MD5);
+        DeltaPatcher.apply(source, write("patch", patch, false), target, digest, null);
+
+        assertEquals(expected.size(), target.length());
+        assertNotEquals(md5(expected.toByteArray()), digest.digest());
+    }
+
+    @Test
+    public void stopsWithinLargeOpsWhenInterrupted() throws Exception {
+        File source = source();
+        byte[] patch = new PatchBuilder()
+                .header(MAGIC, 1, SOURCE_LENGTH, SOURCE_LENGTH)
+                .copy(0, SOURCE_LENGTH)
+                .end()
+                .build();
+        File target = new File(mFolder.getRoot(), "target");
+        Thread.currentThread().interrupt();
+        try {
+            DeltaPatcher.apply(source, write("patch", patch, false), target, null, null);
+            fail("Patching wasn't interrupted");
+        } catch (InterruptedIOException e) {
+            // Expected
+        } finally {
+            Thread.interrupted();
+        }
+        assertTrue("The whole op was written", target.length() < SOURCE_LENGTH);
+    }
+}
@@ -0,0 +1,147 @@
+/*
+ * Copyright (C) 2019 The Potato Open Sauce Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package co.potatoproject.androidflutterupdater.download;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import co.potatoproject.androidflutterupdater.misc.Benchmark;
+
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Download throughput and CPU time with the progress aggregated, against
+ * reporting it after every read like the client used to. The CPU time covers
+ * the local server too.
+ */
+@SuppressWarnings("Convert2Lambda")
+public class HttpURLConnectionClientBenchmark {
+
+    private static final int LENGTH = 128 * 1024 * 1024;
+
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    private HttpServer mServer;
+    private byte[] mContent;
+
+    @Before
+    public void startServer() throws IOException {
+        Benchmark.assumeEnabled();
+        mContent = new byte[LENGTH];
+        new Random(1).nextBytes(mContent);
+        mServer = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0),
+                0);
+        mServer.setExecutor(Executors.newCachedThreadPool());
+        mServer.createContext("/file", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                exchange.sendResponseHeaders(200, mContent.length);
+                try (OutputStream os = exchange.getResponseBody()) {
+                    os.write(mContent);
+                }
+            }
+        });
+        mServer.start();
+    }
+
+    @After
+    public void stopServer() {
+        if (mServer != null) {
+            mServer.stop(0);
+        }
+    }
+
+    private Benchmark.Result measure(String name, final long intervalBytes,
+                                     final AtomicInteger reports) throws Exception {
+        final File destination = new File(mFolder.getRoot(), "download");
+        return Benchmark.measure(name, 1, 5, new Benchmark.Task() {
+            @Override
+            public void run() throws Exception {
+                destination.delete();
+                reports.set(0);
+                final CountDownLatch latch = new CountDownLatch(1);
+                final boolean[] success = new boolean[1];
+                new DownloadClient.Builder()
+                        .setUrl("http://127.0.0.1:" + mServer.getAddress().getPort() + "/file")
+                        .setDestination(destination)
+                        .setDownloadCallback(new DownloadClient.DownloadCallback() {
+                            @Override
+                            public void onResponse(int statusCode, String url,
+                                                   DownloadClient.Headers headers) {
+                            }
+
+                            @Override
+                            public void onSuccess(File destination) {
+                                success[0] = true;
+                                latch.countDown();
+                            }
+
+                            @Override
+                            public void onFailure(boolean cancelled) {
+                                latch.countDown();
+                            }
+                        })
+                        .setProgressListener(new DownloadClient.ProgressListener() {
+                            @Override
+                            public void update(long bytesRead, long contentLength, long speed,
+                                               long eta, boolean done) {
+                                reports.incrementAndGet();
+                            }
+                        })
+                        .setProgressInterval(Long.MAX_VALUE, intervalBytes)
+                        .build()
+                        .start();
+                assertTrue(latch.await(60, TimeUnit.SECONDS));
+                assertTrue(success[0]);
+            }
+        });
+    }
+
+    @Test
+    public void progressAggregation() throws Exception {
+        AtomicInteger everyRead = new AtomicInteger();
+        AtomicInteger aggregated = new AtomicInteger();
+        Benchmark.Result perRead = measure("Reported every read", 0, everyRead);
+        Benchmark.Result perInterval = measure("Reported every " +
+                (DownloadClient.DEFAULT_PROGRESS_INTERVAL_BYTES >> 10) + "KB",
+                DownloadClient.DEFAULT_PROGRESS_INTERVAL_BYTES, aggregated);
+
+        Benchmark.report("Downloading " + (LENGTH >> 20) + "MB from a local server",
+                perRead, perInterval);
+        System.out.printf("  %.0f MB/s with %d reports, %.0f MB/s with %d reports%n",
+                perRead.perSecond(LENGTH) / (1 << 20), everyRead.get(),
+                perInterval.perSecond(LENGTH) / (1 << 20), aggregated.get());
+    }
+}
@@ -0,0 +1,323 @@
+/*
+ * Copyright (C) 2019 The Potato Open Sauce Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package co.potatoproject.androidflutterupdater.download;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+@SuppressWarnings("Convert2Lambda")
+public class HttpURLConnectionClientTest {
+
+    private static final int MB = 1024 * 1024;
+    private static final String ETAG = "\"v1\"";
+    private static final Pattern RANGE_PATTERN = Pattern.compile("bytes=([0-9]+)-([0-9]*)");
+
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    private HttpServer mServer;
+    private byte[] mContent;
+    private final AtomicInteger mRangeRequests = new AtomicInteger();
+
+    @Before
+    public void startServer() throws IOException {
+        mServer = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0),
+                0);
+        mServer.setExecutor(Executors.newCachedThreadPool());
+        mServer.createContext("/file", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                serve(exchange);
+            }
+        });
+        mServer.createContext("/list", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                String encoding = exchange.getRequestHeaders().getFirst("Accept-Encoding");
+                byte[] body = mContent;
+                if (encoding != null && encoding.contains("gzip")) {
+                    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+                    try (GZIPOutputStream os = new GZIPOutputStream(bytes)) {
+                        os.write(mContent);
+                    }
+                    body = bytes.toByteArray();
+                    exchange.getResponseHeaders().set("Content-Encoding", "gzip");
+                }
+                exchange.sendResponseHeaders(200, body.length);
+                try (OutputStream os = exchange.getResponseBody()) {
+                    os.write(body);
+                }
+            }
+        });
+        mServer.start();
+    }
+
+    @After
+    public void stopServer() {
+        mServer.stop(0);
+    }
+
+    /**
+     * Serves mContent, honoring single ranges like most download servers
+     */
+    private void serve(HttpExchange exchange) throws IOException {
+        String range = exchange.getRequestHeaders().getFirst("Range");
+        Matcher matcher = range != null ? RANGE_PATTERN.matcher(range) : null;
+        int start = 0;
+        int end = mContent.length - 1;
+        exchange.getResponseHeaders().set("ETag", ETAG);
+        if (matcher != null && matcher.matches()) {
+            mRangeRequests.incrementAndGet();
+            start = Integer.parseInt(matcher.group(1));
+            if (!matcher.group(2).isEmpty()) {
+                end = Math.min(end, Integer.parseInt(matcher.group(2)));
+            }
+            exchange.getResponseHeaders().set("Content-Range",
+                    "bytes " + start + "-" + end + "/" + mContent.length);
+            exchange.sendResponseHeaders(206, end - start + 1);
+        } else {
+            exchange.sendResponseHeaders(200, mContent.length);
+        }
+        try (OutputStream os = exchange.getResponseBody()) {
+            os.write(mContent, start, end - start + 1);
+        } catch (IOException e) {
+            // The client hung up
+        }
+    }
+
+    private String getUrl() {
+        return getUrl("/file");
+    }
+
+    private String getUrl(String path) {
+        return "http://127.0.0.1:" + mServer.getAddress().getPort() + path;
+    }
+
+    private static byte[] randomBytes(int length) {
+        byte[] bytes = new byte[length];
+        new Random(length).nextBytes(bytes);
+        return bytes;
+    }
+
+    /**
+     * Progress reports received by the listener
+     */
+    private static class Reports implements DownloadClient.ProgressListener {
+        final List<long[]> mReports = Collections.synchronizedList(new ArrayList<long[]>());
+        final AtomicInteger mDone = new AtomicInteger();
+
+        @Override
+        public void update(long bytesRead, long contentLength, long speed, long eta,
+                           boolean done) {
+            mReports.add(new long[]{bytesRead, contentLength});
+            if (done) {
+                mDone.incrementAndGet();
+            }
+        }
+    }
+
+    private static class Result implements DownloadClient.DownloadCallback {
+        final CountDownLatch mLatch = new CountDownLatch(1);
+        volatile boolean mSuccess;
+
+        @Override
+        public void onResponse(int statusCode, String url, DownloadClient.Headers headers) {
+        }
+
+        @Override
+        public void onSuccess(File destination) {
+            mSuccess = true;
+            mLatch.countDown();
+        }
+
+        @Override
+        public void onFailure(boolean cancelled) {
+            mLatch.countDown();
+        }
+
+        void await() throws InterruptedException {
+            assertTrue("The download didn't end", mLatch.await(30, TimeUnit.SECONDS));
+        }
+    }
+
+    private void assertReports(Reports reports, long total, long interval) {
+        List<long[]> list = reports.mReports;
+        assertEquals(1, reports.mDone.get());
+        assertTrue("Too many reports: " + list.size(), list.size() <= total / interval + 1);
+        long previous = 0;
+        for (long[] report : list) {
+            // Reports are made one at a time, even with several connections
+            assertTrue(report[0] >= previous);
+            previous = report[0];
+        }
+        assertEquals(total, list.get(list.size() - 1)[0]);
+        assertEquals(total, list.get(list.size() - 1)[1]);
+    }
+
+    @Test
+    public void progressIsReportedOncePerInterval() throws Exception {
+        mContent = randomBytes(4 * MB + 1000);
+        File destination = new File(mFolder.getRoot(), "download");
+        Reports reports = new Reports();
+        Result result = new Result();
+        new DownloadClient.Builder()
+                .setUrl(getUrl())
+                .setDestination(destination)
+                .setDownloadCallback(result)
+                .setProgressListener(reports)
+                .setProgressInterval(Long.MAX_VALUE, MB)
+                .build()
+                .start();
+        result.await();
+
+        assertTrue(result.mSuccess);
+        assertArrayEquals(mContent, Files.readAllBytes(destination.toPath()));
+        assertReports(reports, mContent.length, MB);
+        assertTrue("Too few reports", reports.mReports.size() >= 4);
+    }
+
+    @Test
+    public void progressOfSegmentsIsCombined() throws Exception {
+        mContent = randomBytes(12 * MB + 1000);
+        File destination = new File(mFolder.getRoot(), "download");
+        Reports reports = new Reports();
+        Result result = new Result();
+        ResumeJournal journal = new ResumeJournal();
+        new DownloadClient.Builder()
+                .setUrl(getUrl())
+                .setDestination(destination)
+                .setDownloadCallback(result)
+                .setProgressListener(reports)
+                .setProgressInterval(Long.MAX_VALUE, 2 * MB)
+                .setMaxConnections(4)
+                .setResumeJournal(journal, null)
+                .build()
+                .start();
+        result.await();
+
+        assertTrue(result.mSuccess);
+        assertTrue("Not downloaded in segments", mRangeRequests.get() > 1);
+        assertArrayEquals(mContent, Files.readAllBytes(destination.toPath()));
+        assertTrue(journal.isComplete());
+        assertReports(reports, mContent.length, 2 * MB);
+    }
+
+    @Test
+    public void listenersCanBlockWhileTheDownloadIsCancelled() throws Exception {
+        mContent = randomBytes(16 * MB);
+        File destination = new File(mFolder.getRoot(), "download");
+        // Stands for the lock of the caller, held while cancelling
+        final Object lock = new Object();
+        final CountDownLatch reporting = new CountDownLatch(1);
+        Result result = new Result();
+        final DownloadClient client = new DownloadClient.Builder()
+                .setUrl(getUrl())
+                .setDestination(destination)
+                .setDownloadCallback(result)
+                .setProgressListener(new DownloadClient.ProgressListener() {
+                    @Override
+                    public void update(long bytesRead, long contentLength, long speed,
+                                       long eta, boolean done) {
+                        reporting.countDown();
+                        synchronized (lock) {
+                            // Publish the progress
+                        }
+                    }
+                })
+                .setProgressInterval(Long.MAX_VALUE, 64 * 1024)
+                .setMaxConnections(4)
+                .build();
+
+        Thread canceller = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                synchronized (lock) {
+                    client.start();
+                    try {
+                        reporting.await();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                    client.cancel();
+                }
+            }
+        });
+        canceller.start();
+        canceller.join(TimeUnit.SECONDS.toMillis(10));
+        assertFalse("cancel() is blocked by the progress listener", canceller.isAlive());
+        result.await();
+        assertFalse(result.mSuccess);
+    }
+
+    @Test
+    public void gzippedResponsesAreStoredAsSent() throws Exception {
+        mContent = "{\"results\": []}".getBytes("UTF-8");
+        File destination = new File(mFolder.getRoot(), "updates.json");
+        Result result = new Result();
+        new DownloadClient.Builder()
+                .setUrl(getUrl("/list"))
+                .setDestination(destination)
+                .setDownloadCallback(result)
+                .setAcceptGzip(true)
+                .build()
+                .start();
+        result.await();
+
+        assertTrue(result.mSuccess);
+        try (InputStream is = new GZIPInputStream(new FileInputStream(destination))) {
+            ByteArrayOutputStream content = new ByteArrayOutputStream();
+            byte[] buffer = new byte[1024];
+            for (int count; (count = is.read(buffer)) > 0; ) {
+                content.write(buffer, 0, count);
+            }
+            assertArrayEquals(mContent, content.toByteArray());
+        }
+    }
+}
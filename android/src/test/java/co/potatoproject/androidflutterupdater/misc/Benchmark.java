@@ -0,0 +1,139 @@
+/*
+ * Copyright (C) 2019 The Potato Open Sauce Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package co.potatoproject.androidflutterupdater.misc;
+
+import org.junit.Assume;
+
+import java.lang.management.ManagementFactory;
+import java.util.Arrays;
+import java.util.Locale;
+
+/**
+ * Measures the *Benchmark classes. They're skipped unless the tests run with
+ * -Pbenchmark, and print their results instead of asserting on them.
+ */
+public final class Benchmark {
+
+    public interface Task {
+        void run() throws Exception;
+    }
+
+    public static final class Result {
+        private final String mName;
+        private final long mNanos;
+        private final long mCpuNanos;
+        private final long mAllocatedBytes;
+
+        private Result(String name, long nanos, long cpuNanos, long allocatedBytes) {
+            mName = name;
+            mNanos = nanos;
+            mCpuNanos = cpuNanos;
+            mAllocatedBytes = allocatedBytes;
+        }
+
+        /**
+         * @return the median wall time of a run
+         */
+        public long getNanos() {
+            return mNanos;
+        }
+
+        /**
+         * @return the mean CPU time of a run, for all the threads of the process,
+         * or -1 if the JVM can't tell
+         */
+        public long getCpuNanos() {
+            return mCpuNanos;
+        }
+
+        /**
+         * @return the mean bytes allocated by the measuring thread in a run, or
+         * -1 if the JVM can't tell
+         */
+        public long getAllocatedBytes() {
+            return mAllocatedBytes;
+        }
+
+        /**
+         * @return how many units a second a run handles
+         */
+        public double perSecond(long units) {
+            return units * 1e9 / mNanos;
+        }
+
+        @Override
+        public String toString() {
+            return String.format(Locale.ROOT, "%-24s %10.2f ms %10.2f ms cpu %12d B allocated",
+                    mName, mNanos / 1e6, mCpuNanos / 1e6, mAllocatedBytes);
+        }
+    }
+
+    private Benchmark() {
+    }
+
+    public static void assumeEnabled() {
+        Assume.assumeTrue("Benchmarks run with -Pbenchmark", Boolean.getBoolean("benchmark"));
+    }
+
+    /**
+     * Run the task warmups times, then measure it over the given number of runs
+     */
+    public static Result measure(String name, int warmups, int runs, Task task) throws Exception {
+        for (int i = 0; i < warmups; i++) {
+            task.run();
+        }
+        long[] nanos = new long[runs];
+        long cpuNanos = 0;
+        long allocatedBytes = 0;
+        for (int i = 0; i < runs; i++) {
+            long cpuStart = getCpuNanos();
+            long allocatedStart = getAllocatedBytes();
+            long start = System.nanoTime();
+            task.run();
+            nanos[i] = System.nanoTime() - start;
+            cpuNanos += getCpuNanos() - cpuStart;
+            allocatedBytes += getAllocatedBytes() - allocatedStart;
+        }
+        Arrays.sort(nanos);
+        return new Result(name, nanos[runs / 2],
+                getCpuNanos() < 0 ? -1 : cpuNanos / runs,
+                getAllocatedBytes() < 0 ? -1 : allocatedBytes / runs);
+    }
+
+    public static void report(String title, Result... results) {
+        System.out.println(title);
+        for (Result result : results) {
+            System.out.println("  " + result);
+        }
+    }
+
+    private static long getCpuNanos() {
+        Object bean = ManagementFactory.getOperatingSystemMXBean();
+        if (bean instanceof com.sun.management.OperatingSystemMXBean) {
+            return ((com.sun.management.OperatingSystemMXBean) bean).getProcessCpuTime();
+        }
+        return -1;
+    }
+
+    private static long getAllocatedBytes() {
+        Object bean = ManagementFactory.getThreadMXBean();
+        if (bean instanceof com.sun.management.ThreadMXBean) {
+            return ((com.sun.management.ThreadMXBean) bean)
+                    .getThreadAllocatedBytes(Thread.currentThread().getId());
+        }
+        return -1;
+    }
+}
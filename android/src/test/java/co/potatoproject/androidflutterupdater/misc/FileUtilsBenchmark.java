@@ -0,0 +1,146 @@
+/*
+ * Copyright (C) 2019 The Potato Open Sauce Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package co.potatoproject.androidflutterupdater.misc;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Throughput of the copy of an update, with its progress reported, against
+ * the copy through a progress channel it replaced
+ */
+@SuppressWarnings("Convert2Lambda")
+public class FileUtilsBenchmark {
+
+    private static final int LENGTH = 256 * 1024 * 1024;
+
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    private File mSource;
+    private File mDestination;
+
+    @Before
+    public void setUp() throws IOException {
+        Benchmark.assumeEnabled();
+        mSource = mFolder.newFile("update.zip");
+        mDestination = new File(mFolder.getRoot(), "copy.zip");
+        byte[] block = new byte[1024 * 1024];
+        Random random = new Random(1);
+        try (OutputStream os = new FileOutputStream(mSource)) {
+            for (int written = 0; written < LENGTH; written += block.length) {
+                random.nextBytes(block);
+                os.write(block);
+            }
+        }
+    }
+
+    /**
+     * How the progress of a copy was reported before, reading through it
+     */
+    private static class CallbackByteChannel implements ReadableByteChannel {
+        private final ReadableByteChannel mChannel;
+        private final long mSize;
+        private final FileUtils.ProgressCallBack mCallback;
+        private long mSizeRead;
+        private int mProgress;
+
+        CallbackByteChannel(ReadableByteChannel channel, long size,
+                            FileUtils.ProgressCallBack callback) {
+            mChannel = channel;
+            mSize = size;
+            mCallback = callback;
+        }
+
+        @Override
+        public int read(ByteBuffer bb) throws IOException {
+            int read = mChannel.read(bb);
+            if (read > 0) {
+                mSizeRead += read;
+                int progress = Math.round(mSizeRead * 100.f / mSize);
+                if (mProgress != progress) {
+                    mCallback.update(progress);
+                    mProgress = progress;
+                }
+            }
+            return read;
+        }
+
+        @Override
+        public boolean isOpen() {
+            return mChannel.isOpen();
+        }
+
+        @Override
+        public void close() throws IOException {
+            mChannel.close();
+        }
+    }
+
+    @Test
+    public void copyThroughput() throws Exception {
+        final int[] progress = new int[1];
+        final FileUtils.ProgressCallBack callback = new FileUtils.ProgressCallBack() {
+            @Override
+            public void update(int value) {
+                progress[0] = value;
+            }
+        };
+
+        Benchmark.Result channel = Benchmark.measure("Progress channel", 2, 5,
+                new Benchmark.Task() {
+                    @Override
+                    public void run() throws Exception {
+                        mDestination.delete();
+                        try (FileChannel source = new FileInputStream(mSource).getChannel();
+                             FileChannel destination =
+                                     new FileOutputStream(mDestination).getChannel()) {
+                            destination.transferFrom(new CallbackByteChannel(source,
+                                    source.size(), callback), 0, source.size());
+                        }
+                        assertEquals(100, progress[0]);
+                    }
+                });
+        Benchmark.Result chunked = Benchmark.measure("Chunked transferTo", 2, 5,
+                new Benchmark.Task() {
+                    @Override
+                    public void run() throws Exception {
+                        mDestination.delete();
+                        FileUtils.copyFile(mSource, mDestination, callback);
+                        assertEquals(100, progress[0]);
+                    }
+                });
+        assertEquals(LENGTH, mDestination.length());
+
+        Benchmark.report("Copying " + (LENGTH >> 20) + "MB", channel, chunked);
+        System.out.printf("  %.0f MB/s through the progress channel, %.0f MB/s chunked%n",
+                channel.perSecond(LENGTH) / (1 << 20), chunked.perSecond(LENGTH) / (1 << 20));
+    }
+}
@@ -0,0 +1,141 @@
+/*
+ * Copyright (C) 2019 The Potato Open Sauce Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package co.potatoproject.androidflutterupdater.misc;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+@SuppressWarnings("Convert2Lambda")
+public class FileUtilsTest {
+
+    private static final int MB = 1024 * 1024;
+    // Spans three chunks of the copy
+    private static final long SIZE = 80L * MB;
+
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    private File mSource;
+    private File mDestination;
+
+    @Before
+    public void setUp() throws IOException {
+        mSource = mFolder.newFile("update.zip");
+        mDestination = new File(mFolder.getRoot(), "copy.zip");
+        // Mostly sparse, with data around the chunk boundaries
+        Random random = new Random(0);
+        byte[] data = new byte[MB];
+        try (RandomAccessFile raf = new RandomAccessFile(mSource, "rw")) {
+            raf.setLength(SIZE);
+            for (long offset : new long[]{0, 32L * MB - MB / 2, 64L * MB - MB / 2, SIZE - MB}) {
+                random.nextBytes(data);
+                raf.seek(offset);
+                raf.write(data);
+            }
+        }
+    }
+
+    @After
+    public void clearInterrupt() {
+        Thread.interrupted();
+    }
+
+    private static void assertSameContent(File expected, File actual) throws IOException {
+        assertEquals(expected.length(), actual.length());
+        byte[] expectedBuffer = new byte[MB];
+        byte[] actualBuffer = new byte[MB];
+        try (InputStream expectedStream = new FileInputStream(expected);
+             InputStream actualStream = new FileInputStream(actual)) {
+            for (int count; (count = expectedStream.read(expectedBuffer)) > 0; ) {
+                int read = 0;
+                while (read < count) {
+                    int n = actualStream.read(actualBuffer, read, count - read);
+                    assertTrue("Copy shorter than the source", n > 0);
+                    read += n;
+                }
+                assertArrayEquals(expectedBuffer, actualBuffer);
+            }
+            assertEquals(-1, actualStream.read());
+        }
+    }
+
+    @Test
+    public void copiesInChunks() throws IOException {
+        final List<Integer> progress = new ArrayList<>();
+        FileUtils.copyFile(mSource, mDestination, new FileUtils.ProgressCallBack() {
+            @Override
+            public void update(int value) {
+                progress.add(value);
+            }
+        }, true);
+
+        assertSameContent(mSource, mDestination);
+        assertEquals(3, progress.size());
+        assertEquals(40, (int) progress.get(0));
+        assertEquals(80, (int) progress.get(1));
+        assertEquals(100, (int) progress.get(2));
+    }
+
+    @Test
+    public void copiesEmptyFiles() throws IOException {
+        File empty = mFolder.newFile("empty");
+        FileUtils.copyFile(empty, mDestination);
+        assertTrue(mDestination.exists());
+        assertEquals(0, mDestination.length());
+    }
+
+    @Test
+    public void interruptionsCancelTheCopy() throws IOException {
+        final List<Integer> progress = new ArrayList<>();
+        FileUtils.copyFile(mSource, mDestination, new FileUtils.ProgressCallBack() {
+            @Override
+            public void update(int value) {
+                progress.add(value);
+                Thread.currentThread().interrupt();
+            }
+        });
+
+        assertEquals(1, progress.size());
+        assertFalse("The partial copy was kept", mDestination.exists());
+        assertTrue("The interrupt was swallowed", Thread.currentThread().isInterrupted());
+    }
+
+    @Test
+    public void interruptedThreadsDontCopy() throws IOException {
+        Thread.currentThread().interrupt();
+        FileUtils.copyFile(mSource, mDestination);
+
+        assertFalse(mDestination.exists());
+        assertTrue(Thread.interrupted());
+    }
+}
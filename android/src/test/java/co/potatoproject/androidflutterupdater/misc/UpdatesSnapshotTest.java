@@ -0,0 +1,189 @@
+/*
+ * Copyright (C) 2019 The Potato Open Sauce Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package co.potatoproject.androidflutterupdater.misc;
+
+import android.content.Context;
+import android.preference.PreferenceManager;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+import co.potatoproject.androidflutterupdater.model.Update;
+import co.potatoproject.androidflutterupdater.model.UpdateInfo;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Runs with Robolectric for the cache directory and the preferences
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = 28)
+public class UpdatesSnapshotTest {
+
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    private Context mContext;
+    private File mJson;
+
+    @Before
+    public void setUp() throws IOException {
+        mContext = RuntimeEnvironment.application;
+        new File(mContext.getCacheDir(), "updates.snapshot").delete();
+        setReleaseType("weekly");
+        mJson = mFolder.newFile("updates.json");
+        Files.write(mJson.toPath(), "{\"results\": []}".getBytes(StandardCharsets.UTF_8));
+    }
+
+    private void setReleaseType(String type) {
+        PreferenceManager.getDefaultSharedPreferences(mContext).edit()
+                .putString(Constants.PREF_RELEASE_TYPE, type)
+                .commit();
+    }
+
+    private static List<UpdateInfo> createUpdates() {
+        Update full = new Update();
+        full.setDownloadId("0123456789abcdef0123456789abcdef");
+        full.setTimestamp(1000);
+        full.setFileSize(1024);
+        full.setName("update.zip");
+        full.setType("weekly");
+        full.setDownloadUrl("https://example.com/update.zip");
+        full.setVersion("1.0");
+        // Longer than what writeUTF() supports
+        char[] notes = new char[100 * 1024];
+        Arrays.fill(notes, 'é');
+        full.setNotes(new String(notes));
+        full.setDeltaSource("fedcba9876543210fedcba9876543210");
+        full.setDeltaUrl("https://example.com/update.delta");
+        full.setDeltaSize(256);
+        full.setChunkHashes(512, Arrays.asList(
+                "0000000000000000000000000000000000000000000000000000000000000000",
+                "1111111111111111111111111111111111111111111111111111111111111111"));
+
+        // Only the mandatory fields
+        Update minimal = new Update();
+        minimal.setDownloadId("fedcba9876543210fedcba9876543210");
+        minimal.setTimestamp(500);
+        minimal.setFileSize(2048);
+        minimal.setName("older.zip");
+        minimal.setType("weekly");
+        minimal.setDownloadUrl("https://example.com/older.zip");
+        minimal.setVersion("1.0");
+        minimal.setNotes("");
+
+        List<UpdateInfo> updates = new ArrayList<>();
+        updates.add(full);
+        updates.add(minimal);
+        return updates;
+    }
+
+    @Test
+    public void loadsWhatWasSaved() {
+        List<UpdateInfo> updates = createUpdates();
+        UpdatesSnapshot.save(mContext, mJson, updates);
+
+        List<UpdateInfo> loaded = UpdatesSnapshot.load(mContext, mJson);
+        assertNotNull(loaded);
+        assertEquals(updates.size(), loaded.size());
+        for (int i = 0; i < updates.size(); i++) {
+            // The content hash covers every field
+            assertEquals(UpdatesSnapshot.getContentHash(updates.get(i)),
+                    UpdatesSnapshot.getContentHash(loaded.get(i)));
+            assertEquals(updates.get(i).getNotes(), loaded.get(i).getNotes());
+        }
+        assertEquals(updates.get(0).getChunkHashes(), loaded.get(0).getChunkHashes());
+        assertNull(loaded.get(1).getChunkHashes());
+        assertNull(loaded.get(1).getDeltaUrl());
+    }
+
+    @Test
+    public void staleSnapshotsStillHaveAnIndex() throws IOException {
+        List<UpdateInfo> updates = createUpdates();
+        UpdatesSnapshot.save(mContext, mJson, updates);
+
+        Files.write(mJson.toPath(), "{\"results\": [ ]}".getBytes(StandardCharsets.UTF_8));
+        assertNull(UpdatesSnapshot.load(mContext, mJson));
+        Map<String, Long> index = UpdatesSnapshot.loadIndex(mContext);
+        assertNotNull(index);
+        assertEquals(updates.size(), index.size());
+        for (UpdateInfo update : updates) {
+            assertEquals(UpdatesSnapshot.getContentHash(update),
+                    (long) index.get(update.getDownloadId()));
+        }
+    }
+
+    @Test
+    public void rewrittenListsAreStale() throws IOException {
+        UpdatesSnapshot.save(mContext, mJson, createUpdates());
+        assertNotNull(UpdatesSnapshot.load(mContext, mJson));
+
+        // Same size, only the modification time tells
+        Files.write(mJson.toPath(), "{\"results\": [] }".getBytes(StandardCharsets.UTF_8));
+        assertTrue(mJson.setLastModified(mJson.lastModified() + 2000));
+        assertNull(UpdatesSnapshot.load(mContext, mJson));
+    }
+
+    @Test
+    public void snapshotsOfAnotherReleaseTypeAreStale() {
+        UpdatesSnapshot.save(mContext, mJson, createUpdates());
+        setReleaseType("nightly");
+        assertNull(UpdatesSnapshot.load(mContext, mJson));
+    }
+
+    @Test
+    public void rejectsOtherVersionsAndCorruptSnapshots() throws IOException {
+        File file = new File(mContext.getCacheDir(), "updates.snapshot");
+        UpdatesSnapshot.save(mContext, mJson, createUpdates());
+        assertNotNull(UpdatesSnapshot.load(mContext, mJson));
+
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            // The version follows the magic
+            raf.seek(4);
+            int version = raf.readInt();
+            raf.seek(4);
+            raf.writeInt(version + 1);
+        }
+        assertNull(UpdatesSnapshot.load(mContext, mJson));
+        assertNull(UpdatesSnapshot.loadIndex(mContext));
+
+        UpdatesSnapshot.save(mContext, mJson, createUpdates());
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            raf.setLength(raf.length() / 2);
+        }
+        assertNull(UpdatesSnapshot.load(mContext, mJson));
+        assertNull(UpdatesSnapshot.loadIndex(mContext));
+    }
+}
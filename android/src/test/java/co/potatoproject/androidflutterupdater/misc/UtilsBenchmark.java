@@ -0,0 +1,280 @@
+/*
+ * Copyright (C) 2019 The Potato Open Sauce Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package co.potatoproject.androidflutterupdater.misc;
+
+import android.content.Context;
+import android.preference.PreferenceManager;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.GZIPOutputStream;
+
+import co.potatoproject.androidflutterupdater.download.DownloadClient;
+import co.potatoproject.androidflutterupdater.model.Update;
+import co.potatoproject.androidflutterupdater.model.UpdateInfo;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Fetching, parsing and caching of the updates list. Runs with Robolectric
+ * for android.util.JsonReader, the cache directory and the preferences.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = 28)
+@SuppressWarnings("Convert2Lambda")
+public class UtilsBenchmark {
+
+    // A server keeping the builds of a few years for many devices
+    private static final int UPDATES = 5000;
+
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    private HttpServer mServer;
+    private byte[] mList;
+    private final AtomicLong mSentBytes = new AtomicLong();
+
+    /**
+     * @return a list of updates with the fields a server usually sends
+     */
+    private static String generateList(int count) {
+        Random random = new Random(count);
+        StringBuilder json = new StringBuilder("{\"results\": [");
+        for (int i = 0; i < count; i++) {
+            String md5 = String.format(Locale.ROOT, "%016x%016x", random.nextLong(),
+                    random.nextLong());
+            long buildDate = 1500000000L + i * 86400L;
+            json.append(i == 0 ? "" : ", ")
+                    .append("{\"build_date\": ").append(buildDate)
+                    .append(", \"build_type\": \"weekly\", \"filename\": \"potato-device-")
+                    .append(buildDate).append(".zip\", \"md5\": \"").append(md5)
+                    .append("\", \"size\": ").append(800000000 + random.nextInt(100000000))
+                    .append(", \"url\": \"https://mirror.example.com/device/weekly/")
+                    .append(md5).append(".zip\", \"version\": \"3.")
+                    .append(i % 10).append("\", \"notes\": \"Security patch and fixes\"}");
+        }
+        return json.append("]}").toString();
+    }
+
+    @Before
+    public void startServer() throws IOException {
+        Benchmark.assumeEnabled();
+        mList = generateList(UPDATES).getBytes(StandardCharsets.UTF_8);
+        mServer = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0),
+                0);
+        mServer.setExecutor(Executors.newCachedThreadPool());
+        mServer.createContext("/list", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                String encoding = exchange.getRequestHeaders().getFirst("Accept-Encoding");
+                byte[] body = mList;
+                if (encoding != null && encoding.contains("gzip")) {
+                    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+                    try (GZIPOutputStream os = new GZIPOutputStream(bytes)) {
+                        os.write(mList);
+                    }
+                    body = bytes.toByteArray();
+                    exchange.getResponseHeaders().set("Content-Encoding", "gzip");
+                }
+                exchange.sendResponseHeaders(200, body.length);
+                try (OutputStream os = exchange.getResponseBody()) {
+                    os.write(body);
+                }
+                mSentBytes.addAndGet(body.length);
+            }
+        });
+        mServer.start();
+    }
+
+    @After
+    public void stopServer() {
+        if (mServer != null) {
+            mServer.stop(0);
+        }
+    }
+
+    /**
+     * @return the bytes the server sent for the list
+     */
+    private long fetch(File destination, boolean gzip) throws Exception {
+        final CountDownLatch latch = new CountDownLatch(1);
+        final boolean[] success = new boolean[1];
+        mSentBytes.set(0);
+        new DownloadClient.Builder()
+                .setUrl("http://127.0.0.1:" + mServer.getAddress().getPort() + "/list")
+                .setDestination(destination)
+                .setAcceptGzip(gzip)
+                .setDownloadCallback(new DownloadClient.DownloadCallback() {
+                    @Override
+                    public void onResponse(int statusCode, String url,
+                                           DownloadClient.Headers headers) {
+                    }
+
+                    @Override
+                    public void onSuccess(File destination) {
+                        success[0] = true;
+                        latch.countDown();
+                    }
+
+                    @Override
+                    public void onFailure(boolean cancelled) {
+                        latch.countDown();
+                    }
+                })
+                .build()
+                .start();
+        assertTrue(latch.await(30, TimeUnit.SECONDS));
+        assertTrue(success[0]);
+        return mSentBytes.get();
+    }
+
+    private static Benchmark.Result measureParse(String name, final File json)
+            throws Exception {
+        return Benchmark.measure(name, 100, 20, new Benchmark.Task() {
+            @Override
+            public void run() throws Exception {
+                assertEquals(UPDATES, Utils.parseJson(json, false, null).size());
+            }
+        });
+    }
+
+    @Test
+    public void gzippedList() throws Exception {
+        File plain = new File(mFolder.getRoot(), "plain.json");
+        File gzipped = new File(mFolder.getRoot(), "gzipped.json");
+        long plainBytes = fetch(plain, false);
+        long gzippedBytes = fetch(gzipped, true);
+        // Stored as sent
+        assertEquals(plainBytes, plain.length());
+        assertEquals(gzippedBytes, gzipped.length());
+
+        Benchmark.report("Parsing a list of " + UPDATES + " updates",
+                measureParse("Plain", plain), measureParse("Gzipped", gzipped));
+        System.out.printf("  %d bytes sent plain, %d bytes gzipped (%.1f%%)%n",
+                plainBytes, gzippedBytes, gzippedBytes * 100.0 / plainBytes);
+    }
+
+    /**
+     * How the list was parsed before the streaming reader
+     */
+    private static List<UpdateInfo> parseJsonObject(File file) throws Exception {
+        List<UpdateInfo> updates = new ArrayList<>();
+        StringBuilder json = new StringBuilder();
+        try (BufferedReader br = new BufferedReader(new FileReader(file))) {
+            for (String line; (line = br.readLine()) != null; ) {
+                json.append(line);
+            }
+        }
+        JSONArray updatesList = new JSONObject(json.toString()).getJSONArray("results");
+        for (int i = 0; i < updatesList.length(); i++) {
+            JSONObject object = updatesList.getJSONObject(i);
+            Update update = new Update();
+            update.setTimestamp(object.getLong("build_date"));
+            update.setName(object.getString("filename"));
+            update.setDownloadId(object.getString("md5"));
+            update.setType(object.getString("build_type"));
+            update.setFileSize(object.getLong("size"));
+            update.setDownloadUrl(object.getString("url"));
+            update.setVersion(object.getString("version"));
+            update.setNotes(object.getString("notes"));
+            updates.add(update);
+        }
+        return updates;
+    }
+
+    @Test
+    public void streamingParse() throws Exception {
+        final File json = new File(mFolder.getRoot(), "updates.json");
+        try (OutputStream os = new FileOutputStream(json)) {
+            os.write(mList);
+        }
+
+        Benchmark.Result tree = Benchmark.measure("JSONObject", 100, 20,
+                new Benchmark.Task() {
+                    @Override
+                    public void run() throws Exception {
+                        assertEquals(UPDATES, parseJsonObject(json).size());
+                    }
+                });
+        Benchmark.report("Parsing a list of " + UPDATES + " updates, " + json.length() +
+                " bytes", tree, measureParse("JsonReader", json));
+    }
+
+    @Test
+    public void snapshotLoad() throws Exception {
+        final Context context = RuntimeEnvironment.application;
+        PreferenceManager.getDefaultSharedPreferences(context).edit()
+                .putString(Constants.PREF_RELEASE_TYPE, "weekly")
+                .commit();
+        final File snapshot = new File(context.getCacheDir(), "updates.snapshot");
+        final File json = new File(mFolder.getRoot(), "updates.json");
+        try (OutputStream os = new FileOutputStream(json)) {
+            os.write(mList);
+        }
+        final int compatible = Utils.parseJson(json, true, context).size();
+
+        Benchmark.Result cold = Benchmark.measure("Parsed and saved", 100, 20,
+                new Benchmark.Task() {
+                    @Override
+                    public void run() throws Exception {
+                        snapshot.delete();
+                        assertEquals(compatible, Utils.loadCompatibleUpdates(json, context).size());
+                    }
+                });
+        Benchmark.Result warm = Benchmark.measure("Loaded from snapshot", 100, 20,
+                new Benchmark.Task() {
+                    @Override
+                    public void run() throws Exception {
+                        assertEquals(compatible, Utils.loadCompatibleUpdates(json, context).size());
+                    }
+                });
+        Benchmark.report("Loading " + compatible + " compatible updates of " + UPDATES + ", " +
+                json.length() + " bytes, snapshot of " + snapshot.length() + " bytes", cold, warm);
+    }
+}
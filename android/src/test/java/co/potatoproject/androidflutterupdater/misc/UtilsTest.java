@@ -0,0 +1,170 @@
+/*
+ * Copyright (C) 2019 The Potato Open Sauce Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package co.potatoproject.androidflutterupdater.misc;
+
+import android.content.Context;
+import android.preference.PreferenceManager;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.json.JSONException;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.zip.GZIPOutputStream;
+
+import co.potatoproject.androidflutterupdater.model.UpdateInfo;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Runs with Robolectric for android.util.JsonReader and the preferences
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = 28)
+public class UtilsTest {
+
+    private static final String MD5 = "0123456789abcdef0123456789abcdef";
+    private static final String OTHER_MD5 = "fedcba9876543210fedcba9876543210";
+    // Newer than any build the tests could run on
+    private static final long FUTURE_BUILD_DATE = 4000000000L;
+
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    private static String update(String md5, long buildDate) {
+        return "{\"build_date\": " + buildDate + ", \"build_type\": \"weekly\", " +
+                "\"filename\": \"update-" + md5 + ".zip\", \"md5\": \"" + md5 + "\", " +
+                "\"size\": 1024, \"url\": \"https://example.com/" + md5 + ".zip\", " +
+                "\"version\": \"1.0\", \"notes\": \"Notes\"}";
+    }
+
+    private File write(String json, boolean gzip) throws IOException {
+        File file = mFolder.newFile();
+        try (OutputStream os = gzip ? new GZIPOutputStream(new FileOutputStream(file)) :
+                new FileOutputStream(file)) {
+            os.write(json.getBytes(StandardCharsets.UTF_8));
+        }
+        return file;
+    }
+
+    @Test
+    public void parsesGzippedLists() throws Exception {
+        String json = "{\"results\": [" + update(MD5, 1000) + "]}";
+        for (boolean gzip : new boolean[]{false, true}) {
+            List<UpdateInfo> updates = Utils.parseJson(write(json, gzip), false, null);
+            assertEquals(1, updates.size());
+            assertEquals(MD5, updates.get(0).getDownloadId());
+            assertEquals(1000, updates.get(0).getTimestamp());
+            assertEquals(1024, updates.get(0).getFileSize());
+        }
+    }
+
+    private void assertMalformed(String json) throws IOException {
+        try {
+            Utils.parseJson(write(json, false), false, null);
+            fail("Parsed " + json);
+        } catch (IOException | JSONException e) {
+            // Expected
+        }
+    }
+
+    @Test
+    public void rejectsMalformedLists() throws Exception {
+        String valid = "{\"results\": [" + update(MD5, 1000) + "]}";
+        // Truncated in a value, in an update and before the end of the list
+        assertMalformed(valid.substring(0, valid.indexOf("weekly") + 3));
+        assertMalformed(valid.substring(0, valid.length() - 3));
+        assertMalformed(valid.substring(0, valid.length() - 1));
+        // Not the expected structure
+        assertMalformed("{\"results\": {}}");
+        assertMalformed("[" + update(MD5, 1000) + "]");
+        assertMalformed("{\"response\": []}");
+        assertMalformed("");
+    }
+
+    @Test
+    public void skipsInvalidUpdates() throws Exception {
+        String missingUrl = update(OTHER_MD5, 1000).replace("\"url\"", "\"link\"");
+        String badSize = update(OTHER_MD5, 1000).replace("1024", "\"big\"");
+        String nullName = update(OTHER_MD5, 1000)
+                .replace("\"update-" + OTHER_MD5 + ".zip\"", "null");
+        String json = "{\"id\": {\"results\": 1}, \"results\": [" + missingUrl + ", 42, " +
+                badSize + ", " + nullName + ", [], " + update(MD5, 1000) + "]}";
+
+        List<UpdateInfo> updates = Utils.parseJson(write(json, false), false, null);
+        assertEquals(1, updates.size());
+        assertEquals(MD5, updates.get(0).getDownloadId());
+    }
+
+    @Test
+    public void skipsIncompatibleUpdatesWhileReading() throws Exception {
+        Context context = RuntimeEnvironment.application;
+        PreferenceManager.getDefaultSharedPreferences(context).edit()
+                .putString(Constants.PREF_RELEASE_TYPE, "weekly")
+                .commit();
+        String nightly = update(OTHER_MD5, FUTURE_BUILD_DATE).replace("weekly", "nightly");
+        String old = update("00000000000000000000000000000000", 0);
+        String json = "{\"results\": [" + nightly + ", " + old + ", " +
+                update(MD5, FUTURE_BUILD_DATE) + "]}";
+
+        assertEquals(3, Utils.parseJson(write(json, false), false, null).size());
+        List<UpdateInfo> updates = Utils.parseJson(write(json, false), true, context);
+        assertEquals(1, updates.size());
+        assertEquals(MD5, updates.get(0).getDownloadId());
+    }
+
+    @Test
+    public void snapshotsFollowTheListThatReplacedTheCachedOne() throws Exception {
+        Context context = RuntimeEnvironment.application;
+        PreferenceManager.getDefaultSharedPreferences(context).edit()
+                .putString(Constants.PREF_RELEASE_TYPE, "weekly")
+                .commit();
+        new File(context.getCacheDir(), "updates.snapshot").delete();
+        File json = new File(mFolder.getRoot(), "updates.json");
+
+        File first = write("{\"results\": [" + update(MD5, FUTURE_BUILD_DATE) + "]}", false);
+        UpdatesDiff diff = Utils.diffUpdates(json, first, context);
+        assertTrue(diff.isInitial());
+        assertTrue(Utils.replaceUpdatesList(json, first, diff, context));
+        assertEquals(1, UpdatesSnapshot.load(context, json).size());
+
+        File second = write("{\"results\": [" + update(MD5, FUTURE_BUILD_DATE) + ", " +
+                update(OTHER_MD5, FUTURE_BUILD_DATE) + "]}", false);
+        diff = Utils.diffUpdates(json, second, context);
+        assertEquals(1, diff.getAdded().size());
+        // Can't be moved there, the cached list stays and so does its snapshot
+        File missing = new File(mFolder.getRoot(), "missing/updates.json");
+        assertFalse(Utils.replaceUpdatesList(missing, second, diff, context));
+        assertEquals(1, UpdatesSnapshot.load(context, json).size());
+        assertEquals(1, UpdatesSnapshot.loadIndex(context).size());
+
+        assertTrue(Utils.replaceUpdatesList(json, second, diff, context));
+        assertEquals(2, UpdatesSnapshot.load(context, json).size());
+    }
+}
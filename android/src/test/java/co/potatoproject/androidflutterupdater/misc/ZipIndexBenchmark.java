@@ -0,0 +1,183 @@
+/*
+ * Copyright (C) 2019 The Potato Open Sauce Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package co.potatoproject.androidflutterupdater.misc;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.Enumeration;
+import java.util.Locale;
+import java.util.Random;
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+import java.util.zip.ZipOutputStream;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Time to find the payload of an A/B package and read its properties, with
+ * ZipIndex and with ZipFile like before
+ */
+@SuppressWarnings("Convert2Lambda")
+public class ZipIndexBenchmark {
+
+    private static final int PAYLOAD_LENGTH = 16 * 1024 * 1024;
+    private static final byte[] PROPERTIES =
+            "FILE_HASH=abc\nFILE_SIZE=16777216\n".getBytes(StandardCharsets.UTF_8);
+
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    @Before
+    public void setUp() {
+        Benchmark.assumeEnabled();
+    }
+
+    /**
+     * @param files the number of small deflated entries before the payload
+     */
+    private File createPackage(int files) throws IOException {
+        File zip = mFolder.newFile("update-" + files + ".zip");
+        Random random = new Random(files);
+        try (ZipOutputStream os = new ZipOutputStream(new FileOutputStream(zip))) {
+            byte[] content = new byte[4096];
+            for (int i = 0; i < files; i++) {
+                random.nextBytes(content);
+                os.putNextEntry(new ZipEntry(String.format(Locale.ROOT,
+                        "system/lib/lib%04d.so", i)));
+                os.write(content);
+                os.closeEntry();
+            }
+            byte[] payload = new byte[PAYLOAD_LENGTH];
+            random.nextBytes(payload);
+            putStored(os, Constants.AB_PAYLOAD_BIN_PATH, payload);
+            putStored(os, Constants.AB_PAYLOAD_PROPERTIES_PATH, PROPERTIES);
+        }
+        return zip;
+    }
+
+    private static void putStored(ZipOutputStream os, String name, byte[] data)
+            throws IOException {
+        ZipEntry entry = new ZipEntry(name);
+        entry.setMethod(ZipEntry.STORED);
+        entry.setSize(data.length);
+        entry.setCompressedSize(data.length);
+        CRC32 crc = new CRC32();
+        crc.update(data);
+        entry.setCrc(crc.getValue());
+        os.putNextEntry(entry);
+        os.write(data);
+        os.closeEntry();
+    }
+
+    private static int countLines(InputStream is) throws IOException {
+        int lines = 0;
+        try (BufferedReader br = new BufferedReader(new InputStreamReader(is))) {
+            while (br.readLine() != null) {
+                lines++;
+            }
+        }
+        return lines;
+    }
+
+    /**
+     * How ABUpdateInstaller found the payload before ZipIndex. Ignores the data
+     * descriptors, so the offset is wrong when deflated entries come first.
+     */
+    private static long prepareWithZipFile(File file) throws IOException {
+        try (ZipFile zipFile = new ZipFile(file)) {
+            long offset = -1;
+            long position = 0;
+            Enumeration<? extends ZipEntry> zipEntries = zipFile.entries();
+            while (zipEntries.hasMoreElements()) {
+                ZipEntry entry = zipEntries.nextElement();
+                int extra = entry.getExtra() == null ? 0 : entry.getExtra().length;
+                position += 30 + entry.getName().length() + extra;
+                if (entry.getName().equals(Constants.AB_PAYLOAD_BIN_PATH)) {
+                    offset = position;
+                    break;
+                }
+                position += entry.getCompressedSize();
+            }
+            ZipEntry properties = zipFile.getEntry(Constants.AB_PAYLOAD_PROPERTIES_PATH);
+            assertEquals(2, countLines(zipFile.getInputStream(properties)));
+            return offset;
+        }
+    }
+
+    private static long prepareWithZipIndex(File file) throws IOException {
+        ZipIndex zipIndex = ZipIndex.get(file);
+        long offset = zipIndex.getDataOffset(Constants.AB_PAYLOAD_BIN_PATH);
+        assertEquals(2, countLines(zipIndex.getInputStream(
+                Constants.AB_PAYLOAD_PROPERTIES_PATH)));
+        return offset;
+    }
+
+    private void compare(int files) throws Exception {
+        final File zip = createPackage(files);
+        final long offset = prepareWithZipIndex(zip);
+        final long lastModified = zip.lastModified();
+        final long[] run = new long[1];
+
+        Benchmark.Result zipFile = Benchmark.measure("ZipFile", 50, 20,
+                new Benchmark.Task() {
+                    @Override
+                    public void run() throws Exception {
+                        prepareWithZipFile(zip);
+                    }
+                });
+        Benchmark.Result cold = Benchmark.measure("ZipIndex, scanned", 50, 20,
+                new Benchmark.Task() {
+                    @Override
+                    public void run() throws Exception {
+                        // A new modification time makes the cached index stale
+                        zip.setLastModified(lastModified - (++run[0] % 2 + 1) * 1000);
+                        assertEquals(offset, prepareWithZipIndex(zip));
+                    }
+                });
+        Benchmark.Result warm = Benchmark.measure("ZipIndex, cached", 50, 20,
+                new Benchmark.Task() {
+                    @Override
+                    public void run() throws Exception {
+                        assertEquals(offset, prepareWithZipIndex(zip));
+                    }
+                });
+        Benchmark.report("Preparing an A/B package with " + (files + 2) + " entries",
+                zipFile, cold, warm);
+        System.out.printf("  Payload at %d, ZipFile pointed at %d%n", offset,
+                prepareWithZipFile(zip));
+    }
+
+    @Test
+    public void fewEntries() throws Exception {
+        compare(4);
+    }
+
+    @Test
+    public void manyEntries() throws Exception {
+        compare(2000);
+    }
+}
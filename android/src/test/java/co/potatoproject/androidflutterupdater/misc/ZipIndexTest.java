@@ -0,0 +1,211 @@
+/*
+ * Copyright (C) 2019 The Potato Open Sauce Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package co.potatoproject.androidflutterupdater.misc;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class ZipIndexTest {
+
+    private static final String PAYLOAD = "payload.bin";
+    private static final String PROPERTIES = "payload_properties.txt";
+    private static final String METADATA = "META-INF/com/android/metadata";
+
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    private File mZip;
+    private byte[] mPayload;
+    private byte[] mProperties;
+    private byte[] mMetadata;
+
+    @Before
+    public void setUp() throws IOException {
+        mPayload = new byte[256 * 1024];
+        new Random(0).nextBytes(mPayload);
+        mProperties = "FILE_HASH=abc\nFILE_SIZE=262144\n".getBytes(StandardCharsets.UTF_8);
+        char[] metadata = new char[64 * 1024];
+        Arrays.fill(metadata, 'm');
+        mMetadata = new String(metadata).getBytes(StandardCharsets.UTF_8);
+
+        mZip = mFolder.newFile("update.zip");
+        try (ZipOutputStream os = new ZipOutputStream(new FileOutputStream(mZip))) {
+            // Like OTA packages: stored payload, deflated everything else
+            ZipEntry metadataEntry = new ZipEntry(METADATA);
+            metadataEntry.setMethod(ZipEntry.DEFLATED);
+            os.putNextEntry(metadataEntry);
+            os.write(mMetadata);
+            os.closeEntry();
+
+            ZipEntry payload = new ZipEntry(PAYLOAD);
+            payload.setMethod(ZipEntry.STORED);
+            payload.setSize(mPayload.length);
+            payload.setCompressedSize(mPayload.length);
+            CRC32 crc = new CRC32();
+            crc.update(mPayload);
+            payload.setCrc(crc.getValue());
+            // Moves the data after the local header
+            payload.setExtra(new byte[]{(byte) 0xfe, (byte) 0xca, 4, 0, 1, 2, 3, 4});
+            os.putNextEntry(payload);
+            os.write(mPayload);
+            os.closeEntry();
+
+            ZipEntry properties = new ZipEntry(PROPERTIES);
+            properties.setMethod(ZipEntry.STORED);
+            properties.setSize(mProperties.length);
+            properties.setCompressedSize(mProperties.length);
+            crc.reset();
+            crc.update(mProperties);
+            properties.setCrc(crc.getValue());
+            os.putNextEntry(properties);
+            os.write(mProperties);
+            os.closeEntry();
+
+            // The end of central directory record must be found before it
+            os.setComment("signed by a test key");
+        }
+    }
+
+    private static byte[] readAll(InputStream is) throws IOException {
+        ByteArrayOutputStream content = new ByteArrayOutputStream();
+        byte[] buffer = new byte[8192];
+        for (int count; (count = is.read(buffer)) > 0; ) {
+            content.write(buffer, 0, count);
+        }
+        return content.toByteArray();
+    }
+
+    private byte[] readAt(long offset, int length) throws IOException {
+        byte[] data = new byte[length];
+        try (RandomAccessFile raf = new RandomAccessFile(mZip, "r")) {
+            raf.seek(offset);
+            raf.readFully(data);
+        }
+        return data;
+    }
+
+    @Test
+    public void indexesAllEntries() throws IOException {
+        ZipIndex index = ZipIndex.get(mZip);
+        assertEquals(3, index.size());
+        assertTrue(index.hasEntry(PAYLOAD));
+        assertTrue(index.hasEntry(PROPERTIES));
+        assertTrue(index.hasEntry(METADATA));
+        assertFalse(index.hasEntry("care_map.pb"));
+
+        ZipIndex.Entry payload = index.getEntry(PAYLOAD);
+        assertEquals(PAYLOAD, payload.getName());
+        assertEquals(ZipEntry.STORED, payload.getMethod());
+        assertEquals(mPayload.length, payload.getSize());
+        assertEquals(mPayload.length, payload.getCompressedSize());
+
+        ZipIndex.Entry metadata = index.getEntry(METADATA);
+        assertEquals(ZipEntry.DEFLATED, metadata.getMethod());
+        assertEquals(mMetadata.length, metadata.getSize());
+        assertTrue(metadata.getCompressedSize() < metadata.getSize());
+    }
+
+    @Test
+    public void dataOffsetsPointAtTheData() throws IOException {
+        ZipIndex index = ZipIndex.get(mZip);
+        long payloadOffset = index.getDataOffset(PAYLOAD);
+        assertArrayEquals(mPayload, readAt(payloadOffset, mPayload.length));
+        long propertiesOffset = index.getDataOffset(PROPERTIES);
+        assertArrayEquals(mProperties, readAt(propertiesOffset, mProperties.length));
+        // Cached, and still the same
+        assertEquals(payloadOffset, index.getDataOffset(PAYLOAD));
+    }
+
+    @Test
+    public void readsStoredAndDeflatedEntries() throws IOException {
+        ZipIndex index = ZipIndex.get(mZip);
+        try (InputStream is = index.getInputStream(PROPERTIES)) {
+            assertArrayEquals(mProperties, readAll(is));
+        }
+        try (InputStream is = index.getInputStream(METADATA)) {
+            assertArrayEquals(mMetadata, readAll(is));
+        }
+    }
+
+    @Test
+    public void rejectsMissingEntries() throws IOException {
+        ZipIndex index = ZipIndex.get(mZip);
+        try {
+            index.getDataOffset("care_map.pb");
+            fail("Offset of a missing entry");
+        } catch (IllegalArgumentException e) {
+            // Expected
+        }
+        try {
+            index.getInputStream("care_map.pb");
+            fail("Content of a missing entry");
+        } catch (IllegalArgumentException e) {
+            // Expected
+        }
+    }
+
+    @Test
+    public void rejectsFilesThatAreNotZips() throws IOException {
+        File file = mFolder.newFile("update.json");
+        Files.write(file.toPath(), "{\"results\": []}".getBytes(StandardCharsets.UTF_8));
+        try {
+            ZipIndex.get(file);
+            fail("Indexed a file that isn't a zip");
+        } catch (IOException e) {
+            // Expected
+        }
+    }
+
+    @Test
+    public void indexesAreRebuiltWhenTheFileChanges() throws IOException {
+        ZipIndex index = ZipIndex.get(mZip);
+        assertSame(index, ZipIndex.get(mZip));
+
+        try (ZipOutputStream os = new ZipOutputStream(new FileOutputStream(mZip))) {
+            os.putNextEntry(new ZipEntry(PROPERTIES));
+            os.write(mProperties);
+            os.closeEntry();
+        }
+        ZipIndex rebuilt = ZipIndex.get(mZip);
+        assertNotSame(index, rebuilt);
+        assertEquals(1, rebuilt.size());
+        assertFalse(rebuilt.hasEntry(PAYLOAD));
+    }
+}
@@ -8,6 +8,8 @@ class AndroidFlutterUpdater {
       const MethodChannel('android_flutter_updater/methods');
   static const EventChannel _events =
       const EventChannel('android_flutter_updater/events');
+  static const EventChannel _updateEvents =
+      const EventChannel('android_flutter_updater/update_events');
 
   static Future<String> get platformVersion async {
     final String version = await _channel.invokeMethod('getPlatformVersion');
@@ -15,7 +17,11 @@ class AndroidFlutterUpdater {
   }
 
   static Stream _broadcastStream;
+  static Stream<List<UpdateEvent>> _updateEventsStream;
 
+  /// Listens to the events of the downloads as "<id>~<progress>" strings, and
+  /// to "update_available~<true|false>" after each check. [updateEvents] has
+  /// the same events with all their details.
   static StreamSubscription registerStreamListener({
     @required StreamSubscription streamSubscription,
     @required Function onData,
@@ -30,6 +36,17 @@ class AndroidFlutterUpdater {
     return _broadcastStream.listen(onData);
   }
 
+  /// The events of the downloads. They arrive in batches, at most one per
+  /// frame, holding the latest event of each download.
+  static Stream<List<UpdateEvent>> get updateEvents {
+    if (_updateEventsStream == null) {
+      _updateEventsStream = _updateEvents.receiveBroadcastStream().map((batch) =>
+          List<UpdateEvent>.from(
+              (batch as List).map((event) => UpdateEvent._fromMap(event))));
+    }
+    return _updateEventsStream;
+  }
+
   // Download ID methods
   static Future<void> startDownload(String id) async =>
       await _channel.invokeMethod('startDownload', {'id': id});
@@ -82,6 +99,9 @@ class AndroidFlutterUpdater {
   static Future<String> getSize(String id) async =>
       await _channel.invokeMethod('getSize', {'id': id});
 
+  static Future<String> getRepairedBytes(String id) async =>
+      await _channel.invokeMethod('getRepairedBytes', {'id': id});
+
   // Update service methods
   static Future<void> checkForUpdates() async =>
       await _channel.invokeMethod('checkForUpdates');
@@ -157,6 +177,47 @@ class AndroidFlutterUpdater {
   static Future<bool> getPerformanceMode() async =>
       await _channel.invokeMethod('getPerformanceMode');
 
+  static Future<int> getBandwidthLimit() async =>
+      await _channel.invokeMethod('getBandwidthLimit');
+
+  static Future<void> setBandwidthLimit(int bytesPerSecond) async =>
+      await _channel.invokeMethod('setBandwidthLimit', {'limit': bytesPerSecond});
+
+  // Download queue
+  static const int PRIORITY_LOW = -1;
+  static const int PRIORITY_NORMAL = 0;
+  static const int PRIORITY_HIGH = 1;
+
+  static Future<bool> enqueueDownload(String id,
+          {int priority = PRIORITY_NORMAL}) async =>
+      await _channel
+          .invokeMethod('enqueueDownload', {'id': id, 'priority': priority});
+
+  static Future<bool> reprioritizeDownload(String id, int priority) async =>
+      await _channel.invokeMethod(
+          'reprioritizeDownload', {'id': id, 'priority': priority});
+
+  static Future<List<String>> getDownloadQueue() async {
+    final _ret = await _channel.invokeMethod('getDownloadQueue');
+    return _ret == null ? List() : List<String>.from(_ret);
+  }
+
+  static Future<int> getMaxConcurrentDownloads() async =>
+      await _channel.invokeMethod('getMaxConcurrentDownloads');
+
+  static Future<void> setMaxConcurrentDownloads(int max) async =>
+      await _channel.invokeMethod('setMaxConcurrentDownloads', {'max': max});
+
+  static Future<DownloadPolicy> getDownloadPolicy() async {
+    final String policy = await _channel.invokeMethod('getDownloadPolicy');
+    return DownloadPolicy.values
+        .firstWhere((e) => e.toString().split('.')[1] == policy);
+  }
+
+  static Future<void> setDownloadPolicy(DownloadPolicy policy) async =>
+      await _channel.invokeMethod(
+          'setDownloadPolicy', {'policy': policy.toString().split('.')[1]});
+
   static Future<void> startActivity({String pkg, String cls}) async =>
       await _channel.invokeMethod('startActivity', {'pkg': pkg, 'cls': cls});
 
@@ -183,6 +244,53 @@ enum UpdateStatus {
   INSTALLED,
   INSTALLATION_FAILED,
   INSTALLATION_CANCELLED,
+  QUEUED,
+}
+
+enum UpdateEventType {
+  UPDATE,
+  REMOVED,
+  UPDATES_AVAILABLE,
+}
+
+class UpdateEvent {
+  final UpdateEventType type;
+
+  /// The download id, null for UPDATES_AVAILABLE
+  final String id;
+  final UpdateStatus status;
+  final int progress;
+  final int downloadedBytes;
+  final int totalBytes;
+
+  /// In bytes per second
+  final int speed;
+
+  /// In seconds
+  final int eta;
+  final int installProgress;
+  final bool updatesAvailable;
+
+  UpdateEvent._fromMap(Map event)
+      : type = UpdateEventType.values.firstWhere((e) =>
+            e.toString().split('.')[1] ==
+            (event['type'] as String).toUpperCase()),
+        id = event['id'],
+        status = event['status'] == null
+            ? null
+            : AndroidFlutterUpdater._strToStatusEnum(event['status']),
+        progress = event['progress'],
+        downloadedBytes = event['downloadedBytes'],
+        totalBytes = event['totalBytes'],
+        speed = event['speed'],
+        eta = event['eta'],
+        installProgress = event['installProgress'],
+        updatesAvailable = event['available'];
+}
+
+enum DownloadPolicy {
+  FIFO,
+  PRIORITY,
 }
 
 class Persistent {